@@ -0,0 +1,30 @@
+package Common;
+
+import java.io.Serializable;
+
+/**
+ * Skickas av klienten för att tala om hur många fler väntande meddelanden den kan ta emot.
+ *
+ */
+public class BacklogCredit implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int messages;
+
+    /**
+     * Skapar en ny kredit.
+     *
+     * @param messages Antal meddelanden som klienten kan ta emot.
+     */
+    public BacklogCredit(int messages) {
+        this.messages = messages;
+    }
+
+    /**
+     * @return Antal meddelanden som klienten kan ta emot.
+     */
+    public int getMessages() {
+        return messages;
+    }
+}
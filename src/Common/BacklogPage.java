@@ -0,0 +1,43 @@
+package Common;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * En sida med meddelanden som väntade på mottagaren medan den var offline. Servern skickar
+ * bara så många meddelanden som klienten har gett kredit för; klienten ger ny kredit med
+ * {@link BacklogCredit} när den har hanterat sidan.
+ *
+ */
+public class BacklogPage implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final List<Message> messages;
+    private final long remaining;
+
+    /**
+     * Skapar en ny sida.
+     *
+     * @param messages Meddelandena i sidan, äldst först.
+     * @param remaining Antal meddelanden som fortfarande väntar efter den här sidan.
+     */
+    public BacklogPage(List<Message> messages, long remaining) {
+        this.messages = messages;
+        this.remaining = remaining;
+    }
+
+    /**
+     * @return Meddelandena i sidan, äldst först.
+     */
+    public List<Message> getMessages() {
+        return messages;
+    }
+
+    /**
+     * @return Antal meddelanden som fortfarande väntar efter den här sidan.
+     */
+    public long getRemaining() {
+        return remaining;
+    }
+}
@@ -0,0 +1,409 @@
+package Common;
+
+import javax.imageio.ImageIO;
+import javax.swing.*;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Kompakt binär kodning av ramar. Varje ram börjar med en typbyte följd av fälten
+ * i en fast ordning, utan klassbeskrivningar eller reflektion.
+ * <p>
+ * Användare inuti ett {@link Message} kodas bara med sin identitet (namnet), eftersom
+ * mottagaren inte använder profilbilden där. Övriga användare kodas med namn, profilbild och
+ * profilbildens hash; i praktiken har bara inloggningen en profilbild, användarlistor och
+ * närvarouppdateringar bär bara hashen. Bilder kodas som PNG. Objekt som saknar en egen kodning skickas
+ * med Java-serialisering inuti ramen.
+ * <p>
+ * Ett meddelande som bara refererar till sin bild med en hash kodas med en egen typbyte, så att
+ * meddelanden som redan ligger lagrade i serverns brevlådor kan läsas som tidigare. En miniatyr
+ * av bilden skickas med sin egen typbyte, i de bytes servern kodade den med.
+ * <p>
+ * Ett meddelande till en gruppkonversation har också en egen typbyte, med gruppens namn, bildens
+ * hash och miniatyr. I serverns brevlådor lagras gruppmeddelanden bara som en referens till
+ * meddelandet, som servern har lagrat en gång för alla medlemmar.
+ *
+ */
+public class BinaryCodec implements PayloadCodec {
+
+    private static final byte TAG_SERIALIZED = 0;
+    private static final byte TAG_USER = 1;
+    private static final byte TAG_MESSAGE = 2;
+    private static final byte TAG_USER_LIST = 3;
+    private static final byte TAG_PRESENCE = 4;
+    private static final byte TAG_PRESENCE_RESYNC = 5;
+    private static final byte TAG_BACKLOG_PAGE = 6;
+    private static final byte TAG_BACKLOG_CREDIT = 7;
+    private static final byte TAG_MESSAGE_REF = 8;
+    private static final byte TAG_BLOB_REQUEST = 9;
+    private static final byte TAG_BLOB_DATA = 10;
+    private static final byte TAG_MESSAGE_THUMB = 11;
+    private static final byte TAG_GROUP_UPDATE = 12;
+    private static final byte TAG_GROUP_MESSAGE = 13;
+    private static final byte TAG_GROUP_REF = 14;
+    private static final byte TAG_HEARTBEAT = 15;
+
+    private static final int NULL_LENGTH = -1;
+
+    private final SerializationCodec fallback = new SerializationCodec();
+
+    @Override
+    public byte[] encode(Object obj) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        if (obj instanceof Message && ((Message) obj).getBodyHash() != null) {
+            Message message = (Message) obj;
+            out.writeByte(TAG_GROUP_REF);
+            writeIdentity(out, message.getSender());
+            writeIdentity(out, message.getReceiver());
+            writeString(out, message.getGroup());
+            writeString(out, message.getBodyHash());
+        } else if (obj instanceof Message && ((Message) obj).getGroup() != null) {
+            out.writeByte(TAG_GROUP_MESSAGE);
+            writeMessage(out, (Message) obj);
+            writeString(out, ((Message) obj).getGroup());
+            writeString(out, ((Message) obj).getImageHash());
+            writeBytes(out, ((Message) obj).getThumbnail());
+        } else if (obj instanceof Message && ((Message) obj).getThumbnail() != null) {
+            out.writeByte(TAG_MESSAGE_THUMB);
+            writeMessage(out, (Message) obj);
+            writeString(out, ((Message) obj).getImageHash());
+            writeBytes(out, ((Message) obj).getThumbnail());
+        } else if (obj instanceof Message && ((Message) obj).getImageHash() != null) {
+            out.writeByte(TAG_MESSAGE_REF);
+            writeMessage(out, (Message) obj);
+            writeString(out, ((Message) obj).getImageHash());
+        } else if (obj instanceof Message) {
+            out.writeByte(TAG_MESSAGE);
+            writeMessage(out, (Message) obj);
+        } else if (obj instanceof User) {
+            out.writeByte(TAG_USER);
+            writeUser(out, (User) obj);
+        } else if (isUserList(obj)) {
+            out.writeByte(TAG_USER_LIST);
+            writeUsers(out, (List<?>) obj);
+        } else if (obj instanceof PresenceUpdate) {
+            PresenceUpdate update = (PresenceUpdate) obj;
+            out.writeByte(TAG_PRESENCE);
+            out.writeLong(update.getVersion());
+            out.writeBoolean(update.isSnapshot());
+            writeUsers(out, update.getJoined());
+            out.writeInt(update.getLeft().size());
+            for (User user : update.getLeft()) {
+                writeIdentity(out, user);
+            }
+        } else if (obj instanceof PresenceResync) {
+            out.writeByte(TAG_PRESENCE_RESYNC);
+            out.writeLong(((PresenceResync) obj).getLastVersion());
+        } else if (obj instanceof BacklogPage) {
+            BacklogPage page = (BacklogPage) obj;
+            out.writeByte(TAG_BACKLOG_PAGE);
+            out.writeLong(page.getRemaining());
+            out.writeInt(page.getMessages().size());
+            for (Message message : page.getMessages()) {
+                writeMessage(out, message);
+                writeString(out, message.getGroup());
+                writeString(out, message.getImageHash());
+                writeBytes(out, message.getThumbnail());
+            }
+        } else if (obj instanceof GroupUpdate) {
+            GroupUpdate update = (GroupUpdate) obj;
+            out.writeByte(TAG_GROUP_UPDATE);
+            writeString(out, update.getName());
+            out.writeInt(update.getMembers().size());
+            for (String member : update.getMembers()) {
+                writeString(out, member);
+            }
+        } else if (obj instanceof Heartbeat) {
+            out.writeByte(TAG_HEARTBEAT);
+        } else if (obj instanceof BacklogCredit) {
+            out.writeByte(TAG_BACKLOG_CREDIT);
+            out.writeInt(((BacklogCredit) obj).getMessages());
+        } else if (obj instanceof BlobRequest) {
+            out.writeByte(TAG_BLOB_REQUEST);
+            writeString(out, ((BlobRequest) obj).getHash());
+            out.writeLong(((BlobRequest) obj).getOffset());
+        } else if (obj instanceof BlobData) {
+            BlobData data = (BlobData) obj;
+            out.writeByte(TAG_BLOB_DATA);
+            writeString(out, data.getHash());
+            out.writeLong(data.getOffset());
+            out.writeLong(data.getTotal());
+            writeBytes(out, data.getBytes());
+        } else {
+            out.writeByte(TAG_SERIALIZED);
+            out.write(fallback.encode(obj));
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    @Override
+    public Object decode(byte[] data, int offset, int length) throws IOException, ClassNotFoundException {
+        if (length < 1) {
+            throw new IOException("Empty frame");
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, offset, length));
+        byte tag = in.readByte();
+        switch (tag) {
+            case TAG_MESSAGE:
+                return readMessage(in);
+            case TAG_MESSAGE_REF: {
+                Message message = readMessage(in);
+                message.setImageHash(readString(in));
+                return message;
+            }
+            case TAG_MESSAGE_THUMB: {
+                Message message = readMessage(in);
+                message.setImageHash(readString(in));
+                message.setThumbnail(readBytes(in));
+                return message;
+            }
+            case TAG_GROUP_MESSAGE: {
+                Message message = readMessage(in);
+                message.setGroup(readString(in));
+                message.setImageHash(readString(in));
+                message.setThumbnail(readBytes(in));
+                return message;
+            }
+            case TAG_GROUP_REF: {
+                Message message = new Message(readIdentity(in), readIdentity(in), (String) null);
+                message.setGroup(readString(in));
+                message.setBodyHash(readString(in));
+                return message;
+            }
+            case TAG_GROUP_UPDATE: {
+                String name = readString(in);
+                int count = readCount(in);
+                List<String> members = new ArrayList<>();
+                for (int i = 0; i < count; i++) {
+                    members.add(readString(in));
+                }
+                return new GroupUpdate(name, members);
+            }
+            case TAG_USER:
+                return readUser(in);
+            case TAG_USER_LIST:
+                return readUsers(in);
+            case TAG_PRESENCE: {
+                long version = in.readLong();
+                boolean snapshot = in.readBoolean();
+                List<User> joined = readUsers(in);
+                int leftCount = readCount(in);
+                List<User> left = new ArrayList<>();
+                for (int i = 0; i < leftCount; i++) {
+                    left.add(readIdentity(in));
+                }
+                return new PresenceUpdate(version, snapshot, joined, left);
+            }
+            case TAG_PRESENCE_RESYNC:
+                return new PresenceResync(in.readLong());
+            case TAG_BACKLOG_PAGE: {
+                long remaining = in.readLong();
+                int count = readCount(in);
+                List<Message> messages = new ArrayList<>();
+                for (int i = 0; i < count; i++) {
+                    Message message = readMessage(in);
+                    message.setGroup(readString(in));
+                    message.setImageHash(readString(in));
+                    message.setThumbnail(readBytes(in));
+                    messages.add(message);
+                }
+                return new BacklogPage(messages, remaining);
+            }
+            case TAG_BACKLOG_CREDIT:
+                return new BacklogCredit(in.readInt());
+            case TAG_HEARTBEAT:
+                return new Heartbeat();
+            case TAG_BLOB_REQUEST: {
+                String hash = readString(in);
+                return new BlobRequest(hash, in.readLong());
+            }
+            case TAG_BLOB_DATA: {
+                String hash = readString(in);
+                long chunkOffset = in.readLong();
+                long total = in.readLong();
+                return new BlobData(hash, chunkOffset, total, readBytes(in));
+            }
+            case TAG_SERIALIZED:
+                return fallback.decode(data, offset + 1, length - 1);
+            default:
+                throw new IOException("Unknown frame type: " + tag);
+        }
+    }
+
+    private static boolean isUserList(Object obj) {
+        if (!(obj instanceof List)) {
+            return false;
+        }
+        for (Object element : (List<?>) obj) {
+            if (!(element instanceof User)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void writeMessage(DataOutputStream out, Message message) throws IOException {
+        writeIdentity(out, message.getSender());
+        writeIdentity(out, message.getReceiver());
+        writeString(out, message.getMessage());
+        writeImage(out, message.getImage());
+    }
+
+    private static Message readMessage(DataInputStream in) throws IOException {
+        User sender = readIdentity(in);
+        User receiver = readIdentity(in);
+        String text = readString(in);
+        ImageIcon image = readImage(in);
+        return new Message(sender, receiver, text, image);
+    }
+
+    private static void writeIdentity(DataOutputStream out, User user) throws IOException {
+        writeString(out, user == null ? null : user.getName());
+    }
+
+    private static User readIdentity(DataInputStream in) throws IOException {
+        String name = readString(in);
+        return name == null ? null : new User(name, null);
+    }
+
+    private static void writeUsers(DataOutputStream out, List<?> users) throws IOException {
+        out.writeInt(users.size());
+        for (Object user : users) {
+            writeUser(out, (User) user);
+        }
+    }
+
+    private static List<User> readUsers(DataInputStream in) throws IOException {
+        int count = readCount(in);
+        List<User> users = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            users.add(readUser(in));
+        }
+        return users;
+    }
+
+    /**
+     * Läser antalet element i en lista. Varje element är minst en int, så ett antal som inte
+     * ryms i resten av ramen kommer från en trasig eller fientlig motpart och avvisas innan
+     * något allokeras.
+     */
+    private static int readCount(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        if (count < 0 || count > in.available() / Integer.BYTES) {
+            throw new IOException("Invalid element count: " + count);
+        }
+        return count;
+    }
+
+    private static void writeUser(DataOutputStream out, User user) throws IOException {
+        writeString(out, user.getName());
+        writeImage(out, user.getProfilePic());
+        writeString(out, user.getAvatarHash());
+    }
+
+    private static User readUser(DataInputStream in) throws IOException {
+        String name = readString(in);
+        ImageIcon profilePic = readImage(in);
+        User user = new User(name, profilePic);
+        user.setAvatarHash(readString(in));
+        return user;
+    }
+
+    /**
+     * Skriver en sträng som längd följd av UTF-8-bytes. Null skrivs som längden -1.
+     */
+    static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(NULL_LENGTH);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = readBytes(in);
+        return bytes == null ? null : new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        if (bytes == null) {
+            out.writeInt(NULL_LENGTH);
+            return;
+        }
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length == NULL_LENGTH) {
+            return null;
+        }
+        if (length < 0 || length > in.available()) {
+            throw new IOException("Invalid field length: " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    private static void writeImage(DataOutputStream out, ImageIcon image) throws IOException {
+        writeBytes(out, toPng(image));
+    }
+
+    private static ImageIcon readImage(DataInputStream in) throws IOException {
+        return fromBytes(readBytes(in));
+    }
+
+    /**
+     * Kodar en bild som PNG.
+     *
+     * @param image Bilden, eller null.
+     * @return PNG-bytes, eller null om bilden saknas eller är tom.
+     * @throws IOException Om bilden inte kan kodas.
+     */
+    public static byte[] toPng(ImageIcon image) throws IOException {
+        if (image == null || image.getIconWidth() <= 0 || image.getIconHeight() <= 0) {
+            return null;
+        }
+        BufferedImage buffered;
+        if (image.getImage() instanceof BufferedImage) {
+            buffered = (BufferedImage) image.getImage();
+        } else {
+            buffered = new BufferedImage(image.getIconWidth(), image.getIconHeight(), BufferedImage.TYPE_INT_ARGB);
+            Graphics2D graphics = buffered.createGraphics();
+            graphics.drawImage(image.getImage(), 0, 0, null);
+            graphics.dispose();
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ImageIO.write(buffered, "png", bytes);
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Avkodar en bild från kodade bytes i ett format som ImageIO kan läsa.
+     *
+     * @param bytes Bildens bytes, eller null.
+     * @return Bilden, eller null om bytes saknas.
+     * @throws IOException Om bilden inte kan läsas.
+     */
+    public static ImageIcon fromBytes(byte[] bytes) throws IOException {
+        if (bytes == null) {
+            return null;
+        }
+        BufferedImage buffered = ImageIO.read(new ByteArrayInputStream(bytes));
+        if (buffered == null) {
+            throw new IOException("Unsupported image data");
+        }
+        return new ImageIcon(buffered);
+    }
+}
@@ -0,0 +1,79 @@
+package Common;
+
+import java.io.Serializable;
+
+/**
+ * En del av innehållet för en hash, skickat som svar på en {@link BlobRequest}. Stora bilder
+ * skickas i flera delar så att andra meddelanden på samma anslutning kan gå emellan, och så
+ * att ingen sida behöver hålla mer än en del i minnet under överföringen.
+ *
+ */
+public class BlobData implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String hash;
+    private final long offset;
+    private final long total;
+    private final byte[] bytes;
+
+    /**
+     * Skapar ett svar med hela innehållet.
+     *
+     * @param hash Hashen för innehållet.
+     * @param bytes Innehållet.
+     */
+    public BlobData(String hash, byte[] bytes) {
+        this(hash, 0, bytes.length, bytes);
+    }
+
+    /**
+     * Skapar ett svar med en del av innehållet.
+     *
+     * @param hash Hashen för innehållet.
+     * @param offset Var i innehållet delen börjar.
+     * @param total Innehållets totala storlek i bytes.
+     * @param bytes Delen.
+     */
+    public BlobData(String hash, long offset, long total, byte[] bytes) {
+        this.hash = hash;
+        this.offset = offset;
+        this.total = total;
+        this.bytes = bytes;
+    }
+
+    /**
+     * @return Hashen för innehållet.
+     */
+    public String getHash() {
+        return hash;
+    }
+
+    /**
+     * @return Var i innehållet delen börjar.
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return Innehållets totala storlek i bytes.
+     */
+    public long getTotal() {
+        return total;
+    }
+
+    /**
+     * @return Delen av innehållet.
+     */
+    public byte[] getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return true om delen är den sista.
+     */
+    public boolean isLast() {
+        return offset + bytes.length >= total;
+    }
+}
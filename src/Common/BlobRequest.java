@@ -0,0 +1,52 @@
+package Common;
+
+import java.io.Serializable;
+
+/**
+ * Ber motparten om nästa del av innehållet för en hash. Servern skickar den till en avsändare
+ * som refererat till en bild som servern saknar, och klienten skickar den till servern för att
+ * hämta en bild den inte har i sin cache. Den som tar emot delarna ber om en del i taget, från
+ * så långt den har kommit, så en avbruten överföring kan fortsätta där den slutade.
+ *
+ */
+public class BlobRequest implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String hash;
+    private final long offset;
+
+    /**
+     * Skapar en begäran från början av innehållet.
+     *
+     * @param hash Hashen för innehållet som efterfrågas.
+     */
+    public BlobRequest(String hash) {
+        this(hash, 0);
+    }
+
+    /**
+     * Skapar en ny begäran.
+     *
+     * @param hash Hashen för innehållet som efterfrågas.
+     * @param offset Var i innehållet nästa del ska börja.
+     */
+    public BlobRequest(String hash, long offset) {
+        this.hash = hash;
+        this.offset = offset;
+    }
+
+    /**
+     * @return Hashen för innehållet som efterfrågas.
+     */
+    public String getHash() {
+        return hash;
+    }
+
+    /**
+     * @return Var i innehållet nästa del ska börja.
+     */
+    public long getOffset() {
+        return offset;
+    }
+}
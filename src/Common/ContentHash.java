@@ -0,0 +1,68 @@
+package Common;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Beräknar innehållsadresser för binära objekt som bilder. Samma bytes ger alltid samma
+ * adress, så ett objekt behöver bara lagras och skickas en gång.
+ *
+ */
+public final class ContentHash {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private ContentHash() {
+    }
+
+    /**
+     * @param bytes Innehållet.
+     * @return SHA-256-hashen för innehållet som hex med små bokstäver.
+     */
+    public static String of(byte[] bytes) {
+        return toHex(newDigest().digest(bytes));
+    }
+
+    /**
+     * Skapar en hashberäkning för innehåll som kommer i flera delar.
+     *
+     * @return En ny SHA-256-beräkning.
+     */
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    /**
+     * @param digest En färdig hashberäkning från {@link #newDigest()}.
+     * @return Hashen som hex med små bokstäver.
+     */
+    public static String toHex(byte[] digest) {
+        char[] hex = new char[digest.length * 2];
+        for (int i = 0; i < digest.length; i++) {
+            hex[i * 2] = HEX[(digest[i] >> 4) & 0xF];
+            hex[i * 2 + 1] = HEX[digest[i] & 0xF];
+        }
+        return new String(hex);
+    }
+
+    /**
+     * @param hash Strängen som ska kontrolleras.
+     * @return true om strängen ser ut som en hash från {@link #of(byte[])}.
+     */
+    public static boolean isValid(String hash) {
+        if (hash == null || hash.length() != 64) {
+            return false;
+        }
+        for (int i = 0; i < hash.length(); i++) {
+            char c = hash.charAt(i);
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,42 @@
+package Common;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Räknar hur många bytes som har skrivits till den underliggande strömmen. En byte räknas
+ * först när skrivningen till den underliggande strömmen har återvänt. Räknaren skrivs av en
+ * tråd men kan läsas av andra.
+ *
+ */
+public class CountingOutputStream extends FilterOutputStream {
+
+    private volatile long count;
+
+    /**
+     * @param out Strömmen som det skrivs till.
+     */
+    public CountingOutputStream(OutputStream out) {
+        super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        out.write(b);
+        count++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        count += len;
+    }
+
+    /**
+     * @return Antal bytes som har skrivits.
+     */
+    public long getCount() {
+        return count;
+    }
+}
@@ -0,0 +1,209 @@
+package Common;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Komprimerar ramarna på en anslutning med en deflate-ström som lever lika länge som anslutningen.
+ * Varje ram töms med {@link Deflater#SYNC_FLUSH}, så mottagaren kan packa upp den direkt, men
+ * ordlistan finns kvar mellan ramarna och korta chattmeddelanden som liknar tidigare meddelanden
+ * blir därför mycket mindre.
+ * <p>
+ * Ramar med bilder, som redan är komprimerade, skickas utan att gå igenom deflate-strömmen.
+ * Varje ram börjar med en byte som anger om resten är komprimerad. Eftersom strömmen har
+ * tillstånd måste ramarna kodas i samma ordning som de skrivs och avkodas i samma ordning
+ * som de lästes. En instans används för en enda anslutning och kan koda och avkoda samtidigt.
+ *
+ */
+public class DeflateCodec implements PayloadCodec {
+
+    private static final byte MODE_RAW = 0;
+    private static final byte MODE_DEFLATE = 1;
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    private final PayloadCodec inner;
+    private final Deflater deflater;
+    private final Inflater inflater = new Inflater();
+    private final byte[] deflateBuffer = new byte[BUFFER_SIZE];
+    private final byte[] inflateBuffer = new byte[BUFFER_SIZE];
+    private boolean deflaterClosed;
+    private boolean inflaterClosed;
+
+    private final AtomicLong rawBytes = new AtomicLong();
+    private final AtomicLong compressedBytes = new AtomicLong();
+    private final AtomicLong bypassedBytes = new AtomicLong();
+    private final AtomicLong cpuNanos = new AtomicLong();
+
+    /**
+     * @param inner Kodningen av ramarnas innehåll innan det komprimeras.
+     * @param level Deflate-nivå, från 1 (snabbast) till 9 (minst), eller -1 för standardnivån.
+     */
+    public DeflateCodec(PayloadCodec inner, int level) {
+        this.inner = inner;
+        this.deflater = new Deflater(level);
+    }
+
+    /**
+     * @return Kodningen av ramarnas innehåll innan det komprimeras.
+     */
+    public PayloadCodec getInner() {
+        return inner;
+    }
+
+    @Override
+    public byte[] encode(Object obj) throws IOException {
+        byte[] payload = inner.encode(obj);
+        return compress(obj, payload, 0, payload.length);
+    }
+
+    /**
+     * Komprimerar innehåll som redan har kodats med den inre kodningen, t.ex. en ram som
+     * delas mellan flera mottagare.
+     *
+     * @param obj Objektet som innehållet kodar. Avgör om innehållet redan är komprimerat.
+     * @param payload Bufferten med innehållet.
+     * @param offset Var innehållet börjar.
+     * @param length Innehållets längd.
+     * @return Ramens innehåll för den här anslutningen.
+     * @throws IOException Om anslutningens kodning har stängts.
+     */
+    public byte[] compress(Object obj, byte[] payload, int offset, int length) throws IOException {
+        if (isCompressed(obj)) {
+            byte[] frame = new byte[length + 1];
+            frame[0] = MODE_RAW;
+            System.arraycopy(payload, offset, frame, 1, length);
+            bypassedBytes.addAndGet(length);
+            return frame;
+        }
+        synchronized (deflater) {
+            if (deflaterClosed) {
+                throw new IOException("Codec closed");
+            }
+            long start = System.nanoTime();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(length / 2 + 16);
+            out.write(MODE_DEFLATE);
+            deflater.setInput(payload, offset, length);
+            int written;
+            do {
+                written = deflater.deflate(deflateBuffer, 0, deflateBuffer.length, Deflater.SYNC_FLUSH);
+                out.write(deflateBuffer, 0, written);
+            } while (written == deflateBuffer.length || !deflater.needsInput());
+            cpuNanos.addAndGet(System.nanoTime() - start);
+            rawBytes.addAndGet(length);
+            compressedBytes.addAndGet(out.size() - 1);
+            return out.toByteArray();
+        }
+    }
+
+    @Override
+    public Object decode(byte[] data, int offset, int length) throws IOException, ClassNotFoundException {
+        if (length < 1) {
+            throw new IOException("Empty frame");
+        }
+        if (data[offset] == MODE_RAW) {
+            return inner.decode(data, offset + 1, length - 1);
+        }
+        if (data[offset] != MODE_DEFLATE) {
+            throw new IOException("Unknown compression mode: " + data[offset]);
+        }
+        byte[] payload;
+        synchronized (inflater) {
+            if (inflaterClosed) {
+                throw new IOException("Codec closed");
+            }
+            long start = System.nanoTime();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, length * 3));
+            inflater.setInput(data, offset + 1, length - 1);
+            try {
+                while (true) {
+                    int read = inflater.inflate(inflateBuffer);
+                    if (read > 0) {
+                        out.write(inflateBuffer, 0, read);
+                        Protocol.checkFrameLength(out.size());
+                    } else if (inflater.needsInput()) {
+                        break;
+                    } else {
+                        throw new IOException("Corrupt compressed frame");
+                    }
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupt compressed frame", e);
+            }
+            cpuNanos.addAndGet(System.nanoTime() - start);
+            payload = out.toByteArray();
+        }
+        return inner.decode(payload, 0, payload.length);
+    }
+
+    /**
+     * Ramar som bär bilder är redan komprimerade (PNG eller JPEG) och skulle bara kosta tid
+     * och fylla ordlistan med data som inte upprepas.
+     */
+    private static boolean isCompressed(Object obj) {
+        if (obj instanceof BlobData) {
+            return true;
+        }
+        if (obj instanceof Message) {
+            Message message = (Message) obj;
+            return message.getImage() != null || message.getThumbnail() != null;
+        }
+        if (obj instanceof User) {
+            return ((User) obj).getProfilePic() != null;
+        }
+        if (obj instanceof BacklogPage) {
+            for (Message message : ((BacklogPage) obj).getMessages()) {
+                if (message.getImage() != null || message.getThumbnail() != null) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Frigör deflate-strömmarnas minne. Ramar som kodas eller avkodas efteråt ger ett IOException.
+     */
+    @Override
+    public void close() {
+        synchronized (deflater) {
+            deflaterClosed = true;
+            deflater.end();
+        }
+        synchronized (inflater) {
+            inflaterClosed = true;
+            inflater.end();
+        }
+    }
+
+    /**
+     * @return Antal bytes innehåll som har komprimerats.
+     */
+    public long getRawBytes() {
+        return rawBytes.get();
+    }
+
+    /**
+     * @return Antal bytes som det komprimerade innehållet blev.
+     */
+    public long getCompressedBytes() {
+        return compressedBytes.get();
+    }
+
+    /**
+     * @return Antal bytes innehåll med bilder som skickades utan komprimering.
+     */
+    public long getBypassedBytes() {
+        return bypassedBytes.get();
+    }
+
+    /**
+     * @return Sammanlagd tid i nanosekunder för att komprimera och packa upp ramar.
+     */
+    public long getCpuNanos() {
+        return cpuNanos.get();
+    }
+}
@@ -0,0 +1,40 @@
+package Common;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Läser längdprefixade ramar och avkodar dem med en given {@link PayloadCodec}.
+ *
+ */
+public class FramedInput implements WireInput {
+
+    private final DataInputStream in;
+    private final PayloadCodec codec;
+
+    /**
+     * Skapar en ny ramad inström.
+     *
+     * @param in Den underliggande strömmen.
+     * @param codec Kodningen som används för ramarnas innehåll.
+     */
+    public FramedInput(InputStream in, PayloadCodec codec) {
+        this.in = in instanceof DataInputStream ? (DataInputStream) in : new DataInputStream(in);
+        this.codec = codec;
+    }
+
+    @Override
+    public Object readObject() throws IOException, ClassNotFoundException {
+        int length = in.readInt();
+        Protocol.checkFrameLength(length);
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        return codec.decode(payload, 0, length);
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
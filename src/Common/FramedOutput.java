@@ -0,0 +1,71 @@
+package Common;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Skriver objekt som längdprefixade ramar med en given {@link PayloadCodec}.
+ *
+ */
+public class FramedOutput implements WireOutput {
+
+    private final DataOutputStream out;
+    private final PayloadCodec codec;
+
+    /**
+     * Skapar en ny ramad utström.
+     *
+     * @param out Den underliggande strömmen.
+     * @param codec Kodningen som används för ramarnas innehåll.
+     */
+    public FramedOutput(OutputStream out, PayloadCodec codec) {
+        this.out = out instanceof DataOutputStream ? (DataOutputStream) out : new DataOutputStream(out);
+        this.codec = codec;
+    }
+
+    @Override
+    public void writeObject(Object obj) throws IOException {
+        writeFrame(codec.encode(obj));
+    }
+
+    /**
+     * Skriver en redan kodad ram.
+     *
+     * @param payload Ramens innehåll.
+     * @throws IOException Om skrivningen misslyckas.
+     */
+    public void writeFrame(byte[] payload) throws IOException {
+        Protocol.checkFrameLength(payload.length);
+        out.writeInt(payload.length);
+        out.write(payload);
+    }
+
+    /**
+     * Skriver en ram som redan är kodad och har sin längd först, t.ex. en ram som delas
+     * mellan flera mottagare.
+     *
+     * @param frame Längden följd av ramens innehåll.
+     * @throws IOException Om skrivningen misslyckas.
+     */
+    public void writeEncoded(byte[] frame) throws IOException {
+        out.write(frame);
+    }
+
+    /**
+     * @return Kodningen som används för ramarnas innehåll.
+     */
+    public PayloadCodec getCodec() {
+        return codec;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+}
@@ -0,0 +1,56 @@
+package Common;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * En gruppkonversation och dess medlemmar. Klienten skickar den för att skapa en grupp eller
+ * ändra medlemmarna, servern skickar den till medlemmarna när gruppen ändras och vid inloggningen.
+ * Gruppens namn börjar med {@code #} så att det inte kan förväxlas med en användare.
+ *
+ */
+public class GroupUpdate implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Tecknet som alla gruppnamn börjar med. */
+    public static final String PREFIX = "#";
+
+    private final String name;
+    private final List<String> members;
+
+    /**
+     * Skapar en ny uppdatering.
+     *
+     * @param name Gruppens namn.
+     * @param members Namnen på gruppens medlemmar.
+     */
+    public GroupUpdate(String name, List<String> members) {
+        this.name = name;
+        this.members = Collections.unmodifiableList(new ArrayList<>(members));
+    }
+
+    /**
+     * @return Gruppens namn.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return Namnen på gruppens medlemmar.
+     */
+    public List<String> getMembers() {
+        return members;
+    }
+
+    /**
+     * @param name Ett namn.
+     * @return true om namnet är ett gruppnamn.
+     */
+    public static boolean isGroupName(String name) {
+        return name != null && name.startsWith(PREFIX);
+    }
+}
@@ -0,0 +1,14 @@
+package Common;
+
+import java.io.Serializable;
+
+/**
+ * Skickas av klienten med jämna mellanrum och besvaras av servern med en egen. Båda sidor ser
+ * därmed trafik även när ingen chattar, och kan stänga en anslutning där motparten har
+ * försvunnit utan att TCP har märkt det, t.ex. en bärbar dator som har stängts.
+ *
+ */
+public class Heartbeat implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+}
@@ -9,11 +9,17 @@ import java.io.Serializable;
  */
 public class Message implements Serializable {
 
+    private static final long serialVersionUID = -4326580833140641621L;
+
     private User sender;
     private User receiver;
 
     private String message;
     private ImageIcon image;
+    private String imageHash;
+    private byte[] thumbnail;
+    private String group;
+    private String bodyHash;
 
     /**
      * Skapar ett textmeddelande.
@@ -95,4 +101,89 @@ public class Message implements Serializable {
     public ImageIcon getImage() {
         return image;
     }
+
+    /**
+     * Ersätter bilden, t.ex. när en bild som skickats som referens har hämtats.
+     *
+     * @param image Bilden.
+     */
+    public void setImage(ImageIcon image) {
+        this.image = image;
+    }
+
+    /**
+     * Hämtar hashen för bilden när meddelandet bara bär en referens till bilden
+     * i stället för själva bilden.
+     *
+     * @return SHA-256-hashen för bildens bytes som hex, eller null.
+     */
+    public String getImageHash() {
+        return imageHash;
+    }
+
+    /**
+     * Sätter hashen för bilden som meddelandet refererar till.
+     *
+     * @param imageHash SHA-256-hashen för bildens bytes som hex.
+     */
+    public void setImageHash(String imageHash) {
+        this.imageHash = imageHash;
+    }
+
+    /**
+     * Hämtar en förminskad version av bilden som servern skickar med meddelandet, så att
+     * mottagaren kan visa något direkt och bara hämta originalet om det efterfrågas.
+     *
+     * @return Miniatyrens kodade bytes (JPEG), eller null.
+     */
+    public byte[] getThumbnail() {
+        return thumbnail;
+    }
+
+    /**
+     * Sätter miniatyren för bilden som meddelandet refererar till.
+     *
+     * @param thumbnail Miniatyrens kodade bytes.
+     */
+    public void setThumbnail(byte[] thumbnail) {
+        this.thumbnail = thumbnail;
+    }
+
+    /**
+     * Hämtar gruppkonversationen som meddelandet skickades till. Mottagaren är då gruppen
+     * och inte en enskild användare.
+     *
+     * @return Gruppens namn, eller null för ett meddelande till en enskild användare.
+     */
+    public String getGroup() {
+        return group;
+    }
+
+    /**
+     * Sätter gruppkonversationen som meddelandet skickas till.
+     *
+     * @param group Gruppens namn.
+     */
+    public void setGroup(String group) {
+        this.group = group;
+    }
+
+    /**
+     * Hämtar hashen för ett gruppmeddelande som servern har lagrat en gång för alla medlemmar.
+     * Används bara i serverns brevlådor, där meddelandet då bara är en referens till innehållet.
+     *
+     * @return Hashen för det lagrade meddelandet, eller null.
+     */
+    public String getBodyHash() {
+        return bodyHash;
+    }
+
+    /**
+     * Sätter hashen för det lagrade gruppmeddelandet som meddelandet refererar till.
+     *
+     * @param bodyHash Hashen för det lagrade meddelandet.
+     */
+    public void setBodyHash(String bodyHash) {
+        this.bodyHash = bodyHash;
+    }
 }
@@ -0,0 +1,33 @@
+package Common;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+
+/**
+ * Anpassar en vanlig ObjectInputStream till {@link WireInput}. Används för äldre klienter
+ * som inte talar det ramade protokollet.
+ *
+ */
+public class ObjectStreamInput implements WireInput {
+
+    private final ObjectInputStream ois;
+
+    /**
+     * Skapar en ny anpassning runt en ObjectInputStream.
+     *
+     * @param ois Strömmen som objekten läses från.
+     */
+    public ObjectStreamInput(ObjectInputStream ois) {
+        this.ois = ois;
+    }
+
+    @Override
+    public Object readObject() throws IOException, ClassNotFoundException {
+        return ois.readObject();
+    }
+
+    @Override
+    public void close() throws IOException {
+        ois.close();
+    }
+}
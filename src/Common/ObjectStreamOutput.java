@@ -0,0 +1,88 @@
+package Common;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+
+/**
+ * Anpassar en vanlig ObjectOutputStream till {@link WireOutput}. Används för äldre klienter
+ * som inte talar det ramade protokollet.
+ * <p>
+ * En ObjectOutputStream håller en referens till varje objekt den har skrivit, så att samma
+ * objekt kan skrivas som en bakåtreferens nästa gång. Strömmen nollställs därför när ett visst
+ * antal objekt eller bytes har skrivits sedan förra gången, så att minnet som hålls kvar per
+ * anslutning inte växer med den totala trafiken. Mottagarens ObjectInputStream nollställs
+ * samtidigt.
+ *
+ */
+public class ObjectStreamOutput implements WireOutput {
+
+    private final CountingOutputStream counter;
+    private final ObjectOutputStream oos;
+    private final int resetObjects;
+    private final long resetBytes;
+    private int objectsSinceReset;
+    private long bytesAtReset;
+    private volatile long retainedBytes;
+    private volatile long resets;
+
+    /**
+     * Skapar en ny ObjectOutputStream runt en ström. Strömmens huvud skrivs direkt men skickas
+     * först vid nästa {@link #flush()}.
+     *
+     * @param out Strömmen som objekten skrivs till.
+     * @param resetObjects Antal objekt som skrivs mellan två nollställningar.
+     * @param resetBytes Antal bytes som skrivs innan strömmen nollställs, även om färre objekt har skrivits.
+     * @throws IOException Om strömmens huvud inte kunde skrivas.
+     */
+    public ObjectStreamOutput(OutputStream out, int resetObjects, long resetBytes) throws IOException {
+        this.counter = new CountingOutputStream(out);
+        this.oos = new ObjectOutputStream(counter);
+        this.resetObjects = Math.max(1, resetObjects);
+        this.resetBytes = Math.max(1, resetBytes);
+        this.bytesAtReset = counter.getCount();
+    }
+
+    @Override
+    public void writeObject(Object obj) throws IOException {
+        oos.writeObject(obj);
+        objectsSinceReset++;
+        long sinceReset = counter.getCount() - bytesAtReset;
+        if (objectsSinceReset >= resetObjects || sinceReset >= resetBytes) {
+            oos.reset();
+            objectsSinceReset = 0;
+            bytesAtReset = counter.getCount();
+            sinceReset = 0;
+            resets++;
+        }
+        retainedBytes = sinceReset;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        oos.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        oos.close();
+    }
+
+    /**
+     * Uppskattar hur mycket som hålls kvar i strömmens referenstabell, mätt som antal bytes
+     * som har skrivits sedan den senaste nollställningen. Objekten tar mer plats i minnet än
+     * serialiserade, men växer i samma takt.
+     *
+     * @return Antal bytes som har skrivits sedan strömmen nollställdes.
+     */
+    public long getRetainedBytes() {
+        return retainedBytes;
+    }
+
+    /**
+     * @return Antal gånger strömmen har nollställts.
+     */
+    public long getResets() {
+        return resets;
+    }
+}
@@ -0,0 +1,38 @@
+package Common;
+
+import java.io.IOException;
+
+/**
+ * Kodar och avkodar innehållet i en enskild ram i det ramade protokollet.
+ *
+ */
+public interface PayloadCodec {
+
+    /**
+     * Kodar ett objekt till bytes.
+     *
+     * @param obj Objektet som ska kodas.
+     * @return Den kodade ramens innehåll.
+     * @throws IOException Om objektet inte kan kodas.
+     */
+    byte[] encode(Object obj) throws IOException;
+
+    /**
+     * Avkodar ett objekt från en del av en bytearray.
+     *
+     * @param data Bufferten som innehåller ramen.
+     * @param offset Var ramens innehåll börjar.
+     * @param length Ramens längd.
+     * @return Det avkodade objektet.
+     * @throws IOException Om innehållet är felaktigt.
+     * @throws ClassNotFoundException Om objektets klass inte kan hittas.
+     */
+    Object decode(byte[] data, int offset, int length) throws IOException, ClassNotFoundException;
+
+    /**
+     * Frigör resurser som kodningen håller, t.ex. minnet för komprimering. Kodningar utan
+     * tillstånd behöver inte göra något.
+     */
+    default void close() {
+    }
+}
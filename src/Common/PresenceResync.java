@@ -0,0 +1,31 @@
+package Common;
+
+import java.io.Serializable;
+
+/**
+ * Skickas av klienten när den upptäcker ett glapp i versionerna för närvarouppdateringar.
+ * Servern svarar med en ny ögonblicksbild.
+ *
+ */
+public class PresenceResync implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final long lastVersion;
+
+    /**
+     * Skapar en ny begäran.
+     *
+     * @param lastVersion Den senaste versionen som klienten har tillämpat.
+     */
+    public PresenceResync(long lastVersion) {
+        this.lastVersion = lastVersion;
+    }
+
+    /**
+     * @return Den senaste versionen som klienten har tillämpat.
+     */
+    public long getLastVersion() {
+        return lastVersion;
+    }
+}
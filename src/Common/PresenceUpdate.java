@@ -0,0 +1,64 @@
+package Common;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * En förändring av vilka användare som är online. Varje uppdatering har ett versionsnummer
+ * som ökar med ett för varje förändring. En ögonblicksbild innehåller alla användare som är
+ * online och ersätter klientens lista, annars innehåller uppdateringen bara de som har
+ * anslutit och lämnat sedan föregående version.
+ *
+ */
+public class PresenceUpdate implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final long version;
+    private final boolean snapshot;
+    private final List<User> joined;
+    private final List<User> left;
+
+    /**
+     * Skapar en ny uppdatering.
+     *
+     * @param version Versionen som gäller efter uppdateringen.
+     * @param snapshot true om {@code joined} innehåller alla användare som är online.
+     * @param joined Användare som har anslutit, eller alla användare för en ögonblicksbild.
+     * @param left Användare som har lämnat.
+     */
+    public PresenceUpdate(long version, boolean snapshot, List<User> joined, List<User> left) {
+        this.version = version;
+        this.snapshot = snapshot;
+        this.joined = joined;
+        this.left = left;
+    }
+
+    /**
+     * @return Versionen som gäller efter uppdateringen.
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * @return true om uppdateringen är en fullständig ögonblicksbild.
+     */
+    public boolean isSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * @return Användare som har anslutit, eller alla användare för en ögonblicksbild.
+     */
+    public List<User> getJoined() {
+        return joined;
+    }
+
+    /**
+     * @return Användare som har lämnat.
+     */
+    public List<User> getLeft() {
+        return left;
+    }
+}
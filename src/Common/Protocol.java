@@ -0,0 +1,140 @@
+package Common;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.zip.Deflater;
+
+/**
+ * Konstanter för det ramade protokollet mellan klient och server.
+ * En anslutning börjar med en inledning (magiskt tal, version och önskad kodning).
+ * Servern svarar med en byte som anger vilken kodning som ska användas och om ramarna
+ * komprimeras, och därefter följer ramar där varje ram är en längd på fyra bytes följd av
+ * ramens innehåll.
+ *
+ */
+public final class Protocol {
+
+    /** Magiskt tal som inleder en ramad anslutning ("CHAT"). */
+    public static final int MAGIC = 0x43484154;
+
+    /** Protokollversionen som klienten skickar i inledningen. */
+    public static final byte VERSION = 4;
+
+    /** Antal bytes i inledningen. */
+    public static final int PREAMBLE_SIZE = 6;
+
+    /** Ramarnas innehåll kodas med Java-serialisering. */
+    public static final byte CODEC_SERIALIZATION = 0;
+
+    /** Ramarnas innehåll kodas med {@link BinaryCodec}. */
+    public static final byte CODEC_BINARY = 1;
+
+    /**
+     * Sätts i kodningens byte för att be om, eller bekräfta, att ramarna komprimeras med
+     * {@link DeflateCodec}. Servern sätter den bara i svaret om den tillåter komprimering.
+     */
+    public static final int FLAG_DEFLATE = 0x80;
+
+    /** Största tillåtna ramstorlek i bytes. */
+    public static final int MAX_FRAME_SIZE = 16 * 1024 * 1024;
+
+    /** De två första bytes som ObjectOutputStream skriver. Används för att känna igen äldre klienter. */
+    public static final int LEGACY_STREAM_MAGIC = 0xACED;
+
+    private Protocol() {
+    }
+
+    /**
+     * Skriver inledningen för en ramad anslutning.
+     *
+     * @param out Strömmen inledningen skrivs till.
+     * @param codec Kodningen som klienten helst vill använda.
+     * @throws IOException Om skrivningen misslyckas.
+     */
+    public static void writePreamble(DataOutputStream out, byte codec) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        out.writeByte(codec);
+    }
+
+    /**
+     * Läser och kontrollerar inledningen för en ramad anslutning.
+     *
+     * @param in Strömmen inledningen läses från.
+     * @return Kodningen som motparten önskade.
+     * @throws IOException Om inledningen saknas, är felaktig eller har en okänd version.
+     */
+    public static int readPreamble(DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Unknown protocol preamble");
+        }
+        checkVersion(in.readUnsignedByte());
+        return in.readUnsignedByte();
+    }
+
+    /**
+     * Kontrollerar att motparten talar en version av protokollet som stöds.
+     *
+     * @param version Versionen från inledningen.
+     * @throws IOException Om versionen inte stöds.
+     */
+    public static void checkVersion(int version) throws IOException {
+        if (version != VERSION) {
+            throw new IOException("Unsupported protocol version: " + version);
+        }
+    }
+
+    /**
+     * Väljer vilken kodning som ska användas för en anslutning. Okända önskemål
+     * faller tillbaka till Java-serialisering. Komprimering används bara om klienten bad om
+     * den och servern tillåter den.
+     *
+     * @param requested Kodningen som klienten önskade, eventuellt med {@link #FLAG_DEFLATE}.
+     * @param allowCompression true om servern tillåter komprimering.
+     * @return Kodningen som servern accepterar.
+     */
+    public static byte negotiateCodec(int requested, boolean allowCompression) {
+        int codec = (requested & 0xFF & ~FLAG_DEFLATE) == CODEC_BINARY ? CODEC_BINARY : CODEC_SERIALIZATION;
+        if (allowCompression && (requested & FLAG_DEFLATE) != 0) {
+            codec |= FLAG_DEFLATE;
+        }
+        return (byte) codec;
+    }
+
+    /**
+     * Skapar kodaren för en överenskommen kodning, med standardnivån för komprimering.
+     *
+     * @param codec Kodningens id, eventuellt med {@link #FLAG_DEFLATE}.
+     * @return Kodaren.
+     */
+    public static PayloadCodec codecFor(int codec) {
+        return codecFor(codec, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * Skapar kodaren för en överenskommen kodning. En komprimerande kodare har tillstånd och
+     * får bara användas för en anslutning.
+     *
+     * @param codec Kodningens id, eventuellt med {@link #FLAG_DEFLATE}.
+     * @param level Nivån för komprimering.
+     * @return Kodaren.
+     */
+    public static PayloadCodec codecFor(int codec, int level) {
+        int id = codec & 0xFF;
+        PayloadCodec base = (id & ~FLAG_DEFLATE) == CODEC_BINARY ? new BinaryCodec() : new SerializationCodec();
+        return (id & FLAG_DEFLATE) != 0 ? new DeflateCodec(base, level) : base;
+    }
+
+    /**
+     * Kontrollerar att en ramlängd är giltig.
+     *
+     * @param length Längden som lästs från tråden.
+     * @throws IOException Om längden är negativ eller för stor.
+     */
+    public static void checkFrameLength(int length) throws IOException {
+        if (length < 0 || length > MAX_FRAME_SIZE) {
+            throw new IOException("Invalid frame length: " + length);
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package Common;
+
+import java.io.*;
+
+/**
+ * Kodar varje ram med vanlig Java-serialisering. Varje ram är självständig, så ingen
+ * referenstabell delas mellan ramar.
+ *
+ */
+public class SerializationCodec implements PayloadCodec {
+
+    @Override
+    public byte[] encode(Object obj) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        try (ObjectOutputStream oos = new ObjectOutputStream(bytes)) {
+            oos.writeObject(obj);
+        }
+        return bytes.toByteArray();
+    }
+
+    @Override
+    public Object decode(byte[] data, int offset, int length) throws IOException, ClassNotFoundException {
+        try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(data, offset, length))) {
+            return ois.readObject();
+        }
+    }
+}
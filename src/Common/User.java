@@ -6,12 +6,19 @@ import java.io.Serializable;
 /**
  * Representerar en användare i systemet. Denna klass håller information om användarens namn
  * och profilbild.
+ * <p>
+ * Profilbilden skickas bara vid inloggningen. Servern lagrar den och ersätter den med sin hash,
+ * som fungerar både som id och version: användare i listor och närvarouppdateringar bär bara
+ * hashen, och klienten hämtar bilden bara när hashen har ändrats.
  *
  */
 public class User implements Serializable {
 
+    private static final long serialVersionUID = 6896784871816432234L;
+
     private String name;
     private ImageIcon profilePic;
+    private String avatarHash;
 
     /**
      * Skapar en ny användare med namn och profilbild.
@@ -80,4 +87,22 @@ public class User implements Serializable {
     public void setProfilePic(ImageIcon profilePic) {
         this.profilePic = profilePic;
     }
+
+    /**
+     * Hämtar hashen för användarens profilbild.
+     *
+     * @return SHA-256-hashen för profilbildens PNG-bytes som hex, eller null om användaren saknar profilbild.
+     */
+    public String getAvatarHash() {
+        return avatarHash;
+    }
+
+    /**
+     * Sätter hashen för användarens profilbild.
+     *
+     * @param avatarHash SHA-256-hashen för profilbildens PNG-bytes som hex.
+     */
+    public void setAvatarHash(String avatarHash) {
+        this.avatarHash = avatarHash;
+    }
 }
@@ -0,0 +1,20 @@
+package Common;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * En inkommande objektström från en motpart, oberoende av hur objekten kodas på tråden.
+ *
+ */
+public interface WireInput extends Closeable {
+
+    /**
+     * Läser nästa objekt från strömmen. Blockerar tills ett helt objekt finns.
+     *
+     * @return Det lästa objektet.
+     * @throws IOException Om läsningen misslyckas eller strömmen är stängd.
+     * @throws ClassNotFoundException Om objektets klass inte kan hittas.
+     */
+    Object readObject() throws IOException, ClassNotFoundException;
+}
@@ -0,0 +1,26 @@
+package Common;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * En utgående objektström mot en motpart, oberoende av hur objekten kodas på tråden.
+ *
+ */
+public interface WireOutput extends Closeable {
+
+    /**
+     * Skriver ett objekt till strömmen.
+     *
+     * @param obj Objektet som ska skrivas.
+     * @throws IOException Om skrivningen misslyckas.
+     */
+    void writeObject(Object obj) throws IOException;
+
+    /**
+     * Tömmer eventuella buffrade data till den underliggande strömmen.
+     *
+     * @throws IOException Om skrivningen misslyckas.
+     */
+    void flush() throws IOException;
+}
@@ -171,6 +171,7 @@ public class ChatWindow extends JFrame implements ActionListener {
 
     /**
      * Lägger till ett meddelande i dokumentet för chattfönstret. Hanterar både text- och bildmeddelanden.
+     * En bild som bara finns som miniatyr visas som en knapp som öppnar originalet.
      *
      * @param message Meddelandet som ska läggas till i chattfönstret.
      */
@@ -192,6 +193,14 @@ public class ChatWindow extends JFrame implements ActionListener {
                 chatDisplayArea.setCaretPosition(imageEnd);
                 chatDisplayArea.insertIcon(imageIcon);
                 doc.insertString(doc.getLength(), "\n", null);
+            } else if (message.getThumbnail() != null) {
+                JButton thumbnail = new JButton(new ImageIcon(message.getThumbnail()));
+                thumbnail.setToolTipText("Show full size");
+                thumbnail.addActionListener(e -> client.showOriginal(message.getImageHash()));
+                doc.insertString(doc.getLength(), senderName + ": (Image)\n", null);
+                chatDisplayArea.setCaretPosition(doc.getLength());
+                chatDisplayArea.insertComponent(thumbnail);
+                doc.insertString(doc.getLength(), "\n", null);
             }
 
             if (message.getMessage() != null) {
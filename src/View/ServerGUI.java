@@ -116,6 +116,10 @@ public class ServerGUI extends JFrame {
         });
         timeSelect.add(selectButton);
 
+        JButton metricsButton = new JButton("Metrics");
+        metricsButton.addActionListener(e -> JOptionPane.showMessageDialog(this, server.getMetrics().summary(), "Server metrics", JOptionPane.INFORMATION_MESSAGE));
+        timeSelect.add(metricsButton);
+
         getContentPane().add(timeSelect, BorderLayout.CENTER);
 
         JLabel upperLabel = new JLabel("ServerPack.serverMap.Server Traffic");
@@ -150,12 +154,14 @@ public class ServerGUI extends JFrame {
 
     /**
      * Uppdaterar GUI med ett nytt meddelande och lagrar det i serverloggen.
+     * Textområdet uppdateras på Swings händelsetråd så att anropande hanterartrådar inte
+     * blockeras av dokumentets lås.
      *
      * @param message Meddelandet som ska läggas till i textområdet och loggen.
      */
 
     public void updateServerGUI(String message) {
-        textArea.append(message);
+        SwingUtilities.invokeLater(() -> textArea.append(message));
         server.storeInLog(message);
     }
 
@@ -167,8 +173,10 @@ public class ServerGUI extends JFrame {
     public void addUser(String username) {
         LocalDateTime currentTime = LocalDateTime.now();
         String logMessage = currentTime.format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss")) + " " + username + " Connected\n";
-        userListArea.append(username + "\n");
-        textArea.append(logMessage);
+        SwingUtilities.invokeLater(() -> {
+            userListArea.append(username + "\n");
+            textArea.append(logMessage);
+        });
         server.storeInLog(logMessage);
     }
 
@@ -181,11 +189,13 @@ public class ServerGUI extends JFrame {
         LocalDateTime currentTime = LocalDateTime.now();
         String logMessage = currentTime.format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss")) + " " + username + " Disconnected\n";
 
-        String users = userListArea.getText();
-        String removeUser = users.replace(username + "\n", "");
+        SwingUtilities.invokeLater(() -> {
+            String users = userListArea.getText();
+            String removeUser = users.replace(username + "\n", "");
 
-        userListArea.setText(removeUser);
-        textArea.append(logMessage);
+            userListArea.setText(removeUser);
+            textArea.append(logMessage);
+        });
         server.storeInLog(logMessage);
     }
 
@@ -193,38 +203,29 @@ public class ServerGUI extends JFrame {
     /**
      * Läser och visar filtrerade logginlägg baserade på angivet datum och tid.
      * Använder textfälten för datum och tid för att bestämma vilka logginlägg som ska visas.
+     * Loggens index gör att bara den del av loggen som ligger i intervallet läses.
      */
     public void readFile() {
-        String filePath = "server_log.txt";
         DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
 
-        LocalDateTime fromDateTime = LocalDateTime.parse(dateField.getText() + " " + timeField.getText(), formatter);
-        LocalDateTime toDateTime = LocalDateTime.parse(secondDateTimeField.getText() + " " + secondTimeField.getText(), formatter);
+        LocalDateTime fromDateTime;
+        LocalDateTime toDateTime;
+        try {
+            fromDateTime = LocalDateTime.parse(dateField.getText() + " " + timeField.getText(), formatter);
+            toDateTime = LocalDateTime.parse(secondDateTimeField.getText() + " " + secondTimeField.getText(), formatter);
+        } catch (DateTimeParseException e) {
+            JOptionPane.showMessageDialog(this, "Error parsing date: " + e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
 
         textArea.setText("");
 
-        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(filePath), "UTF-8"))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                if (line.trim().isEmpty()) {
-                    continue;
-                }
-
-                try {
-                    String dateTimeString = line.substring(0, 19);
-                    LocalDateTime messageDateTime = LocalDateTime.parse(dateTimeString, formatter);
-
-                    if ((messageDateTime.isEqual(fromDateTime) || messageDateTime.isAfter(fromDateTime)) &&
-                            (messageDateTime.isEqual(toDateTime) || messageDateTime.isBefore(toDateTime))) {
-                        textArea.append(line + "\n");
-                    }
-                } catch (DateTimeParseException e) {
-                    JOptionPane.showMessageDialog(this, "Error parsing log entry: " + e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
-
-                }
+        try {
+            StringBuilder text = new StringBuilder();
+            for (String line : server.readLog(fromDateTime, toDateTime)) {
+                text.append(line).append("\n");
             }
-        } catch (FileNotFoundException e) {
-            JOptionPane.showMessageDialog(this, "Log file not found: " + e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+            textArea.append(text.toString());
         } catch (IOException e) {
             JOptionPane.showMessageDialog(this, "Error reading log file: " + e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
         }
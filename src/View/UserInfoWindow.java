@@ -28,9 +28,12 @@ public class UserInfoWindow extends JFrame implements ActionListener {
     private JList<String> connectedClientsList;
     private DefaultListModel<String> savedContactsModel;
     private DefaultListModel<String> connectedClientsModel;
+    private JList<String> groupsList;
+    private DefaultListModel<String> groupsModel;
     private List<User> listOfUsers;
     private JButton saveContactBtn;
     private JButton openChatBtn;
+    private JButton createGroupBtn;
     private JButton disconnectBtn;
     private User sender;
     private User receiver;
@@ -59,6 +62,8 @@ public class UserInfoWindow extends JFrame implements ActionListener {
                     loadedContacts = (List<Contacts>) evt.getNewValue();
 
                     updateSavedContactsList(loadedContacts);
+                } else if ("groupsUpdated".equals(evt.getPropertyName())) {
+                    updateGroupsList(client.getGroups());
                 }
             }
         });
@@ -94,7 +99,7 @@ public class UserInfoWindow extends JFrame implements ActionListener {
         userPanel.add(usernameLbl);
         add(userPanel, BorderLayout.NORTH);
 
-        JPanel contactsPanel = new JPanel(new GridLayout(1, 2, 10, 10));
+        JPanel contactsPanel = new JPanel(new GridLayout(1, 3, 10, 10));
 
         savedContactsModel = new DefaultListModel<>();
         savedContactsList = new JList<>(savedContactsModel);
@@ -108,15 +113,33 @@ public class UserInfoWindow extends JFrame implements ActionListener {
 
         connectedClientsModel = new DefaultListModel<>();
         connectedClientsList = new JList<>(connectedClientsModel);
-        connectedClientsList.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        connectedClientsList.setSelectionMode(ListSelectionModel.MULTIPLE_INTERVAL_SELECTION);
+        connectedClientsList.setCellRenderer(new DefaultListCellRenderer() {
+            @Override
+            public Component getListCellRendererComponent(JList<?> list, Object value, int index,
+                                                          boolean isSelected, boolean cellHasFocus) {
+                JLabel label = (JLabel) super.getListCellRendererComponent(list, value, index, isSelected, cellHasFocus);
+                label.setIcon(client.getAvatarCache().get(findUserByUsername((String) value)));
+                return label;
+            }
+        });
 
         JPanel connectedClientsPanel = new JPanel(new BorderLayout());
         JLabel connectedClientsLabel = new JLabel("Online Users");
         connectedClientsPanel.add(connectedClientsLabel, BorderLayout.NORTH);
         connectedClientsPanel.add(new JScrollPane(connectedClientsList), BorderLayout.CENTER);
 
+        groupsModel = new DefaultListModel<>();
+        groupsList = new JList<>(groupsModel);
+        groupsList.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+
+        JPanel groupsPanel = new JPanel(new BorderLayout());
+        groupsPanel.add(new JLabel("Groups"), BorderLayout.NORTH);
+        groupsPanel.add(new JScrollPane(groupsList), BorderLayout.CENTER);
+
         contactsPanel.add(savedContactsPanel);
         contactsPanel.add(connectedClientsPanel);
+        contactsPanel.add(groupsPanel);
 
         JPanel buttonPanel = new JPanel();
         saveContactBtn = new JButton("Save contact");
@@ -125,6 +148,9 @@ public class UserInfoWindow extends JFrame implements ActionListener {
         openChatBtn = new JButton("Open chat");
         openChatBtn.addActionListener(this);
         buttonPanel.add(openChatBtn);
+        createGroupBtn = new JButton("Create group");
+        createGroupBtn.addActionListener(this);
+        buttonPanel.add(createGroupBtn);
 
         disconnectBtn = new JButton("Disconnect");  // Skapa knappen
         disconnectBtn.addActionListener(this);      // Lyssnare för knappen
@@ -137,7 +163,7 @@ public class UserInfoWindow extends JFrame implements ActionListener {
 
         add(contactsPanel, BorderLayout.CENTER);
 
-        setSize(450, 500);
+        setSize(600, 500);
         setLocationRelativeTo(null);
 
         setVisible(true);
@@ -182,8 +208,7 @@ public class UserInfoWindow extends JFrame implements ActionListener {
      */
     public void updateConnectedClientsList(List<User> connectedClients, User currentUser) {
         connectedClientsModel.clear();
-        listOfUsers.clear();
-        listOfUsers = connectedClients;
+        listOfUsers = new ArrayList<>(connectedClients);
         sender = currentUser;
 
         for (User connectedUser : connectedClients) {
@@ -195,7 +220,36 @@ public class UserInfoWindow extends JFrame implements ActionListener {
     }
 
     /**
-     * Öppnar ett chattfönster med den valda användaren.
+     * Tillämpar en närvaroändring på listan över onlineanvändare utan att bygga om hela listan.
+     *
+     * @param joined Användare som har anslutit.
+     * @param left Användare som har lämnat.
+     * @param currentUser Den nuvarande inloggade användaren.
+     */
+    public void applyPresenceDelta(List<User> joined, List<User> left, User currentUser) {
+        for (User leftUser : left) {
+            listOfUsers.remove(leftUser);
+            connectedClientsModel.removeElement(leftUser.getName());
+        }
+        for (User joinedUser : joined) {
+            if (!listOfUsers.contains(joinedUser)) {
+                listOfUsers.add(joinedUser);
+            }
+            if (!joinedUser.equals(currentUser) && !connectedClientsModel.contains(joinedUser.getName())) {
+                connectedClientsModel.addElement(joinedUser.getName());
+            }
+        }
+    }
+
+    /**
+     * Ritar om listan över onlineanvändare, t.ex. när en profilbild har hämtats.
+     */
+    public void repaintOnlineUsers() {
+        connectedClientsList.repaint();
+    }
+
+    /**
+     * Öppnar ett chattfönster med den valda användaren eller gruppen.
      */
 
     private void openChatWindow() {
@@ -203,6 +257,13 @@ public class UserInfoWindow extends JFrame implements ActionListener {
         if (selectedUsername == null) {
             selectedUsername = savedContactsList.getSelectedValue();
         }
+        if (selectedUsername == null) {
+            selectedUsername = groupsList.getSelectedValue();
+        }
+        if (selectedUsername != null && client.isGroup(selectedUsername)) {
+            client.openChat(new User(selectedUsername, null));
+            return;
+        }
         if (selectedUsername == null) {
             JOptionPane.showMessageDialog(this, "No user selected.");
             return;
@@ -249,11 +310,40 @@ public class UserInfoWindow extends JFrame implements ActionListener {
             saveContact();
         } else if (e.getSource() == openChatBtn) {
             openChatWindow();
+        } else if (e.getSource() == createGroupBtn) {
+            createGroup();
         } else if (e.getSource() == disconnectBtn) {
             sendLogoutMessage();
         }
     }
 
+    /**
+     * Skapar en gruppkonversation med de valda onlineanvändarna. Användaren får ange gruppens namn.
+     */
+    private void createGroup() {
+        List<String> members = connectedClientsList.getSelectedValuesList();
+        if (members.isEmpty()) {
+            JOptionPane.showMessageDialog(this, "Select the online users to add to the group.");
+            return;
+        }
+        String name = JOptionPane.showInputDialog(this, "Group name:");
+        if (name != null && !name.trim().isEmpty()) {
+            client.createGroup(name.trim(), members);
+        }
+    }
+
+    /**
+     * Uppdaterar listan över grupper som användaren är medlem i.
+     *
+     * @param groups Gruppernas namn.
+     */
+    private void updateGroupsList(List<String> groups) {
+        groupsModel.clear();
+        for (String group : groups) {
+            groupsModel.addElement(group);
+        }
+    }
+
     /**
      * Skickar ett meddelande till servern för att logga ut den nuvarande användaren.
      */
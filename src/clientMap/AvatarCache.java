@@ -0,0 +1,82 @@
+package clientMap;
+
+import Common.BinaryCodec;
+import Common.User;
+
+import javax.swing.*;
+import java.awt.*;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Klientens cache för andra användares profilbilder, nedskalade till storleken i listan över
+ * onlineanvändare. Varje bild sparas med sin hash, så en användares bild hämtas bara igen när
+ * användaren har bytt bild. När cachen är full kastas den bild som använts längst tillbaka.
+ *
+ */
+public class AvatarCache {
+
+    /** Bredd och höjd i pixlar för profilbilderna i cachen. */
+    public static final int ICON_SIZE = 32;
+
+    private final Map<String, Entry> entries;
+
+    private static final class Entry {
+        private final String hash;
+        private final ImageIcon icon;
+
+        Entry(String hash, ImageIcon icon) {
+            this.hash = hash;
+            this.icon = icon;
+        }
+    }
+
+    /**
+     * @param maxEntries Högsta antal profilbilder i cachen.
+     */
+    public AvatarCache(int maxEntries) {
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * @param user Användaren.
+     * @return Användarens profilbild, eller null om den saknas eller har ändrats sedan den sparades.
+     */
+    public synchronized ImageIcon get(User user) {
+        if (user == null || user.getAvatarHash() == null) {
+            return null;
+        }
+        Entry entry = entries.get(user.getName());
+        return entry != null && entry.hash.equals(user.getAvatarHash()) ? entry.icon : null;
+    }
+
+    /**
+     * @param user Användaren.
+     * @return true om användarens aktuella profilbild finns i cachen, eller om användaren saknar profilbild.
+     */
+    public synchronized boolean isCurrent(User user) {
+        return user.getAvatarHash() == null || get(user) != null;
+    }
+
+    /**
+     * Sparar en användares profilbild.
+     *
+     * @param name Användarens namn.
+     * @param hash Bildens hash.
+     * @param bytes Bildens kodade bytes.
+     * @throws IOException Om bilden inte kunde avkodas.
+     */
+    public void put(String name, String hash, byte[] bytes) throws IOException {
+        ImageIcon image = BinaryCodec.fromBytes(bytes);
+        ImageIcon icon = new ImageIcon(image.getImage().getScaledInstance(ICON_SIZE, ICON_SIZE, Image.SCALE_SMOOTH));
+        synchronized (this) {
+            entries.put(name, new Entry(hash, icon));
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package clientMap;
+
+import Common.BinaryCodec;
+import Common.ContentHash;
+import Common.Message;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Klientens cache för bilder, adresserade med sin hash. Bilder som klienten skickar eller tar
+ * emot sparas här, så att samma bild bara behöver hämtas från servern en gång. När cachen
+ * överskrider sin storlek kastas de bilder som använts längst tillbaka.
+ *
+ */
+public class BlobCache {
+
+    private final long maxBytes;
+    private final LinkedHashMap<String, byte[]> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+
+    /**
+     * @param maxBytes Största sammanlagda storlek i bytes för bilderna i cachen.
+     */
+    public BlobCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Sparar en bild i cachen.
+     *
+     * @param hash Bildens hash.
+     * @param data Bildens bytes.
+     */
+    public synchronized void put(String hash, byte[] data) {
+        byte[] previous = entries.put(hash, data);
+        if (previous != null) {
+            bytes -= previous.length;
+        }
+        bytes += data.length;
+        Iterator<Map.Entry<String, byte[]>> eldest = entries.entrySet().iterator();
+        while (bytes > maxBytes && eldest.hasNext()) {
+            Map.Entry<String, byte[]> entry = eldest.next();
+            if (entry.getKey().equals(hash)) {
+                continue;
+            }
+            bytes -= entry.getValue().length;
+            eldest.remove();
+        }
+    }
+
+    /**
+     * @param hash Bildens hash.
+     * @return Bildens bytes, eller null om bilden inte finns i cachen.
+     */
+    public synchronized byte[] get(String hash) {
+        return entries.get(hash);
+    }
+
+    /**
+     * Gör om ett meddelande med en bild till ett meddelande som bara refererar till bildens hash.
+     * Bilden sparas i cachen så att den kan laddas upp om servern ber om den.
+     *
+     * @param message Meddelandet som ska skickas.
+     * @return Meddelandet självt om det saknar bild, annars en kopia med hashen i stället för bilden.
+     */
+    public Message toReference(Message message) {
+        if (message.getImage() == null) {
+            return message;
+        }
+        try {
+            byte[] data = BinaryCodec.toPng(message.getImage());
+            String hash = ContentHash.of(data);
+            put(hash, data);
+            Message reference = new Message(message.getSender(), message.getReceiver(), message.getMessage());
+            reference.setImageHash(hash);
+            reference.setGroup(message.getGroup());
+            return reference;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return message;
+        }
+    }
+
+    /**
+     * Sätter in bilden i ett meddelande som bara bär en referens, om bilden finns i cachen.
+     *
+     * @param message Det mottagna meddelandet, som ändras på plats.
+     * @return true om meddelandet har sin bild eller inte har någon bild, false om bilden måste hämtas.
+     */
+    public boolean resolve(Message message) {
+        if (message.getImageHash() == null || message.getImage() != null) {
+            return true;
+        }
+        byte[] data = get(message.getImageHash());
+        if (data == null) {
+            return false;
+        }
+        try {
+            message.setImage(BinaryCodec.fromBytes(data));
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+}
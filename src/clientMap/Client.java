@@ -1,7 +1,6 @@
 package clientMap;
 
-import Common.Message;
-import Common.User;
+import Common.*;
 import View.ChatWindow;
 import View.LoginWindow;
 import View.UserInfoWindow;
@@ -11,7 +10,11 @@ import java.beans.PropertyChangeListener;
 import java.beans.PropertyChangeSupport;
 import java.io.*;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Hanterar klientens huvudlogik för anslutning, chattfönsterhantering,
@@ -26,8 +29,18 @@ public class Client {
     private LoginWindow loginWindow;
     private UserInfoWindow userInfoWindow;
     private Socket socket;
-    private ObjectOutputStream oos;
+    private WireOutput output;
+    private PayloadCodec codec;
     private Sender sender;
+    private BlobCache blobCache = new BlobCache(Long.getLong("chatt.blobCache.bytes", 64L * 1024 * 1024));
+    private int blobChunkBytes = Integer.getInteger("chatt.blob.chunkBytes", 64 * 1024);
+    private Set<String> requestedOriginals = Collections.synchronizedSet(new HashSet<>());
+    private AvatarCache avatarCache = new AvatarCache(Integer.getInteger("chatt.avatarCache.entries", 256));
+    private Map<String, Set<String>> requestedAvatars = new HashMap<>();
+    private Map<String, List<String>> groups = Collections.synchronizedMap(new TreeMap<>());
+    private long heartbeatIntervalMillis = Long.getLong("chatt.heartbeat.intervalMs", 15_000);
+    private long heartbeatTimeoutMillis = Long.getLong("chatt.heartbeat.timeoutMs", 45_000);
+    private ScheduledExecutorService heartbeats;
     private static final String CONTACTS_FILE_PREFIX = "contacts_";
     private static final String CONTACTS_FILE_SUFFIX = ".dat";
     private List<Contacts> contactsSaved = new ArrayList<>();
@@ -85,7 +98,7 @@ public class Client {
     /**
      * Öppnar ett chattfönster för en mottagare. Om ett chattfönster redan är öppet,
      * tar det befintliga fönstret fram. Annars skapas ett nytt chattfönster.
-     * @param receiver Mottagaren av meddelanden.
+     * @param receiver Mottagaren av meddelanden, eller en användare med en grupps namn för en gruppkonversation.
      */
     public void openChat(User receiver) {
         ChatWindow chatWindow = openChatWindows.get(receiver.getName());
@@ -93,7 +106,7 @@ public class Client {
             chatWindow.toFront();
             chatWindow.requestFocus();
         } else {
-            String chatKey = getChatKey(user, receiver);
+            String chatKey = isGroup(receiver.getName()) ? receiver.getName() : getChatKey(user, receiver);
             System.out.println(chatKey);
             List<Message> history = conversationHistory.getOrDefault(chatKey, new ArrayList<>());
             chatWindow = new ChatWindow(user, receiver, this);
@@ -118,14 +131,25 @@ public class Client {
         try {
 
             socket = new Socket("localhost", port);
-            oos = new ObjectOutputStream(socket.getOutputStream());
+            socket.setTcpNoDelay(true);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            Protocol.writePreamble(out, preferredCodec());
+            out.flush();
+            int acceptedCodec = socket.getInputStream().read();
+            if (acceptedCodec == -1) {
+                throw new EOFException("Server closed the connection during handshake");
+            }
+            codec = Protocol.codecFor(acceptedCodec);
+            output = new FramedOutput(out, codec);
             this.sender = new Sender(this);
-            oos.writeObject(user);
-            oos.flush();
+            output.writeObject(user);
+            output.flush();
 
+            socket.setSoTimeout((int) heartbeatTimeoutMillis);
             this.receiver = new Receiver(socket, this);
             Thread receiveInfoThread = new Thread(receiver);
             receiveInfoThread.start();
+            startHeartbeats();
             //sender.requestSavedContacts();
         } catch (Exception e) {
             e.printStackTrace();
@@ -134,6 +158,63 @@ public class Client {
     }
 
 
+    /**
+     * Skickar ett hjärtslag till servern med jämna mellanrum. Servern svarar på varje hjärtslag,
+     * så mottagaren får något att läsa även när ingen chattar och kan märka om servern har
+     * försvunnit. Styrs av {@code chatt.heartbeat.intervalMs} och {@code chatt.heartbeat.timeoutMs}.
+     */
+    private void startHeartbeats() {
+        heartbeats = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+        heartbeats.scheduleAtFixedRate(() -> {
+            if (!socket.isClosed()) {
+                sender.send(new Heartbeat());
+            }
+        }, heartbeatIntervalMillis, heartbeatIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stänger anslutningen när servern inte har hörts av inom tiden för hjärtslag eller har
+     * stängt anslutningen, och talar om det för användaren.
+     *
+     * @param cause Felet som läsningen från servern gav.
+     */
+    public void connectionLost(IOException cause) {
+        if (cause instanceof SocketTimeoutException) {
+            System.out.println("No response from server for " + heartbeatTimeoutMillis + " ms, closing connection.");
+        } else {
+            System.out.println("Connection to server lost (" + cause + "), closing connection.");
+        }
+        if (heartbeats != null) {
+            heartbeats.shutdownNow();
+        }
+        try {
+            socket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        SwingUtilities.invokeLater(() -> JOptionPane.showMessageDialog(null, "Lost connection to the server"));
+    }
+
+    /**
+     * Väljer vilken kodning klienten ber servern om. Styrs av systemegenskapen
+     * {@code chatt.codec} där "serialization" ger Java-serialisering, annars används den binära kodningen.
+     * Klienten ber också om komprimerade ramar om inte {@code chatt.compression} är "false";
+     * servern avgör om de används.
+     * @return Kodningens id.
+     */
+    private byte preferredCodec() {
+        String codecName = System.getProperty("chatt.codec", "binary");
+        int codec = "serialization".equalsIgnoreCase(codecName) ? Protocol.CODEC_SERIALIZATION : Protocol.CODEC_BINARY;
+        if (Boolean.parseBoolean(System.getProperty("chatt.compression", "true"))) {
+            codec |= Protocol.FLAG_DEFLATE;
+        }
+        return (byte) codec;
+    }
+
     /**
      * Sparar den aktuella användarens kontaktlista till en fil.
      */
@@ -181,20 +262,240 @@ public class Client {
     }
 
     /**
-     * Skickar ett meddelande till servern som vidarebefordrar till mottagaren.
+     * Skickar ett meddelande till servern som vidarebefordrar till mottagaren. Är mottagaren
+     * en grupp skickas meddelandet en gång och servern vidarebefordrar det till alla medlemmar.
      * @param message Meddelandet som ska skickas.
      */
     public void sendMessage(Message message) {
+        if (isGroup(message.getReceiver().getName())) {
+            message.setGroup(message.getReceiver().getName());
+        }
         sender.sendMessage(message);
 
     }
 
     /**
-     * Lagrar ett skickat eller mottaget meddelande i konversationshistoriken.
+     * Ber servern att skapa en gruppkonversation, eller ändra medlemmarna i en befintlig grupp.
+     * Användaren själv blir alltid medlem.
+     * @param name Gruppens namn. Får {@link GroupUpdate#PREFIX} först om det saknas.
+     * @param members Namnen på de andra medlemmarna.
+     */
+    public void createGroup(String name, List<String> members) {
+        String groupName = GroupUpdate.isGroupName(name) ? name : GroupUpdate.PREFIX + name;
+        List<String> all = new ArrayList<>(members);
+        all.add(user.getName());
+        sender.send(new GroupUpdate(groupName, all));
+    }
+
+    /**
+     * Anropas när servern har skickat en grupp som användaren är eller har varit medlem i.
+     * @param update Gruppen och dess medlemmar.
+     */
+    public void groupUpdated(GroupUpdate update) {
+        if (update.getMembers().contains(user.getName())) {
+            groups.put(update.getName(), update.getMembers());
+        } else {
+            groups.remove(update.getName());
+        }
+        SwingUtilities.invokeLater(() -> firePropertyChange("groupsUpdated", null, getGroups()));
+    }
+
+    /**
+     * @param name Ett namn.
+     * @return true om namnet är en grupp som användaren är medlem i.
+     */
+    public boolean isGroup(String name) {
+        return groups.containsKey(name);
+    }
+
+    /**
+     * Hämtar grupperna som användaren är medlem i.
+     * @return Gruppernas namn, i bokstavsordning.
+     */
+    public List<String> getGroups() {
+        synchronized (groups) {
+            return new ArrayList<>(groups.keySet());
+        }
+    }
+
+    /**
+     * Ber servern om en ny ögonblicksbild av onlineanvändarna.
+     * @param lastVersion Den senaste närvaroversionen som klienten har tillämpat.
+     */
+    public void requestPresenceSnapshot(long lastVersion) {
+        sender.send(new PresenceResync(lastVersion));
+    }
+
+    /**
+     * Talar om för servern att klienten kan ta emot fler väntande meddelanden.
+     * @param messages Antal meddelanden som klienten kan ta emot.
+     */
+    public void grantBacklogCredit(int messages) {
+        sender.send(new BacklogCredit(messages));
+    }
+
+    /**
+     * Ber servern om nästa del av en bild som klienten inte har i sin cache.
+     * @param hash Bildens hash.
+     * @param offset Antal bytes av bilden som redan har tagits emot.
+     */
+    public void requestBlob(String hash, long offset) {
+        sender.send(new BlobRequest(hash, offset));
+    }
+
+    /**
+     * Laddar upp en del av en bild från cachen till servern, som svar på att servern saknar den.
+     * Servern ber om en del i taget, så meddelanden som skickas under tiden behöver bara vänta på en del.
+     * @param hash Bildens hash.
+     * @param offset Var delen ska börja.
+     */
+    public void uploadBlob(String hash, long offset) {
+        byte[] bytes = blobCache.get(hash);
+        if (bytes == null) {
+            System.out.println("Cannot upload image " + hash + ", it is no longer cached");
+            return;
+        }
+        int start = (int) Math.min(Math.max(0, offset), bytes.length);
+        int end = (int) Math.min((long) start + blobChunkBytes, bytes.length);
+        sender.send(new BlobData(hash, start, bytes.length, Arrays.copyOfRange(bytes, start, end)));
+    }
+
+    /**
+     * Visar originalet till en bild som bara har visats som miniatyr. Finns originalet inte
+     * i cachen hämtas det från servern och visas när det har kommit.
+     * @param hash Bildens hash.
+     */
+    public void showOriginal(String hash) {
+        if (blobCache.get(hash) != null) {
+            openImageWindow(hash);
+        } else if (requestedOriginals.add(hash)) {
+            requestBlob(hash, 0);
+        }
+    }
+
+    /**
+     * @param hash Bildens hash.
+     * @return true om användaren väntar på originalet till bilden.
+     */
+    public boolean isOriginalRequested(String hash) {
+        return requestedOriginals.contains(hash);
+    }
+
+    /**
+     * Anropas när en bild har hämtats. Visar bilden om användaren har bett om att få se den.
+     * @param hash Bildens hash.
+     */
+    public void originalArrived(String hash) {
+        if (requestedOriginals.remove(hash) && blobCache.get(hash) != null) {
+            openImageWindow(hash);
+        }
+    }
+
+    private void openImageWindow(String hash) {
+        try {
+            ImageIcon image = BinaryCodec.fromBytes(blobCache.get(hash));
+            SwingUtilities.invokeLater(() -> {
+                JFrame frame = new JFrame("Image");
+                frame.setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
+                frame.add(new JScrollPane(new JLabel(image)));
+                frame.pack();
+                frame.setLocationRelativeTo(null);
+                frame.setVisible(true);
+            });
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Ser till att profilbilderna för användarna finns i cachen. En profilbild hämtas bara om
+     * användarens hash inte är den som redan finns i cachen, och bara en gång per hash.
+     * @param users Användarna från en närvarouppdatering.
+     */
+    public void refreshAvatars(List<User> users) {
+        for (User other : users) {
+            if (other.equals(user) || avatarCache.isCurrent(other)) {
+                continue;
+            }
+            String hash = other.getAvatarHash();
+            byte[] bytes = blobCache.get(hash);
+            if (bytes != null) {
+                cacheAvatar(other.getName(), hash, bytes);
+                continue;
+            }
+            boolean first;
+            synchronized (requestedAvatars) {
+                Set<String> names = requestedAvatars.computeIfAbsent(hash, h -> new HashSet<>());
+                first = names.isEmpty();
+                names.add(other.getName());
+            }
+            if (first) {
+                requestBlob(hash, 0);
+            }
+        }
+    }
+
+    /**
+     * @param hash Bildens hash.
+     * @return true om klienten väntar på bilden som profilbild.
+     */
+    public boolean isAvatarRequested(String hash) {
+        synchronized (requestedAvatars) {
+            return requestedAvatars.containsKey(hash);
+        }
+    }
+
+    /**
+     * Anropas när en bild har hämtats. Sparar den som profilbild för användarna som väntade på
+     * den och ritar om listan över onlineanvändare.
+     * @param hash Bildens hash.
+     */
+    public void avatarArrived(String hash) {
+        Set<String> names;
+        synchronized (requestedAvatars) {
+            names = requestedAvatars.remove(hash);
+        }
+        byte[] bytes = blobCache.get(hash);
+        if (names == null || bytes == null) {
+            return;
+        }
+        for (String name : names) {
+            cacheAvatar(name, hash, bytes);
+        }
+        SwingUtilities.invokeLater(() -> userInfoWindow.repaintOnlineUsers());
+    }
+
+    private void cacheAvatar(String name, String hash, byte[] bytes) {
+        try {
+            avatarCache.put(name, hash, bytes);
+        } catch (IOException e) {
+            System.out.println("Could not decode the profile picture of " + name + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Hämtar klientens cache för andra användares profilbilder.
+     * @return Cachen.
+     */
+    public AvatarCache getAvatarCache() {
+        return avatarCache;
+    }
+
+    /**
+     * Hämtar klientens cache för bilder.
+     * @return Cachen.
+     */
+    public BlobCache getBlobCache() {
+        return blobCache;
+    }
+
+    /**
+     * Lagrar ett skickat eller mottaget meddelande i konversationshistoriken. Meddelanden till en
+     * grupp lagras under gruppens namn.
      * @param message Meddelandet som ska lagras.
      */
     public void storeMessage(Message message) {
-        String chatKey = getChatKey(message.getSender(), message.getReceiver());
+        String chatKey = message.getGroup() != null ? message.getGroup() : getChatKey(message.getSender(), message.getReceiver());
         conversationHistory.computeIfAbsent(chatKey, k -> new ArrayList<>()).add(message);
     }
 
@@ -211,11 +512,19 @@ public class Client {
     }
 
     /**
-     * Hämtar ObjectOutputStream associerad med denna klient.
-     * @return ObjectOutputStream använd för att skicka objekt till servern.
+     * Hämtar utströmmen associerad med denna klient.
+     * @return Utströmmen som används för att skicka objekt till servern.
+     */
+    public WireOutput getOutput() {
+        return output;
+    }
+
+    /**
+     * Hämtar kodningen som servern har valt för ramarna på anslutningen.
+     * @return Kodaren för ramarnas innehåll.
      */
-    public ObjectOutputStream getOos() {
-        return oos;
+    public PayloadCodec getCodec() {
+        return codec;
     }
 
     /**
@@ -255,8 +564,8 @@ public class Client {
     public void closeSocket() {
         try {
 
-            if (oos != null) {
-                oos.close();
+            if (output != null) {
+                output.close();
             }
             if (socket != null && !socket.isClosed()) {
                 socket.close();
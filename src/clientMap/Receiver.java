@@ -1,14 +1,18 @@
 package clientMap;
 
-import Common.Message;
-import Common.User;
+import Common.*;
 import View.ChatWindow;
 
 import javax.swing.*;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
 import java.net.Socket;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Ansvarar för att lyssna efter och hantera inkommande meddelanden från servern.
@@ -17,8 +21,24 @@ import java.util.List;
 public class Receiver implements Runnable {
 
     private Client client;
-    private ObjectInputStream ois;
+    private WireInput ois;
     private Socket socket;
+    private long presenceVersion = -1;
+    private boolean resyncPending;
+    private Map<String, List<Message>> awaitingBlob = new HashMap<>();
+    private Map<String, Download> downloads = new HashMap<>();
+
+    /**
+     * En bild som hämtas i delar. Hashen räknas ut medan delarna kommer.
+     */
+    private static final class Download {
+        private final ByteArrayOutputStream bytes;
+        private final MessageDigest digest = ContentHash.newDigest();
+
+        Download(long total) {
+            bytes = new ByteArrayOutputStream((int) Math.min(total, 1024 * 1024));
+        }
+    }
 
     /**
      * Skapar en ny Receiver för att hantera inkommande meddelanden.
@@ -31,7 +51,7 @@ public class Receiver implements Runnable {
         this.socket = socket;
 
         try {
-            this.ois = new ObjectInputStream(client.getSocket().getInputStream());
+            this.ois = new FramedInput(new BufferedInputStream(client.getSocket().getInputStream()), client.getCodec());
         } catch (IOException e){
             e.printStackTrace();
         }
@@ -45,26 +65,35 @@ public class Receiver implements Runnable {
             while (!client.getSocket().isClosed()) {
                 try {
                     Object serverMessage = ois.readObject();
-                    if (serverMessage instanceof List<?>) {
-                        List<User> connectedUsers = (List<User>) serverMessage;
-                        SwingUtilities.invokeLater(() -> client.getUserInfoWindow().updateConnectedClientsList(connectedUsers, client.getUser()));
+                    if (serverMessage instanceof PresenceUpdate) {
+                        handlePresence((PresenceUpdate) serverMessage);
+
+                    } else if (serverMessage instanceof BacklogPage) {
+                        handleBacklog((BacklogPage) serverMessage);
 
                     } else if (serverMessage instanceof Message) {
-                        Message userMessage = (Message) serverMessage;
-                        client.storeMessage(userMessage);
-                        SwingUtilities.invokeLater(() -> {
-                            ChatWindow chatWindow = client.getOpenChatWindows().get(userMessage.getSender().getName());
-                            if (chatWindow != null) {
-                                chatWindow.displayMessage(userMessage);
-                            }
-                        });
+                        handleMessage((Message) serverMessage);
+
+                    } else if (serverMessage instanceof BlobData) {
+                        handleBlob((BlobData) serverMessage);
+
+                    } else if (serverMessage instanceof GroupUpdate) {
+                        client.groupUpdated((GroupUpdate) serverMessage);
+
+                    } else if (serverMessage instanceof Heartbeat) {
+                        // Servern svarar på klientens hjärtslag; att något lästes räcker.
+
+                    } else if (serverMessage instanceof BlobRequest) {
+                        BlobRequest request = (BlobRequest) serverMessage;
+                        client.uploadBlob(request.getHash(), request.getOffset());
                     }
                 } catch (IOException e) {
                     if (client.getSocket().isClosed()) {
                         System.out.println("Socket has been closed, exiting receiver thread.");
-                        break;
+                    } else {
+                        client.connectionLost(e);
                     }
-                    e.printStackTrace();
+                    break;
                 }
             }
         } catch (ClassNotFoundException ex) {
@@ -79,4 +108,117 @@ public class Receiver implements Runnable {
             }
         }
     }
+
+    /**
+     * Lagrar ett mottaget meddelande och visar det om chattfönstret med avsändaren är öppet.
+     * Ett meddelande som refererar till en bild som inte finns i cachen visas direkt med sin
+     * miniatyr om servern skickade en, annars väntar det tills bilden har hämtats från servern;
+     * bilden begärs bara en gång.
+     *
+     * @param userMessage Meddelandet från servern.
+     */
+    private void handleMessage(Message userMessage) {
+        if (!client.getBlobCache().resolve(userMessage) && userMessage.getThumbnail() == null) {
+            List<Message> waiting = awaitingBlob.computeIfAbsent(userMessage.getImageHash(), k -> new ArrayList<>());
+            waiting.add(userMessage);
+            if (waiting.size() == 1) {
+                client.requestBlob(userMessage.getImageHash(), 0);
+            }
+            return;
+        }
+        showMessage(userMessage);
+    }
+
+    /**
+     * Tar emot en del av en bild från servern och ber om nästa. När sista delen har kommit
+     * kontrolleras hashen, bilden sparas i cachen och meddelandena som väntade på den visas.
+     * Stämmer inte hashen visas meddelandena utan bild. Har användaren bett om att få se
+     * originalet till en miniatyr visas det.
+     *
+     * @param data Delen och bildens hash.
+     */
+    private void handleBlob(BlobData data) {
+        if (!awaitingBlob.containsKey(data.getHash()) && !client.isOriginalRequested(data.getHash())
+                && !client.isAvatarRequested(data.getHash())) {
+            return;
+        }
+        Download download = downloads.computeIfAbsent(data.getHash(), h -> new Download(data.getTotal()));
+        if (data.getOffset() != download.bytes.size()) {
+            System.out.println("Ignoring part of image " + data.getHash() + " at unexpected offset " + data.getOffset());
+            return;
+        }
+        download.bytes.write(data.getBytes(), 0, data.getBytes().length);
+        download.digest.update(data.getBytes());
+        if (!data.isLast()) {
+            client.requestBlob(data.getHash(), download.bytes.size());
+            return;
+        }
+        downloads.remove(data.getHash());
+        if (ContentHash.toHex(download.digest.digest()).equals(data.getHash())) {
+            client.getBlobCache().put(data.getHash(), download.bytes.toByteArray());
+        } else {
+            System.out.println("Discarding image " + data.getHash() + " that does not match its hash");
+        }
+        List<Message> waiting = awaitingBlob.remove(data.getHash());
+        if (waiting != null) {
+            for (Message message : waiting) {
+                client.getBlobCache().resolve(message);
+                showMessage(message);
+            }
+        }
+        client.originalArrived(data.getHash());
+        client.avatarArrived(data.getHash());
+    }
+
+    private void showMessage(Message userMessage) {
+        client.storeMessage(userMessage);
+        SwingUtilities.invokeLater(() -> {
+            String window = userMessage.getGroup() != null ? userMessage.getGroup() : userMessage.getSender().getName();
+            ChatWindow chatWindow = client.getOpenChatWindows().get(window);
+            if (chatWindow != null) {
+                chatWindow.displayMessage(userMessage);
+            }
+        });
+    }
+
+    /**
+     * Hanterar en sida med meddelanden som väntade medan användaren var offline och ger
+     * servern kredit för nästa sida om det finns fler.
+     *
+     * @param page Sidan från servern.
+     */
+    private void handleBacklog(BacklogPage page) {
+        for (Message message : page.getMessages()) {
+            handleMessage(message);
+        }
+        if (page.getRemaining() > 0) {
+            client.grantBacklogCredit(page.getMessages().size());
+        }
+    }
+
+    /**
+     * Tillämpar en närvarouppdatering från servern. En ögonblicksbild ersätter listan över
+     * onlineanvändare, en ändring tillämpas bara om den följer direkt efter den senaste versionen.
+     * Vid ett glapp ber klienten servern om en ny ögonblicksbild, en gång per glapp; ändringar
+     * som kommer innan ögonblicksbilden ignoreras. Profilbilder som är nya eller har ändrats hämtas.
+     *
+     * @param update Uppdateringen från servern.
+     */
+    private void handlePresence(PresenceUpdate update) {
+        if (update.isSnapshot()) {
+            presenceVersion = update.getVersion();
+            resyncPending = false;
+            client.refreshAvatars(update.getJoined());
+            SwingUtilities.invokeLater(() -> client.getUserInfoWindow().updateConnectedClientsList(update.getJoined(), client.getUser()));
+        } else if (presenceVersion < 0 || update.getVersion() <= presenceVersion) {
+            return;
+        } else if (update.getVersion() == presenceVersion + 1) {
+            presenceVersion = update.getVersion();
+            client.refreshAvatars(update.getJoined());
+            SwingUtilities.invokeLater(() -> client.getUserInfoWindow().applyPresenceDelta(update.getJoined(), update.getLeft(), client.getUser()));
+        } else if (!resyncPending) {
+            resyncPending = true;
+            client.requestPresenceSnapshot(presenceVersion);
+        }
+    }
 }
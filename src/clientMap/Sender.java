@@ -3,7 +3,6 @@ package clientMap;
 import Common.*;
 
 import java.io.IOException;
-import java.io.ObjectOutputStream;
 
 /**
  * Ansvarar för att skicka meddelanden från klienten till servern.
@@ -12,7 +11,7 @@ import java.io.ObjectOutputStream;
 public class Sender {
 
     private Client client;
-    private ObjectOutputStream oos;
+    private WireOutput output;
 
     /**
      * Skapar en ny Sender med en referens till klienten.
@@ -21,7 +20,7 @@ public class Sender {
      */
     public Sender(Client client) {
         this.client = client;
-        this.oos = client.getOos();
+        this.output = client.getOutput();
     }
 
     /**
@@ -29,11 +28,11 @@ public class Sender {
      * Sparar även meddelandet i klientens konversationshistorik.
      * @param message Meddelandet som ska skickas.
      */
-    public void sendMessage(Message message) {
+    public synchronized void sendMessage(Message message) {
         try {
-            if (oos != null) {
-                oos.writeObject(message);
-                oos.flush();
+            if (output != null) {
+                output.writeObject(client.getBlobCache().toReference(message));
+                output.flush();
                 client.storeMessage(message);
             } else {
                 System.out.println("Could not send message");
@@ -42,4 +41,20 @@ public class Sender {
             throw new RuntimeException(e);
         }
     }
+
+    /**
+     * Skickar ett kontrollobjekt till servern utan att spara det i historiken. Anropas från
+     * mottagartråden, så skrivningarna synkroniseras med {@link #sendMessage(Message)}.
+     * @param obj Objektet som ska skickas.
+     */
+    public synchronized void send(Object obj) {
+        try {
+            if (output != null) {
+                output.writeObject(obj);
+                output.flush();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
 }
@@ -0,0 +1,79 @@
+package serverMap;
+
+import Common.BinaryCodec;
+import Common.ContentHash;
+import Common.User;
+
+import javax.swing.*;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Håller reda på varje användares profilbild. Bilden som klienten skickar vid inloggningen
+ * lagras i {@link BlobStore} och ersätts i användaren med sin hash, så att användarlistor och
+ * närvarouppdateringar bara bär hashen. Klienterna hämtar själva bilden som en vanlig bild
+ * när hashen är ny för dem.
+ *
+ */
+public class AvatarRegistry {
+
+    private final BlobStore blobs;
+    private final Map<String, String> avatars = new ConcurrentHashMap<>();
+    private final AtomicLong changes = new AtomicLong();
+
+    /**
+     * @param blobs Lagringen som profilbilderna sparas i.
+     */
+    public AvatarRegistry(BlobStore blobs) {
+        this.blobs = blobs;
+    }
+
+    /**
+     * Registrerar profilbilden för en användare som loggar in. Användarens bild lagras och tas
+     * bort ur objektet, och hashen sätts i stället. En hash som servern inte har lagrad tas bort.
+     *
+     * @param user Användaren från inloggningen, som ändras på plats.
+     */
+    public void register(User user) {
+        ImageIcon profilePic = user.getProfilePic();
+        if (profilePic != null) {
+            try {
+                byte[] bytes = BinaryCodec.toPng(profilePic);
+                if (bytes != null) {
+                    String hash = ContentHash.of(bytes);
+                    blobs.put(hash, bytes);
+                    user.setAvatarHash(hash);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            user.setProfilePic(null);
+        }
+        String hash = user.getAvatarHash();
+        if (hash != null && !blobs.contains(hash)) {
+            user.setAvatarHash(null);
+            hash = null;
+        }
+        String previous = hash == null ? avatars.remove(user.getName()) : avatars.put(user.getName(), hash);
+        if (!Objects.equals(previous, hash)) {
+            changes.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return Antal användare med en registrerad profilbild.
+     */
+    public int getCount() {
+        return avatars.size();
+    }
+
+    /**
+     * @return Antal gånger en användare har loggat in med en ny eller ändrad profilbild.
+     */
+    public long getChanges() {
+        return changes.get();
+    }
+}
@@ -0,0 +1,319 @@
+package serverMap;
+
+import Common.BacklogPage;
+import Common.Message;
+import Common.User;
+import View.ServerGUI;
+
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * Levererar meddelanden som väntade medan användaren var offline, i sidor och i den takt
+ * klienten ger kredit för. Klienten får ett första fönster av kredit direkt vid inloggningen
+ * och ger ny kredit med {@link Common.BacklogCredit} när den har hanterat en sida.
+ * <p>
+ * Så länge en användares brevlåda töms hamnar nya meddelanden till användaren sist i
+ * brevlådan i stället för att skickas direkt, så att de inte går förbi äldre meddelanden.
+ * Klienter med det gamla protokollet kan inte ge kredit och får alla meddelanden direkt,
+ * ett och ett.
+ * <p>
+ * Gruppmeddelanden ligger i brevlådorna som referenser och ersätts med det lagrade
+ * meddelandet när de levereras.
+ * <p>
+ * Är anslutningens utgående kö full stannar sessionen i läget där brevlådan töms och försöker
+ * igen när kön har tömts, så att nya meddelanden inte går förbi de som väntar.
+ * <p>
+ * En session vars anslutning inte hinner ta emot kan pausas med {@link #pause(Session)}.
+ * Nya meddelanden hamnar då i brevlådan tills sessionen återupptas och brevlådan töms igen.
+ *
+ */
+public class BacklogDelivery {
+
+    private final UnsentMessageHandler unsent;
+    private final BlobStore blobs;
+    private final GroupBodyStore bodies;
+    private final ServerGUI serverGUI;
+    private final int pageSize;
+    private final int initialCredits;
+
+    /**
+     * Tillståndet för leveransen till en session. Sessionen börjar i läget där brevlådan
+     * töms, så att meddelanden som kommer mellan inloggningen och {@link #start(Session)}
+     * också hamnar i rätt ordning.
+     */
+    static final class State {
+        private final ReentrantLock lock = new ReentrantLock();
+        private boolean draining = true;
+        private boolean paused;
+        private long credits;
+    }
+
+    /**
+     * @param unsent Brevlådorna med osända meddelanden.
+     * @param blobs Lagringen av bilder, för bilder och miniatyrer som bäddas in i meddelandena.
+     * @param bodies Lagringen av gruppmeddelanden som brevlådorna refererar till.
+     * @param serverGUI Serverns GUI där leveranserna visas.
+     * @param pageSize Högsta antal meddelanden per sida.
+     * @param initialCredits Antal meddelanden som skickas innan klienten har gett någon kredit.
+     */
+    public BacklogDelivery(UnsentMessageHandler unsent, BlobStore blobs, GroupBodyStore bodies, ServerGUI serverGUI,
+                           int pageSize, int initialCredits) {
+        this.unsent = unsent;
+        this.blobs = blobs;
+        this.bodies = bodies;
+        this.serverGUI = serverGUI;
+        this.pageSize = Math.max(1, pageSize);
+        this.initialCredits = Math.max(1, initialCredits);
+    }
+
+    /**
+     * Börjar leverera användarens väntande meddelanden. Anropas efter att närvarolistan har
+     * köats, så att den kommer fram först.
+     *
+     * @param session Den nyss inloggade sessionen.
+     */
+    public void start(Session session) {
+        State state = session.getBacklog();
+        state.lock.lock();
+        try {
+            state.credits = session.getConnection().isLegacy() ? Long.MAX_VALUE : initialCredits;
+            pump(session, state);
+        } finally {
+            state.lock.unlock();
+        }
+    }
+
+    /**
+     * Slutar skicka direkt till sessionen. Nya meddelanden läggs i brevlådan och inga sidor
+     * skickas förrän sessionen återupptas.
+     *
+     * @param session Sessionen vars anslutning ligger efter.
+     */
+    public void pause(Session session) {
+        State state = session.getBacklog();
+        state.lock.lock();
+        try {
+            state.paused = true;
+            state.draining = true;
+        } finally {
+            state.lock.unlock();
+        }
+    }
+
+    /**
+     * Återupptar leveransen till en pausad session och börjar tömma det som hamnade i brevlådan
+     * under tiden, med ett nytt fönster av kredit.
+     *
+     * @param session Sessionen vars anslutning har kommit ikapp.
+     */
+    public void resume(Session session) {
+        State state = session.getBacklog();
+        state.lock.lock();
+        try {
+            if (!state.paused) {
+                return;
+            }
+            state.paused = false;
+            state.credits = session.getConnection().isLegacy() ? Long.MAX_VALUE : initialCredits;
+            pump(session, state);
+        } finally {
+            state.lock.unlock();
+        }
+    }
+
+    /**
+     * @param session En session.
+     * @return true om sessionen är pausad.
+     */
+    public boolean isPaused(Session session) {
+        State state = session.getBacklog();
+        state.lock.lock();
+        try {
+            return state.paused;
+        } finally {
+            state.lock.unlock();
+        }
+    }
+
+    /**
+     * Ger sessionen mer kredit och skickar så många sidor som krediten räcker till.
+     *
+     * @param session Sessionen som gav kredit.
+     * @param messages Antal meddelanden som klienten kan ta emot.
+     */
+    public void credit(Session session, int messages) {
+        if (messages <= 0) {
+            return;
+        }
+        State state = session.getBacklog();
+        state.lock.lock();
+        try {
+            if (state.draining) {
+                state.credits += messages;
+                pump(session, state);
+            }
+        } finally {
+            state.lock.unlock();
+        }
+    }
+
+    /**
+     * Skickar ett meddelande till en inloggad mottagare, eller lägger det sist i mottagarens
+     * brevlåda om äldre meddelanden fortfarande levereras eller anslutningen inte går att skriva till.
+     *
+     * @param session Mottagarens session.
+     * @param message Meddelandet.
+     * @return true om meddelandet köades eller lades i brevlådan, false om brevlådan inte tog emot det.
+     */
+    public boolean deliver(Session session, Message message) {
+        State state = session.getBacklog();
+        state.lock.lock();
+        try {
+            if (state.draining) {
+                return unsent.put(session.getUser(), message);
+            }
+            return send(session, state, blobs.prepareFor(session.getConnection(), message), () -> message);
+        } finally {
+            state.lock.unlock();
+        }
+    }
+
+    /**
+     * Skickar en ram som delas med andra mottagare, eller lägger meddelandet som ska lagras
+     * sist i mottagarens brevlåda om äldre meddelanden fortfarande levereras eller anslutningen
+     * inte går att skriva till.
+     *
+     * @param session Mottagarens session.
+     * @param frame Ramen eller objektet som skickas till mottagaren.
+     * @param stored Ger meddelandet som lagras i brevlådan, adresserat till mottagaren.
+     * @return true om ramen köades eller meddelandet lades i brevlådan, false om brevlådan inte tog emot det.
+     */
+    public boolean deliver(Session session, Object frame, Supplier<Message> stored) {
+        State state = session.getBacklog();
+        state.lock.lock();
+        try {
+            if (state.draining) {
+                return unsent.put(session.getUser(), stored.get());
+            }
+            return send(session, state, frame, stored);
+        } finally {
+            state.lock.unlock();
+        }
+    }
+
+    /**
+     * Köar en ram direkt. Är kön full läggs meddelandet i brevlådan och sessionen går över till
+     * att tömma brevlådan när kön har fått plats, så att senare meddelanden hamnar bakom det.
+     * Går anslutningen inte att skriva till läggs meddelandet i brevlådan till nästa inloggning.
+     * Anropas med sessionens lås taget.
+     */
+    private boolean send(Session session, State state, Object frame, Supplier<Message> stored) {
+        ClientConnection connection = session.getConnection();
+        try {
+            connection.send(frame);
+            return true;
+        } catch (OutboundQueueFullException e) {
+            System.out.println("Outbound queue full for " + session.getUser().getName() + ", queueing in the mailbox");
+            boolean queued = unsent.put(session.getUser(), stored.get());
+            state.draining = true;
+            state.credits = connection.isLegacy() ? Long.MAX_VALUE : initialCredits;
+            connection.whenDrained(() -> retry(session));
+            return queued;
+        } catch (IOException e) {
+            System.out.println("Error sending message to " + session.getUser().getName() + ": " + e.getMessage());
+            return unsent.put(session.getUser(), stored.get());
+        }
+    }
+
+    private void pump(Session session, State state) {
+        User user = session.getUser();
+        ClientConnection connection = session.getConnection();
+        while (state.draining && !state.paused) {
+            int total = unsent.count(user);
+            if (total == 0) {
+                state.draining = false;
+                return;
+            }
+            if (state.credits <= 0) {
+                return;
+            }
+            if (connection.isLegacy()) {
+                drainLegacy(session, state);
+                return;
+            }
+            List<Message> page = unsent.peek(user, (int) Math.min(pageSize, state.credits));
+            List<Message> prepared = new ArrayList<>(page.size());
+            for (Message message : page) {
+                prepared.add(blobs.prepareFor(connection, bodies.resolve(message)));
+            }
+            long remaining = Math.max(0, total - page.size());
+            int sent = 0;
+            try {
+                connection.send(new BacklogPage(prepared, remaining));
+                sent = page.size();
+            } catch (OutboundQueueFullException e) {
+                connection.whenDrained(() -> retry(session));
+                return;
+            } catch (IOException e) {
+                System.out.println("Could not deliver queued messages to " + user.getName() + ": " + e.getMessage());
+                state.draining = false;
+            }
+            unsent.remove(user, sent);
+            state.credits -= sent;
+            if (sent > 0) {
+                serverGUI.updateServerGUI(LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss")) + " "
+                        + user.getName() + " received " + sent + " queued messages, " + (total - sent) + " remaining\n");
+            }
+        }
+    }
+
+    /**
+     * Försöker tömma brevlådan igen när anslutningens utgående kö har fått plats.
+     */
+    private void retry(Session session) {
+        State state = session.getBacklog();
+        state.lock.lock();
+        try {
+            pump(session, state);
+        } finally {
+            state.lock.unlock();
+        }
+    }
+
+    /**
+     * Klienter med det gamla protokollet kan inte ge kredit, så hela brevlådan töms på en gång.
+     * Meddelanden som inte får plats i den utgående kön ligger kvar först i brevlådan och
+     * skickas när kön har tömts.
+     */
+    private void drainLegacy(Session session, State state) {
+        User user = session.getUser();
+        ClientConnection connection = session.getConnection();
+        List<Message> messages = unsent.peek(user, unsent.count(user));
+        int sent = 0;
+        boolean full = false;
+        try {
+            for (Message message : messages) {
+                connection.send(blobs.prepareFor(connection, bodies.resolve(message)));
+                sent++;
+            }
+        } catch (OutboundQueueFullException e) {
+            full = true;
+        } catch (IOException e) {
+            System.out.println("Could not deliver queued messages to " + user.getName() + ": " + e.getMessage());
+        }
+        unsent.remove(user, sent);
+        if (full) {
+            connection.whenDrained(() -> retry(session));
+        } else {
+            state.draining = false;
+        }
+        serverGUI.updateServerGUI(LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss")) + " "
+                + user.getName() + " received " + sent + " queued messages\n");
+    }
+}
@@ -0,0 +1,415 @@
+package serverMap;
+
+import Common.BinaryCodec;
+import Common.BlobData;
+import Common.ContentHash;
+import Common.Message;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Innehållsadresserad lagring av bilder. Varje bild lagras en gång som en fil med sin
+ * SHA-256-hash som namn, oavsett hur många meddelanden som refererar till den. Meddelanden
+ * som routas och lagras i brevlådorna bär bara hashen.
+ * <p>
+ * Bilder laddas upp och hämtas i delar. En uppladdning som inte är klar ligger i en fil med
+ * ändelsen {@code .part} bredvid den färdiga filen och fortsätter där den slutade, även om
+ * avsändaren kopplar ner och ansluter igen. Hashen kontrolleras när sista delen har kommit,
+ * innan filen flyttas på plats.
+ * <p>
+ * En miniatyr av en bild lagras med ändelsen {@code .thumb} bredvid bilden när
+ * {@link ThumbnailPipeline} har skapat den.
+ *
+ */
+public class BlobStore {
+
+    private static final String PARTIAL_SUFFIX = ".part";
+    private static final String THUMBNAIL_SUFFIX = ".thumb";
+
+    private final File directory;
+    private final int chunkBytes;
+    private final long maxBytes;
+    private final Map<String, PartialLock> partialLocks = new ConcurrentHashMap<>();
+    private final Set<String> known = ConcurrentHashMap.newKeySet();
+    private final AtomicLong stored = new AtomicLong();
+    private final AtomicLong duplicates = new AtomicLong();
+    private final AtomicLong bytesSaved = new AtomicLong();
+
+    /**
+     * Låset för en ofärdig uppladdning och hur många som använder det. Räknaren ändras bara
+     * inne i {@link ConcurrentHashMap#compute}, så låset tas bort först när ingen använder det.
+     */
+    private static final class PartialLock {
+        final ReentrantLock lock = new ReentrantLock();
+        int users;
+    }
+
+    /**
+     * Öppnar lagringen och läser in vilka hashar som redan finns.
+     *
+     * @param directory Katalogen som bilderna lagras i.
+     * @param chunkBytes Största storlek i bytes för en del som skickas till en klient.
+     * @param maxBytes Största storlek i bytes för en bild som laddas upp i delar.
+     * @throws IOException Om katalogen inte kunde skapas.
+     */
+    public BlobStore(File directory, int chunkBytes, long maxBytes) throws IOException {
+        this.directory = directory;
+        this.chunkBytes = Math.max(1, chunkBytes);
+        this.maxBytes = Math.max(1, maxBytes);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create blob directory " + directory);
+        }
+        File[] fanout = directory.listFiles(File::isDirectory);
+        if (fanout != null) {
+            for (File dir : fanout) {
+                String[] names = dir.list((d, name) -> ContentHash.isValid(name));
+                if (names != null) {
+                    known.addAll(Arrays.asList(names));
+                }
+            }
+        }
+    }
+
+    /**
+     * @param hash Hashen.
+     * @return true om innehållet för hashen finns lagrat.
+     */
+    public boolean contains(String hash) {
+        return known.contains(hash);
+    }
+
+    /**
+     * Lagrar innehållet om det inte redan finns. Innehållet skrivs först till en temporär fil
+     * som sedan flyttas på plats, så en halvskriven fil syns aldrig under sin hash.
+     *
+     * @param hash Hashen som innehållet påstås ha.
+     * @param bytes Innehållet.
+     * @return true om innehållet lagrades eller redan fanns, false om det inte stämde med hashen.
+     * @throws IOException Om innehållet inte kunde skrivas.
+     */
+    public boolean put(String hash, byte[] bytes) throws IOException {
+        if (!ContentHash.isValid(hash) || !ContentHash.of(bytes).equals(hash)) {
+            return false;
+        }
+        if (known.contains(hash)) {
+            duplicates.incrementAndGet();
+            bytesSaved.addAndGet(bytes.length);
+            return true;
+        }
+        Path target = fileFor(hash).toPath();
+        Files.createDirectories(target.getParent());
+        Path temp = Files.createTempFile(target.getParent(), hash, ".tmp");
+        try {
+            Files.write(temp, bytes);
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        if (known.add(hash)) {
+            stored.incrementAndGet();
+        }
+        return true;
+    }
+
+    /**
+     * @param hash Hashen.
+     * @return Innehållet, eller null om det inte finns.
+     * @throws IOException Om filen inte kunde läsas.
+     */
+    public byte[] get(String hash) throws IOException {
+        if (!known.contains(hash)) {
+            return null;
+        }
+        return Files.readAllBytes(fileFor(hash).toPath());
+    }
+
+    /**
+     * @param hash Hashen.
+     * @return Antal bytes som redan har laddats upp av innehållet, dvs. var nästa del ska börja.
+     */
+    public long partialLength(String hash) {
+        if (!ContentHash.isValid(hash)) {
+            return 0;
+        }
+        return partialFor(hash).length();
+    }
+
+    /**
+     * @return Största storlek i bytes för en bild som laddas upp i delar.
+     */
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Lägger till en uppladdad del sist i den ofärdiga filen. En del som inte börjar där filen
+     * slutar skrivs inte, så att två avsändare av samma bild inte kan blanda sina delar.
+     * När sista delen har skrivits kontrolleras hashen och filen flyttas på plats. Varje bild
+     * har ett eget lås, så uppladdningar av olika bilder väntar inte på varandras skrivningar.
+     *
+     * @param chunk Delen.
+     * @return Antal bytes som finns av innehållet efter delen, lika med den totala storleken
+     * när innehållet är lagrat, eller -1 om delen var ogiltig, bilden var större än
+     * {@link #getMaxBytes()} eller innehållet inte stämde med hashen.
+     * @throws IOException Om delen inte kunde skrivas.
+     */
+    public long putChunk(BlobData chunk) throws IOException {
+        String hash = chunk.getHash();
+        byte[] bytes = chunk.getBytes();
+        if (!ContentHash.isValid(hash) || chunk.getTotal() > maxBytes || chunk.getOffset() < 0
+                || chunk.getOffset() + bytes.length > chunk.getTotal()) {
+            return -1;
+        }
+        if (known.contains(hash)) {
+            return chunk.getTotal();
+        }
+        PartialLock partialLock = partialLocks.compute(hash, (h, current) -> {
+            PartialLock used = current == null ? new PartialLock() : current;
+            used.users++;
+            return used;
+        });
+        partialLock.lock.lock();
+        try {
+            if (known.contains(hash)) {
+                return chunk.getTotal();
+            }
+            Path partial = partialFor(hash).toPath();
+            Files.createDirectories(partial.getParent());
+            long length = Files.exists(partial) ? Files.size(partial) : 0;
+            if (chunk.getOffset() != length) {
+                return length;
+            }
+            try (FileChannel channel = FileChannel.open(partial, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+                ByteBuffer buffer = ByteBuffer.wrap(bytes);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+            length += bytes.length;
+            if (length < chunk.getTotal()) {
+                return length;
+            }
+            if (!hashOf(partial).equals(hash)) {
+                Files.delete(partial);
+                return -1;
+            }
+            Files.move(partial, fileFor(hash).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            if (known.add(hash)) {
+                stored.incrementAndGet();
+            }
+            return length;
+        } finally {
+            partialLock.lock.unlock();
+            partialLocks.computeIfPresent(hash, (h, current) -> --current.users == 0 ? null : current);
+        }
+    }
+
+    /**
+     * Läser en del av en lagrad bild. Bara delen läses in, så en stor bild hålls aldrig hel i minnet.
+     *
+     * @param hash Hashen.
+     * @param offset Var delen ska börja.
+     * @return Delen, eller null om bilden inte finns.
+     * @throws IOException Om filen inte kunde läsas.
+     */
+    public BlobData readChunk(String hash, long offset) throws IOException {
+        if (!known.contains(hash)) {
+            return null;
+        }
+        try (RandomAccessFile file = new RandomAccessFile(fileFor(hash), "r")) {
+            long total = file.length();
+            long start = Math.min(Math.max(0, offset), total);
+            byte[] bytes = new byte[(int) Math.min(chunkBytes, total - start)];
+            file.seek(start);
+            file.readFully(bytes);
+            return new BlobData(hash, start, total, bytes);
+        }
+    }
+
+    /**
+     * Byter ut en bild som skickats i själva meddelandet mot en referens till den lagrade bilden.
+     *
+     * @param message Meddelandet, som ändras på plats.
+     * @throws IOException Om bilden inte kunde kodas eller lagras.
+     */
+    public void internalize(Message message) throws IOException {
+        if (message.getImage() == null) {
+            return;
+        }
+        byte[] bytes = BinaryCodec.toPng(message.getImage());
+        String hash = ContentHash.of(bytes);
+        put(hash, bytes);
+        message.setImageHash(hash);
+        message.setImage(null);
+    }
+
+    /**
+     * Räknar en referens till en bild som redan fanns, dvs. en uppladdning som kunde hoppas över.
+     *
+     * @param hash Hashen som refererades.
+     */
+    public void recordReuse(String hash) {
+        duplicates.incrementAndGet();
+        File file = fileFor(hash);
+        bytesSaved.addAndGet(file.length());
+    }
+
+    /**
+     * @param hash Hashen.
+     * @return Storleken i bytes för den lagrade bilden, eller 0 om den inte finns.
+     */
+    public long length(String hash) {
+        if (!known.contains(hash)) {
+            return 0;
+        }
+        return fileFor(hash).length();
+    }
+
+    /**
+     * @param hash Hashen för originalbilden.
+     * @return true om bilden har en miniatyr.
+     */
+    public boolean hasThumbnail(String hash) {
+        return known.contains(hash) && thumbnailFor(hash).isFile();
+    }
+
+    /**
+     * @param hash Hashen för originalbilden.
+     * @return Miniatyrens bytes, eller null om bilden saknar miniatyr.
+     * @throws IOException Om filen inte kunde läsas.
+     */
+    public byte[] getThumbnail(String hash) throws IOException {
+        if (!hasThumbnail(hash)) {
+            return null;
+        }
+        return Files.readAllBytes(thumbnailFor(hash).toPath());
+    }
+
+    /**
+     * Lagrar miniatyren för en bild.
+     *
+     * @param hash Hashen för originalbilden.
+     * @param bytes Miniatyrens bytes.
+     * @throws IOException Om miniatyren inte kunde skrivas.
+     */
+    public void putThumbnail(String hash, byte[] bytes) throws IOException {
+        Path target = thumbnailFor(hash).toPath();
+        Path temp = Files.createTempFile(target.getParent(), hash, ".tmp");
+        try {
+            Files.write(temp, bytes);
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Ger ett meddelande som kan skickas över anslutningen. Klienter med det gamla protokollet
+     * kan inte hämta bilder i efterhand och får därför en kopia med bilden inbäddad. Andra
+     * klienter får en kopia med bildens miniatyr, om den finns, och hämtar originalet vid behov.
+     *
+     * @param connection Mottagarens anslutning.
+     * @param message Meddelandet.
+     * @return Meddelandet självt, eller en kopia med bilden eller miniatyren inbäddad.
+     */
+    public Message prepareFor(ClientConnection connection, Message message) {
+        return prepareFor(connection.isLegacy(), message);
+    }
+
+    /**
+     * Som {@link #prepareFor(ClientConnection, Message)}, för alla mottagare som talar samma protokoll.
+     *
+     * @param legacy true för klienter med det gamla protokollet.
+     * @param message Meddelandet.
+     * @return Meddelandet självt, eller en kopia med bilden eller miniatyren inbäddad.
+     */
+    public Message prepareFor(boolean legacy, Message message) {
+        if (message.getImageHash() == null || message.getImage() != null) {
+            return message;
+        }
+        try {
+            if (legacy) {
+                byte[] bytes = get(message.getImageHash());
+                if (bytes != null) {
+                    Message copy = new Message(message.getSender(), message.getReceiver(), message.getMessage(), BinaryCodec.fromBytes(bytes));
+                    copy.setGroup(message.getGroup());
+                    return copy;
+                }
+            } else if (message.getThumbnail() == null) {
+                byte[] thumbnail = getThumbnail(message.getImageHash());
+                if (thumbnail != null) {
+                    Message copy = new Message(message.getSender(), message.getReceiver(), message.getMessage());
+                    copy.setImageHash(message.getImageHash());
+                    copy.setThumbnail(thumbnail);
+                    copy.setGroup(message.getGroup());
+                    return copy;
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return message;
+    }
+
+    /**
+     * @return Antal olika bilder som har lagrats sedan start.
+     */
+    public long getStored() {
+        return stored.get();
+    }
+
+    /**
+     * @return Antal gånger en bild redan fanns när den skickades.
+     */
+    public long getDuplicates() {
+        return duplicates.get();
+    }
+
+    /**
+     * @return Antal bytes som inte behövde lagras eller laddas upp igen.
+     */
+    public long getBytesSaved() {
+        return bytesSaved.get();
+    }
+
+    private File fileFor(String hash) {
+        return new File(new File(directory, hash.substring(0, 2)), hash);
+    }
+
+    private File partialFor(String hash) {
+        return new File(new File(directory, hash.substring(0, 2)), hash + PARTIAL_SUFFIX);
+    }
+
+    private File thumbnailFor(String hash) {
+        return new File(new File(directory, hash.substring(0, 2)), hash + THUMBNAIL_SUFFIX);
+    }
+
+    private static String hashOf(Path file) throws IOException {
+        MessageDigest digest = ContentHash.newDigest();
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = Files.newInputStream(file)) {
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        return ContentHash.toHex(digest.digest());
+    }
+}
@@ -0,0 +1,58 @@
+package serverMap;
+
+import Common.DeflateCodec;
+
+import java.io.IOException;
+
+/**
+ * En anslutning till en inloggad klient som servern kan skicka objekt till,
+ * oavsett vilken motor (tråd per klient eller NIO) som hanterar den.
+ *
+ */
+public interface ClientConnection {
+
+    /**
+     * Skickar ett objekt till klienten. En {@link EncodedFrame} skrivs med de bytes som
+     * redan har kodats för anslutningens kodning.
+     *
+     * @param obj Objektet som ska skickas.
+     * @throws IOException Om objektet inte kunde skickas.
+     */
+    void send(Object obj) throws IOException;
+
+    /**
+     * @return true om klienten använder det äldre protokollet med en ObjectOutputStream och
+     * därför bara förstår hela användarlistor och meddelanden.
+     */
+    boolean isLegacy();
+
+    /**
+     * @return Antal bytes som väntar på att skrivas till klienten.
+     */
+    long getQueuedBytes();
+
+    /**
+     * @return Hur länge, i nanosekunder, det äldsta som inte har skrivits till klienten har
+     * väntat, eller 0 om inget väntar.
+     */
+    long getLagNanos();
+
+    /**
+     * Kör ett arbete en gång när minst halva den utgående kön är ledig, direkt om den redan är det.
+     * Används för att försöka igen efter ett {@link OutboundQueueFullException}. Ett arbete som
+     * inte har körts än ersätts av det nya.
+     *
+     * @param task Arbetet som ska köras.
+     */
+    void whenDrained(Runnable task);
+
+    /**
+     * @return Komprimeringen av anslutningens ramar, eller null om ramarna inte komprimeras.
+     */
+    DeflateCodec getCompression();
+
+    /**
+     * Stänger anslutningen.
+     */
+    void close();
+}
@@ -0,0 +1,78 @@
+package serverMap;
+
+import Common.DeflateCodec;
+import Common.PayloadCodec;
+import Common.Protocol;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Ett objekt som skickas likadant till många mottagare. Objektet kodas högst en gång per
+ * kodning, första gången en anslutning med den kodningen skriver det, och alla anslutningar
+ * med samma kodning skriver sedan samma bytes. Ramen innehåller längden följd av innehållet,
+ * så den kan skrivas direkt till en socket.
+ * <p>
+ * Klienter med det gamla protokollet skriver objektet med sin egen ObjectOutputStream och
+ * använder därför inte de kodade bytes. En komprimerad anslutning komprimerar de delade
+ * bytes med sin egen deflate-ström, så objektet kodas ändå bara en gång.
+ *
+ */
+public final class EncodedFrame {
+
+    private final Object object;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Map<Class<?>, byte[]> frames = new HashMap<>(2);
+    private final AtomicLong encodings;
+
+    /**
+     * @param object Objektet som ska skickas.
+     * @param encodings Räknas upp varje gång objektet kodas.
+     */
+    public EncodedFrame(Object object, AtomicLong encodings) {
+        this.object = object;
+        this.encodings = encodings;
+    }
+
+    /**
+     * @return Objektet som ska skickas.
+     */
+    public Object getObject() {
+        return object;
+    }
+
+    /**
+     * Hämtar ramen för en kodning och kodar objektet om det inte redan är gjort.
+     *
+     * @param codec Anslutningens kodning.
+     * @return Längden följd av det kodade innehållet. Arrayen delas och får inte ändras, utom
+     * för en komprimerad anslutning som får en egen array.
+     * @throws IOException Om objektet inte kan kodas.
+     */
+    public byte[] frameFor(PayloadCodec codec) throws IOException {
+        if (codec instanceof DeflateCodec) {
+            DeflateCodec deflate = (DeflateCodec) codec;
+            byte[] shared = frameFor(deflate.getInner());
+            byte[] payload = deflate.compress(object, shared, Integer.BYTES, shared.length - Integer.BYTES);
+            return ByteBuffer.allocate(Integer.BYTES + payload.length).putInt(payload.length).put(payload).array();
+        }
+        lock.lock();
+        try {
+            byte[] frame = frames.get(codec.getClass());
+            if (frame == null) {
+                byte[] payload = codec.encode(object);
+                Protocol.checkFrameLength(payload.length);
+                frame = ByteBuffer.allocate(Integer.BYTES + payload.length).putInt(payload.length).put(payload).array();
+                frames.put(codec.getClass(), frame);
+                encodings.incrementAndGet();
+            }
+            return frame;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
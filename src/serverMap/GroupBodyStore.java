@@ -0,0 +1,243 @@
+package serverMap;
+
+import Common.BinaryCodec;
+import Common.ContentHash;
+import Common.Message;
+import Common.PayloadCodec;
+import Common.User;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Lagring av gruppmeddelanden som väntar på medlemmar som är offline. Meddelandet lagras
+ * kodat en gång under hashen för sin kodning, och varje medlems brevlåda får bara en
+ * referens till det.
+ * <p>
+ * Varje lagrat meddelande har en räknare över referenserna till det. Brevlådorna räknar upp
+ * när en referens läggs till och ner när den levereras eller tas bort, och {@link GroupFanout}
+ * håller en egen referens medan meddelandet skickas ut. När räknaren når noll tas filen bort.
+ * Räknarna finns bara i minnet och byggs upp från brevlådorna vid start, varefter
+ * {@link #sweep()} tar bort meddelanden som ingen brevlåda refererar till.
+ * <p>
+ * Meddelandena ligger i en egen katalog och räknas inte med i bildlagringens statistik.
+ *
+ */
+public class GroupBodyStore {
+
+    private final File directory;
+    private final PayloadCodec codec = new BinaryCodec();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Map<String, Integer> references = new HashMap<>();
+    private long stored;
+    private long deleted;
+
+    /**
+     * @param directory Katalogen som meddelandena lagras i.
+     * @throws IOException Om katalogen inte kunde skapas.
+     */
+    public GroupBodyStore(File directory) throws IOException {
+        this.directory = directory;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create group body directory " + directory);
+        }
+    }
+
+    /**
+     * Lagrar ett gruppmeddelande om det inte redan finns och tar en referens till det.
+     * Referensen lämnas tillbaka med {@link #release(String)}.
+     *
+     * @param message Gruppmeddelandet, med bilden ersatt av sin hash.
+     * @return Hashen som meddelandet lagrades under.
+     * @throws IOException Om meddelandet inte kunde kodas eller lagras.
+     */
+    public String put(Message message) throws IOException {
+        byte[] bytes = codec.encode(message);
+        String hash = ContentHash.of(bytes);
+        lock.lock();
+        try {
+            Integer count = references.get(hash);
+            if (count == null) {
+                Path target = fileFor(hash).toPath();
+                if (!Files.exists(target)) {
+                    Files.createDirectories(target.getParent());
+                    Path temp = Files.createTempFile(target.getParent(), hash, ".tmp");
+                    try {
+                        Files.write(temp, bytes);
+                        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    } finally {
+                        Files.deleteIfExists(temp);
+                    }
+                    stored++;
+                }
+                count = 0;
+            }
+            references.put(hash, count + 1);
+        } finally {
+            lock.unlock();
+        }
+        return hash;
+    }
+
+    /**
+     * Tar en referens till ett lagrat meddelande, t.ex. för en post i en brevlåda.
+     *
+     * @param hash Hashen för meddelandet.
+     */
+    public void retain(String hash) {
+        lock.lock();
+        try {
+            references.merge(hash, 1, Integer::sum);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Lämnar tillbaka en referens. Meddelandet tas bort när den sista referensen lämnas tillbaka.
+     *
+     * @param hash Hashen för meddelandet.
+     */
+    public void release(String hash) {
+        lock.lock();
+        try {
+            Integer count = references.get(hash);
+            if (count == null) {
+                return;
+            }
+            if (count > 1) {
+                references.put(hash, count - 1);
+                return;
+            }
+            references.remove(hash);
+            delete(hash);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Tar bort alla lagrade meddelanden som ingen har en referens till. Anropas när alla
+     * brevlådor har lästs in vid start.
+     */
+    public void sweep() {
+        File[] fanout = directory.listFiles(File::isDirectory);
+        if (fanout == null) {
+            return;
+        }
+        lock.lock();
+        try {
+            for (File dir : fanout) {
+                String[] names = dir.list((d, name) -> ContentHash.isValid(name));
+                if (names == null) {
+                    continue;
+                }
+                for (String hash : names) {
+                    if (!references.containsKey(hash)) {
+                        delete(hash);
+                    }
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param hash Hashen för meddelandet.
+     * @return Storleken i bytes för det lagrade meddelandet, eller 0 om det inte finns.
+     */
+    public long length(String hash) {
+        if (!ContentHash.isValid(hash)) {
+            return 0;
+        }
+        return fileFor(hash).length();
+    }
+
+    /**
+     * Ersätter en referens från en brevlåda med det lagrade gruppmeddelandet.
+     *
+     * @param message Meddelandet från brevlådan.
+     * @return Meddelandet självt om det inte är en referens, annars det lagrade meddelandet.
+     * Saknas det lagrade meddelandet ges ett meddelande utan innehåll till gruppen.
+     */
+    public Message resolve(Message message) {
+        if (message.getBodyHash() == null) {
+            return message;
+        }
+        try {
+            if (ContentHash.isValid(message.getBodyHash())) {
+                File file = fileFor(message.getBodyHash());
+                if (file.isFile()) {
+                    byte[] bytes = Files.readAllBytes(file.toPath());
+                    return (Message) codec.decode(bytes, 0, bytes.length);
+                }
+            }
+            System.out.println("Stored group message " + message.getBodyHash() + " is missing");
+        } catch (IOException | ClassNotFoundException | ClassCastException e) {
+            System.out.println("Could not read stored group message " + message.getBodyHash() + ": " + e.getMessage());
+        }
+        Message empty = new Message(message.getSender(), new User(message.getGroup(), null), (String) null);
+        empty.setGroup(message.getGroup());
+        return empty;
+    }
+
+    /**
+     * @return Antal lagrade gruppmeddelanden som någon har en referens till.
+     */
+    public int getCount() {
+        lock.lock();
+        try {
+            return references.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return Antal gruppmeddelanden som har lagrats sedan start.
+     */
+    public long getStored() {
+        lock.lock();
+        try {
+            return stored;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return Antal gruppmeddelanden som har tagits bort sedan start.
+     */
+    public long getDeleted() {
+        lock.lock();
+        try {
+            return deleted;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Tar bort filen för ett meddelande. Anropas med låset taget.
+     */
+    private void delete(String hash) {
+        try {
+            if (Files.deleteIfExists(fileFor(hash).toPath())) {
+                deleted++;
+            }
+        } catch (IOException e) {
+            System.out.println("Could not delete stored group message " + hash + ": " + e.getMessage());
+        }
+    }
+
+    private File fileFor(String hash) {
+        return new File(new File(directory, hash.substring(0, 2)), hash);
+    }
+}
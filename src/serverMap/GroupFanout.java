@@ -0,0 +1,155 @@
+package serverMap;
+
+import Common.Message;
+import Common.User;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Skickar meddelanden till gruppkonversationer. Ett gruppmeddelande kodas en gång per kodning
+ * och samma bytes skrivs till alla medlemmar som är online, i stället för att meddelandet
+ * kodas om för varje mottagare. Medlemmar som är offline, eller som fortfarande får sina
+ * väntande meddelanden, får en referens i sin brevlåda till meddelandet som lagras en gång
+ * i {@link GroupBodyStore}. Under utskicket håller fanout en egen referens till det lagrade
+ * meddelandet, så att det inte tas bort om en medlem hinner få det innan alla har fått sin referens.
+ *
+ */
+public class GroupFanout {
+
+    private final SessionRegistry sessions;
+    private final GroupRegistry groups;
+    private final BacklogDelivery backlog;
+    private final UnsentMessageHandler unsent;
+    private final BlobStore blobs;
+    private final GroupBodyStore bodies;
+    private final AtomicLong messages = new AtomicLong();
+    private final AtomicLong recipients = new AtomicLong();
+    private final AtomicLong encodings = new AtomicLong();
+    private final AtomicLong references = new AtomicLong();
+
+    /**
+     * @param sessions Registret över inloggade användare.
+     * @param groups Grupperna och deras medlemmar.
+     * @param backlog Leveransen till mottagare som fortfarande får väntande meddelanden.
+     * @param unsent Brevlådorna för medlemmar som är offline.
+     * @param blobs Lagringen av bilder, för bilder och miniatyrer som bäddas in i meddelandena.
+     * @param bodies Lagringen av gruppmeddelanden som väntar på medlemmar.
+     */
+    public GroupFanout(SessionRegistry sessions, GroupRegistry groups, BacklogDelivery backlog,
+                       UnsentMessageHandler unsent, BlobStore blobs, GroupBodyStore bodies) {
+        this.sessions = sessions;
+        this.groups = groups;
+        this.backlog = backlog;
+        this.unsent = unsent;
+        this.blobs = blobs;
+        this.bodies = bodies;
+    }
+
+    /**
+     * Skickar ett meddelande till alla medlemmar i gruppen utom avsändaren. Avsändaren ska
+     * redan vara kontrollerad mot anslutningen som meddelandet kom från.
+     *
+     * @param message Meddelandet, med gruppens namn satt och bilden ersatt av sin hash.
+     * @return Antal medlemmar som meddelandet köades eller lagrades för, eller -1 om gruppen
+     * inte finns eller avsändaren inte är medlem i den.
+     */
+    public int publish(Message message) {
+        String group = message.getGroup();
+        String senderName = message.getSender().getName();
+        List<String> members = groups.members(group);
+        if (members == null || !members.contains(senderName)) {
+            System.out.println("Dropping message from " + senderName + " to " + group + ", not a member");
+            return -1;
+        }
+        Message canonical = new Message(message.getSender(), new User(group, null), message.getMessage(), message.getImage());
+        canonical.setImageHash(message.getImageHash());
+        canonical.setGroup(group);
+        messages.incrementAndGet();
+
+        EncodedFrame frame = new EncodedFrame(blobs.prepareFor(false, canonical), encodings);
+        Message legacy = null;
+        String[] bodyHash = new String[1];
+        int reached = 0;
+        for (String member : members) {
+            if (member.equals(senderName)) {
+                continue;
+            }
+            User user = new User(member, null);
+            Supplier<Message> reference = () -> reference(canonical, user, bodyHash);
+            Session session = sessions.get(member);
+            boolean delivered;
+            if (session != null) {
+                Object out = frame;
+                if (session.getConnection().isLegacy()) {
+                    if (legacy == null) {
+                        legacy = blobs.prepareFor(true, canonical);
+                    }
+                    out = legacy;
+                }
+                delivered = backlog.deliver(session, out, reference);
+            } else {
+                delivered = unsent.put(user, reference.get());
+            }
+            if (delivered) {
+                reached++;
+            }
+        }
+        if (bodyHash[0] != null) {
+            bodies.release(bodyHash[0]);
+        }
+        recipients.addAndGet(reached);
+        return reached;
+    }
+
+    /**
+     * Ger meddelandet som lagras i en medlems brevlåda. Gruppmeddelandet lagras första gången
+     * det behövs och därefter får varje medlem bara en referens till det. Referensen som
+     * lagringen ger lämnas tillbaka när alla medlemmar har fått sitt.
+     */
+    private Message reference(Message canonical, User member, String[] bodyHash) {
+        if (bodyHash[0] == null) {
+            try {
+                bodyHash[0] = bodies.put(canonical);
+            } catch (IOException e) {
+                System.out.println("Could not store group message, storing a copy for " + member.getName() + ": " + e.getMessage());
+                return canonical;
+            }
+        }
+        Message reference = new Message(canonical.getSender(), member, (String) null);
+        reference.setGroup(canonical.getGroup());
+        reference.setBodyHash(bodyHash[0]);
+        references.incrementAndGet();
+        return reference;
+    }
+
+    /**
+     * @return Antal meddelanden som har skickats till grupper.
+     */
+    public long getMessages() {
+        return messages.get();
+    }
+
+    /**
+     * @return Antal medlemmar som gruppmeddelanden har köats eller lagrats för.
+     */
+    public long getRecipients() {
+        return recipients.get();
+    }
+
+    /**
+     * @return Antal gånger ett gruppmeddelande har kodats, högst en gång per meddelande och kodning.
+     */
+    public long getEncodings() {
+        return encodings.get();
+    }
+
+    /**
+     * @return Antal referenser till lagrade gruppmeddelanden som har lagts i brevlådor.
+     */
+    public long getReferences() {
+        return references.get();
+    }
+}
@@ -0,0 +1,165 @@
+package serverMap;
+
+import Common.GroupUpdate;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Registret över gruppkonversationer och deras medlemmar. Grupperna sparas i en textfil med en
+ * grupp per rad, så att medlemmar som är offline fortfarande hör till sina grupper efter en
+ * omstart. Filen skrivs om i sin helhet när en grupp ändras, vilket är sällan jämfört med hur
+ * ofta grupperna läses.
+ * <p>
+ * Vem som helst kan skapa en ny grupp, men bara gruppens medlemmar kan ändra den. Den som
+ * skapar eller ändrar en grupp är alltid medlem i den.
+ *
+ */
+public class GroupRegistry {
+
+    private static final int MAX_NAME_LENGTH = 64;
+
+    private final File file;
+    private final int maxMembers;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Map<String, List<String>> groups = new HashMap<>();
+
+    /**
+     * Läser in grupperna från filen om den finns.
+     *
+     * @param file Filen som grupperna sparas i.
+     * @param maxMembers Högsta antal medlemmar i en grupp.
+     * @throws IOException Om filen inte kunde läsas.
+     */
+    public GroupRegistry(File file, int maxMembers) throws IOException {
+        this.file = file;
+        this.maxMembers = Math.max(2, maxMembers);
+        if (file.exists()) {
+            for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+                String[] fields = line.split("\t");
+                if (fields.length > 1 && isValidName(fields[0])) {
+                    groups.put(fields[0], Collections.unmodifiableList(Arrays.asList(Arrays.copyOfRange(fields, 1, fields.length))));
+                }
+            }
+        }
+    }
+
+    /**
+     * Skapar en grupp eller ersätter medlemmarna i en befintlig grupp.
+     *
+     * @param requester Namnet på användaren som skickade ändringen.
+     * @param update Gruppens namn och de önskade medlemmarna.
+     * @return Gruppen som den sparades, eller null om namnet är ogiltigt, gruppen för stor
+     * eller användaren inte är medlem i den befintliga gruppen.
+     */
+    public GroupUpdate update(String requester, GroupUpdate update) {
+        if (!isValidName(update.getName())) {
+            return null;
+        }
+        Set<String> members = new LinkedHashSet<>();
+        members.add(requester);
+        for (String member : update.getMembers()) {
+            if (member != null && !member.isEmpty() && !GroupUpdate.isGroupName(member)
+                    && member.indexOf('\t') < 0 && member.indexOf('\n') < 0) {
+                members.add(member);
+            }
+        }
+        if (members.size() > maxMembers) {
+            return null;
+        }
+        lock.lock();
+        try {
+            List<String> existing = groups.get(update.getName());
+            if (existing != null && !existing.contains(requester)) {
+                return null;
+            }
+            List<String> saved = Collections.unmodifiableList(new ArrayList<>(members));
+            groups.put(update.getName(), saved);
+            try {
+                save();
+            } catch (IOException e) {
+                System.out.println("Could not save groups: " + e.getMessage());
+            }
+            return new GroupUpdate(update.getName(), saved);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param name Gruppens namn.
+     * @return Namnen på gruppens medlemmar, eller null om gruppen inte finns.
+     */
+    public List<String> members(String name) {
+        lock.lock();
+        try {
+            return groups.get(name);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param user Namnet på en användare.
+     * @return Alla grupper som användaren är medlem i.
+     */
+    public List<GroupUpdate> groupsOf(String user) {
+        List<GroupUpdate> result = new ArrayList<>();
+        lock.lock();
+        try {
+            for (Map.Entry<String, List<String>> group : groups.entrySet()) {
+                if (group.getValue().contains(user)) {
+                    result.add(new GroupUpdate(group.getKey(), group.getValue()));
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        return result;
+    }
+
+    /**
+     * @return Antal grupper.
+     */
+    public int getCount() {
+        lock.lock();
+        try {
+            return groups.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static boolean isValidName(String name) {
+        return GroupUpdate.isGroupName(name) && name.length() > GroupUpdate.PREFIX.length()
+                && name.length() <= MAX_NAME_LENGTH && name.indexOf('\t') < 0 && name.indexOf('\n') < 0;
+    }
+
+    /**
+     * Skriver alla grupper till en temporär fil som sedan flyttas på plats. Anropas med låset taget.
+     */
+    private void save() throws IOException {
+        StringBuilder text = new StringBuilder();
+        for (Map.Entry<String, List<String>> group : groups.entrySet()) {
+            text.append(group.getKey());
+            for (String member : group.getValue()) {
+                text.append('\t').append(member);
+            }
+            text.append('\n');
+        }
+        Path target = file.getAbsoluteFile().toPath();
+        Path temp = Files.createTempFile(target.getParent(), file.getName(), ".tmp");
+        try {
+            Files.write(temp, text.toString().getBytes(StandardCharsets.UTF_8));
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+}
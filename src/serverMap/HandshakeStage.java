@@ -0,0 +1,99 @@
+package serverMap;
+
+import Common.User;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.*;
+
+/**
+ * Utför inloggningshandskakningen för nya anslutningar på en egen trådpool så att
+ * accept-loopen aldrig blockeras av en långsam klient. Varje anslutning får en tidsgräns;
+ * en klient som inte har skickat sin {@link User} i tid kopplas bort.
+ *
+ */
+public class HandshakeStage {
+
+    private final Server server;
+    private final ExecutorService workers;
+    private final ScheduledExecutorService deadlines;
+    private final long timeoutMillis;
+
+    /**
+     * Skapar ett nytt handskakningssteg.
+     *
+     * @param server Servern som tar emot färdiga inloggningar.
+     * @param threads Antal arbetstrådar för handskakningar.
+     * @param timeoutMillis Tidsgräns per anslutning i millisekunder.
+     */
+    public HandshakeStage(Server server, int threads, long timeoutMillis) {
+        this.server = server;
+        this.timeoutMillis = timeoutMillis;
+        this.workers = Executors.newFixedThreadPool(threads, daemonThreads("handshake"));
+        this.deadlines = Executors.newSingleThreadScheduledExecutor(daemonThreads("handshake-deadline"));
+    }
+
+    /**
+     * Lämnar över en nyss accepterad socket till arbetspoolen och återvänder direkt.
+     *
+     * @param socket Den accepterade socketen.
+     * @param acceptedAt Tidpunkten för accept enligt {@link System#nanoTime()}.
+     */
+    public void submit(Socket socket, long acceptedAt) {
+        try {
+            workers.execute(() -> handshake(socket, acceptedAt));
+        } catch (RejectedExecutionException e) {
+            closeQuietly(socket);
+        }
+    }
+
+    /**
+     * Schemalägger en åtgärd som körs om handskakningen inte hunnit bli klar inom tidsgränsen.
+     * Används av NIO-motorn, som inte behöver någon arbetstråd för själva läsningen.
+     *
+     * @param onExpired Åtgärden som körs när tidsgränsen har passerats.
+     * @return En Future som kan avbrytas när handskakningen är klar.
+     */
+    public ScheduledFuture<?> scheduleDeadline(Runnable onExpired) {
+        return deadlines.schedule(onExpired, timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void handshake(Socket socket, long acceptedAt) {
+        ScheduledFuture<?> deadline = scheduleDeadline(() -> closeQuietly(socket));
+        StreamConnection connection = null;
+        try {
+            socket.setSoTimeout((int) timeoutMillis);
+            connection = StreamConnection.open(socket, server.getConfig(), server.getFlushPolicy());
+            User user = (User) connection.getInput().readObject();
+            if (!deadline.cancel(false)) {
+                connection.close();
+                return;
+            }
+            socket.setSoTimeout(0);
+            server.handshakeCompleted(user, connection, acceptedAt);
+        } catch (IOException | ClassNotFoundException | ClassCastException e) {
+            deadline.cancel(false);
+            System.out.println("Handshake failed for " + socket.getRemoteSocketAddress() + ": " + e.getMessage());
+            if (connection != null) {
+                connection.close();
+            } else {
+                closeQuietly(socket);
+            }
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private static ThreadFactory daemonThreads(String name) {
+        return runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
@@ -0,0 +1,163 @@
+package serverMap;
+
+import View.ServerGUI;
+
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Stänger sessioner där klienten inte har skickat något, inte ens ett hjärtslag, inom en viss tid.
+ * Annars ligger halvöppna anslutningar kvar tills operativsystemet märker dem, ofta efter flera
+ * timmar. Under tiden hamnar meddelanden i en död socket i stället för i brevlådan, och
+ * användaren kan inte logga in igen eftersom namnet redan används.
+ * <p>
+ * Sessionerna ligger i ett tidshjul med en fack per tick. En session ligger i facket för den tick
+ * då den tidigast kan ha varit tyst för länge. Varje tick går bara igenom ett fack: sessioner som
+ * har varit tysta för länge stängs och övriga flyttas till facket för sin nya tidsgräns. Att
+ * klienten skickar något kostar därför bara en skrivning av tiden i sessionen, och en tick kostar
+ * inte mer för att många är anslutna. Sessioner som har loggat ut tas bort när deras fack gås igenom.
+ *
+ */
+public class IdleReaper {
+
+    private final SessionRegistry sessions;
+    private final ServerGUI serverGUI;
+    private final long timeoutNanos;
+    private final long tickNanos;
+    private final List<List<Session>> wheel;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final ScheduledExecutorService scheduler;
+    private long tick;
+    private int size;
+
+    private final AtomicLong reaped = new AtomicLong();
+    private final AtomicLong rescheduled = new AtomicLong();
+
+    /**
+     * Skapar en ny reaper och startar hjulet.
+     *
+     * @param sessions Registret över inloggade sessioner.
+     * @param serverGUI Serverns GUI där stängda sessioner visas.
+     * @param timeoutMillis Hur länge en klient får vara tyst innan sessionen stängs.
+     * @param tickMillis Hur långt varje fack i hjulet är. Sessionen stängs upp till en tick för sent.
+     */
+    public IdleReaper(SessionRegistry sessions, ServerGUI serverGUI, long timeoutMillis, long tickMillis) {
+        this.sessions = sessions;
+        this.serverGUI = serverGUI;
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        int slots = (int) (timeoutMillis / tickMillis) + 2;
+        this.wheel = new ArrayList<>(slots);
+        for (int i = 0; i < slots; i++) {
+            wheel.add(new ArrayList<>());
+        }
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "idle-reaper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleAtFixedRate(this::advance, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Börjar bevaka en ny session.
+     *
+     * @param session Sessionen, vars klient skickar hjärtslag.
+     */
+    public void register(Session session) {
+        lock.lock();
+        try {
+            schedule(session);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Lägger sessionen i facket för dess tidsgräns. Gränsen ligger högst en timeout fram, så
+     * den hamnar alltid inom ett varv. Anropas med låset taget.
+     */
+    private void schedule(Session session) {
+        long remaining = session.getLastActivity() + timeoutNanos - System.nanoTime();
+        long ticks = Math.max(1, Math.min(wheel.size() - 1, (remaining + tickNanos - 1) / tickNanos));
+        wheel.get((int) ((tick + ticks) % wheel.size())).add(session);
+        size++;
+    }
+
+    private void advance() {
+        List<Session> due;
+        lock.lock();
+        try {
+            tick++;
+            int slot = (int) (tick % wheel.size());
+            due = wheel.set(slot, new ArrayList<>());
+            size -= due.size();
+        } finally {
+            lock.unlock();
+        }
+        long now = System.nanoTime();
+        List<Session> keep = new ArrayList<>();
+        for (Session session : due) {
+            if (sessions.get(session.getUser().getName()) != session) {
+                continue;
+            }
+            long idle = now - session.getLastActivity();
+            if (idle >= timeoutNanos) {
+                reaped.incrementAndGet();
+                String event = session.getUser().getName() + " timed out, nothing received for "
+                        + TimeUnit.NANOSECONDS.toSeconds(idle) + " s";
+                System.out.println(event);
+                serverGUI.updateServerGUI(LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss"))
+                        + " " + event + "\n");
+                session.getConnection().close();
+            } else {
+                keep.add(session);
+            }
+        }
+        if (keep.isEmpty()) {
+            return;
+        }
+        rescheduled.addAndGet(keep.size());
+        lock.lock();
+        try {
+            for (Session session : keep) {
+                schedule(session);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return Antal sessioner som har stängts för att klienten var tyst för länge.
+     */
+    public long getReaped() {
+        return reaped.get();
+    }
+
+    /**
+     * @return Antal gånger en session som fortfarande var aktiv har flyttats till ett senare fack.
+     */
+    public long getRescheduled() {
+        return rescheduled.get();
+    }
+
+    /**
+     * @return Antal sessioner i hjulet, inklusive utloggade som inte har tagits bort än.
+     */
+    public int getSize() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
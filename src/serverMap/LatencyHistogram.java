@@ -0,0 +1,86 @@
+package serverMap;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Ett enkelt låsfritt histogram för latenser. Värdena sorteras i hinkar med
+ * tvåpotensgränser i mikrosekunder, vilket räcker för att uppskatta percentiler.
+ *
+ */
+public class LatencyHistogram {
+
+    private static final int BUCKETS = 40;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    /**
+     * Registrerar en uppmätt latens.
+     *
+     * @param nanos Latensen i nanosekunder.
+     */
+    public void record(long nanos) {
+        long micros = Math.max(1, TimeUnit.NANOSECONDS.toMicros(nanos));
+        int bucket = Math.min(BUCKETS - 1, 63 - Long.numberOfLeadingZeros(micros));
+        buckets.incrementAndGet(bucket);
+        count.incrementAndGet();
+        totalNanos.addAndGet(nanos);
+        maxNanos.accumulateAndGet(nanos, Math::max);
+    }
+
+    /**
+     * @return Antal registrerade värden.
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * Uppskattar en percentil som den övre gränsen för hinken där percentilen hamnar.
+     *
+     * @param percentile Percentilen mellan 0 och 100.
+     * @return Uppskattad latens i millisekunder.
+     */
+    public double percentileMillis(double percentile) {
+        long total = count.get();
+        if (total == 0) {
+            return 0;
+        }
+        long target = (long) Math.ceil(total * percentile / 100.0);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += buckets.get(i);
+            if (seen >= target) {
+                return (1L << (i + 1)) / 1000.0;
+            }
+        }
+        return maxNanos.get() / 1_000_000.0;
+    }
+
+    /**
+     * @return Medelvärdet i millisekunder.
+     */
+    public double averageMillis() {
+        long total = count.get();
+        return total == 0 ? 0 : totalNanos.get() / (double) total / 1_000_000.0;
+    }
+
+    /**
+     * @return Det största registrerade värdet i millisekunder.
+     */
+    public double maxMillis() {
+        return maxNanos.get() / 1_000_000.0;
+    }
+
+    /**
+     * @return En kort sammanfattning av histogrammet.
+     */
+    public String summary() {
+        return String.format("n=%d avg=%.1fms p50=%.1fms p99=%.1fms max=%.1fms",
+                getCount(), averageMillis(), percentileMillis(50), percentileMillis(99), maxMillis());
+    }
+}
@@ -0,0 +1,262 @@
+package serverMap;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Trafikloggen lagrad som rullande segment i en katalog. Varje segment {@code NNNNNNNN.log}
+ * har ett glest index {@code NNNNNNNN.idx} där varje post beskriver ett block av hela rader:
+ * blockets start- och slutposition i segmentet samt den tidigaste och senaste tidsstämpeln i blocket.
+ * En sökning på ett tidsintervall läser bara indexen och de block som överlappar intervallet.
+ * <p>
+ * Rader som saknar egen tidsstämpel, t.ex. fortsättningen på ett meddelande med radbrytningar,
+ * räknas till tidsstämpeln på raden före.
+ *
+ */
+public class LogSegments {
+
+    private static final DateTimeFormatter TIMESTAMP = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    private static final int TIMESTAMP_LENGTH = 19;
+    private static final int INDEX_RECORD_SIZE = 4 * Long.BYTES;
+    private static final byte[] LINE_SEPARATOR = "\n".getBytes(StandardCharsets.UTF_8);
+
+    private final File directory;
+    private final long segmentBytes;
+    private final int indexBytes;
+
+    private int sequence;
+    private OutputStream data;
+    private DataOutputStream index;
+    private long segmentSize;
+    private long blockStart;
+    private long blockMin = Long.MAX_VALUE;
+    private long blockMax = Long.MIN_VALUE;
+    private long lastTimestamp = Long.MIN_VALUE;
+
+    /**
+     * @param directory Katalogen där segmenten lagras.
+     * @param segmentBytes Ungefärlig storlek i bytes då ett nytt segment påbörjas.
+     * @param indexBytes Ungefärlig storlek i bytes på de block som indexet pekar ut.
+     */
+    public LogSegments(File directory, long segmentBytes, int indexBytes) {
+        this.directory = directory;
+        this.segmentBytes = Math.max(1, segmentBytes);
+        this.indexBytes = Math.max(1, indexBytes);
+    }
+
+    /**
+     * Skriver en rad till det aktuella segmentet. Ett nytt segment öppnas vid första raden
+     * efter start och när det aktuella segmentet har blivit fullt.
+     *
+     * @param line Raden som ska skrivas, utan radslut.
+     * @return Antal bytes som skrevs.
+     * @throws IOException Om segmentet inte kunde skrivas.
+     */
+    public int write(String line) throws IOException {
+        if (data == null) {
+            openNextSegment();
+        }
+        long timestamp = timestampOf(line, lastTimestamp);
+        lastTimestamp = timestamp;
+
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        data.write(bytes);
+        data.write(LINE_SEPARATOR);
+        int written = bytes.length + LINE_SEPARATOR.length;
+        segmentSize += written;
+        if (timestamp != Long.MIN_VALUE) {
+            blockMin = Math.min(blockMin, timestamp);
+            blockMax = Math.max(blockMax, timestamp);
+        }
+
+        if (segmentSize - blockStart >= indexBytes) {
+            closeBlock();
+        }
+        if (segmentSize >= segmentBytes) {
+            closeSegment();
+        }
+        return written;
+    }
+
+    /**
+     * Skriver ut buffrade rader och indexposter till disk. Datat skrivs före indexet så att
+     * en indexpost aldrig pekar förbi slutet på segmentet.
+     *
+     * @throws IOException Om segmentet inte kunde skrivas.
+     */
+    public void flush() throws IOException {
+        if (data != null) {
+            data.flush();
+            index.flush();
+        }
+    }
+
+    /**
+     * Avslutar det aktuella blocket och stänger segmentet.
+     *
+     * @throws IOException Om segmentet inte kunde skrivas.
+     */
+    public void close() throws IOException {
+        if (data != null) {
+            closeSegment();
+        }
+    }
+
+    /**
+     * Hämtar alla rader vars tidsstämpel ligger i det givna intervallet, gränserna inräknade.
+     * Endast block som enligt indexet överlappar intervallet läses, samt den del av det
+     * sista segmentet som ännu inte har indexerats.
+     *
+     * @param from Intervallets början.
+     * @param to Intervallets slut.
+     * @return Raderna i den ordning de skrevs.
+     * @throws IOException Om ett segment inte kunde läsas.
+     */
+    public List<String> read(LocalDateTime from, LocalDateTime to) throws IOException {
+        long fromKey = key(from);
+        long toKey = key(to);
+        List<String> result = new ArrayList<>();
+        File[] segments = directory.listFiles((dir, name) -> name.endsWith(".log"));
+        if (segments == null) {
+            return result;
+        }
+        Arrays.sort(segments);
+
+        for (File segment : segments) {
+            File indexFile = new File(directory, segment.getName().replace(".log", ".idx"));
+            long[] records = readIndex(indexFile);
+            try (RandomAccessFile file = new RandomAccessFile(segment, "r")) {
+                long length = file.length();
+                long indexedEnd = 0;
+                long spanStart = -1;
+                long spanEnd = -1;
+                for (int i = 0; i < records.length; i += 4) {
+                    long start = records[i];
+                    long end = Math.min(records[i + 1], length);
+                    indexedEnd = end;
+                    boolean overlaps = records[i + 2] <= toKey && records[i + 3] >= fromKey;
+                    if (!overlaps) {
+                        continue;
+                    }
+                    if (spanStart >= 0 && start == spanEnd) {
+                        spanEnd = end;
+                    } else {
+                        readSpan(file, spanStart, spanEnd, fromKey, toKey, result);
+                        spanStart = start;
+                        spanEnd = end;
+                    }
+                }
+                readSpan(file, spanStart, spanEnd, fromKey, toKey, result);
+                readSpan(file, indexedEnd, length, fromKey, toKey, result);
+            }
+        }
+        return result;
+    }
+
+    private void readSpan(RandomAccessFile file, long start, long end, long fromKey, long toKey, List<String> result) throws IOException {
+        if (start < 0 || end <= start) {
+            return;
+        }
+        byte[] buffer = new byte[(int) (end - start)];
+        file.seek(start);
+        file.readFully(buffer);
+
+        long timestamp = Long.MIN_VALUE;
+        int lineStart = 0;
+        for (int i = 0; i <= buffer.length; i++) {
+            if (i < buffer.length && buffer[i] != '\n') {
+                continue;
+            }
+            String line = new String(buffer, lineStart, i - lineStart, StandardCharsets.UTF_8);
+            lineStart = i + 1;
+            if (line.trim().isEmpty()) {
+                continue;
+            }
+            timestamp = timestampOf(line, timestamp);
+            if (timestamp >= fromKey && timestamp <= toKey) {
+                result.add(line);
+            }
+        }
+    }
+
+    private long[] readIndex(File indexFile) throws IOException {
+        if (!indexFile.exists()) {
+            return new long[0];
+        }
+        int count = (int) (indexFile.length() / INDEX_RECORD_SIZE);
+        long[] records = new long[count * 4];
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+            for (int i = 0; i < records.length; i++) {
+                records[i] = in.readLong();
+            }
+        }
+        return records;
+    }
+
+    private void openNextSegment() throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create log directory " + directory);
+        }
+        if (sequence == 0) {
+            String[] existing = directory.list((dir, name) -> name.endsWith(".log"));
+            if (existing != null) {
+                for (String name : existing) {
+                    try {
+                        sequence = Math.max(sequence, Integer.parseInt(name.substring(0, name.length() - 4)));
+                    } catch (NumberFormatException e) {
+                        // Inte ett segment som loggen har skapat.
+                    }
+                }
+            }
+        }
+        sequence++;
+        String name = String.format("%08d", sequence);
+        data = new BufferedOutputStream(new FileOutputStream(new File(directory, name + ".log")), 64 * 1024);
+        index = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(new File(directory, name + ".idx"))));
+        segmentSize = 0;
+        blockStart = 0;
+    }
+
+    private void closeBlock() throws IOException {
+        if (segmentSize == blockStart) {
+            return;
+        }
+        index.writeLong(blockStart);
+        index.writeLong(segmentSize);
+        index.writeLong(blockMin == Long.MAX_VALUE ? Long.MIN_VALUE : blockMin);
+        index.writeLong(blockMax);
+        blockStart = segmentSize;
+        blockMin = Long.MAX_VALUE;
+        blockMax = Long.MIN_VALUE;
+    }
+
+    private void closeSegment() throws IOException {
+        closeBlock();
+        data.close();
+        index.close();
+        data = null;
+        index = null;
+    }
+
+    private static long key(LocalDateTime time) {
+        return time.toEpochSecond(ZoneOffset.UTC);
+    }
+
+    private static long timestampOf(String line, long previous) {
+        if (line.length() < TIMESTAMP_LENGTH) {
+            return previous;
+        }
+        try {
+            return key(LocalDateTime.parse(line.substring(0, TIMESTAMP_LENGTH), TIMESTAMP));
+        } catch (DateTimeParseException e) {
+            return previous;
+        }
+    }
+}
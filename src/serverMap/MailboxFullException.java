@@ -0,0 +1,21 @@
+package serverMap;
+
+import java.io.IOException;
+
+/**
+ * Kastas när en mottagares brevlåda har nått sin gräns och meddelandet därför inte lagrades.
+ *
+ */
+public class MailboxFullException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Skapar ett nytt undantag.
+     *
+     * @param message Beskrivning av felet.
+     */
+    public MailboxFullException(String message) {
+        super(message);
+    }
+}
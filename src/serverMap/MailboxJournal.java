@@ -0,0 +1,819 @@
+package serverMap;
+
+import Common.BinaryCodec;
+import Common.Message;
+import Common.PayloadCodec;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * Beständig brevlåda för meddelanden till användare som är offline. Meddelandena läggs till i
+ * slutet av en minnesmappad journalfil och finns kvar efter en omstart av servern.
+ * <p>
+ * Varje post består av längd, CRC32 och innehåll. Längden skrivs sist, så en post som bara
+ * hunnit skrivas delvis syns som slutet på journalen. Vid start läses journalen från början och
+ * en skadad svans, dvs. en post med felaktig längd eller CRC, nollställs. En PUT-post innehåller
+ * ett meddelande till en mottagare, en ACK-post markerar att mottagarens meddelanden upp till ett
+ * visst löpnummer har levererats. I minnet finns bara positionerna för de meddelanden som väntar.
+ * När mer än hälften av journalen består av levererade poster skrivs de väntande posterna om till
+ * en ny fil som ersätter den gamla.
+ * <p>
+ * Varje mottagare har en gräns för antal meddelanden och antal bytes. Meddelandena ligger i
+ * journalen och inte på heapen, så gränserna skyddar disken och inloggningen snarare än minnet.
+ * Ett meddelande som refererar till en bild räknas med bildens storlek i {@link BlobStore}, och en
+ * referens till ett gruppmeddelande med dess storlek i {@link GroupBodyStore}, så att det en
+ * mottagare väntar på ingår i gränsen. Så länge en referens till ett gruppmeddelande väntar i
+ * journalen håller den en referens i {@link GroupBodyStore}.
+ * När gränsen nås gäller en av policyerna {@link #OVERFLOW_REJECT}, {@link #OVERFLOW_DROP_OLDEST}
+ * eller {@link #OVERFLOW_DROP_IMAGES}.
+ *
+ */
+public class MailboxJournal {
+
+    /** Nya meddelanden avvisas när brevlådan är full. */
+    public static final String OVERFLOW_REJECT = "reject";
+
+    /** De äldsta meddelandena i brevlådan kastas tills det nya får plats. */
+    public static final String OVERFLOW_DROP_OLDEST = "drop-oldest";
+
+    /**
+     * Bilden tas bort från det nya meddelandet om texten då får plats, annars avvisas det. Texten
+     * lagras utan referens till bilden men med sin grupp.
+     */
+    public static final String OVERFLOW_DROP_IMAGES = "drop-images";
+
+    private static final int MAGIC = 0x4D424F58;
+    private static final int VERSION = 1;
+    private static final int FILE_HEADER_SIZE = 8;
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final int INITIAL_SIZE = 1024 * 1024;
+    private static final byte TYPE_PUT = 1;
+    private static final byte TYPE_ACK = 2;
+
+    private final Path path;
+    private final long compactBytes;
+    private final PayloadCodec codec = new BinaryCodec();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final int maxMessages;
+    private final long maxBytes;
+    private final String overflow;
+    private final Map<String, Mailbox> pending = new HashMap<>();
+    private final ScheduledExecutorService syncer;
+    private final BlobStore blobs;
+    private final GroupBodyStore bodies;
+
+    private FileChannel channel;
+    private MappedByteBuffer map;
+    private int writePosition;
+    private long nextSeq = 1;
+    private long liveBytes;
+    private long pendingCount;
+    private long compactions;
+    private long dropped;
+    private long rejected;
+    private long imagesDropped;
+
+    /**
+     * En väntande post i journalen.
+     */
+    private static final class Entry {
+        final long seq;
+        int position;
+        final int length;
+        final int payloadOffset;
+        final long referencedBytes;
+        final String bodyHash;
+
+        Entry(long seq, int position, int length, int payloadOffset, long referencedBytes, String bodyHash) {
+            this.seq = seq;
+            this.position = position;
+            this.length = length;
+            this.payloadOffset = payloadOffset;
+            this.referencedBytes = referencedBytes;
+            this.bodyHash = bodyHash;
+        }
+
+        int recordSize() {
+            return RECORD_HEADER_SIZE + length;
+        }
+    }
+
+    /**
+     * De väntande posterna till en mottagare, deras storlek i journalen och storleken på bilderna
+     * och gruppmeddelandena de refererar till.
+     */
+    private static final class Mailbox {
+        final ArrayDeque<Entry> entries = new ArrayDeque<>();
+        long bytes;
+        long referencedBytes;
+
+        void add(Entry entry) {
+            entries.add(entry);
+            bytes += entry.recordSize();
+            referencedBytes += entry.referencedBytes;
+        }
+
+        Entry removeFirst() {
+            Entry entry = entries.pollFirst();
+            bytes -= entry.recordSize();
+            referencedBytes -= entry.referencedBytes;
+            return entry;
+        }
+
+        long usage() {
+            return bytes + referencedBytes;
+        }
+    }
+
+    /**
+     * Öppnar journalen i den givna katalogen, återställer den efter en eventuell krasch och
+     * startar en bakgrundstråd som skriver ut ändringar till disk med jämna mellanrum.
+     *
+     * @param directory Katalogen som journalen ligger i.
+     * @param syncMillis Tid mellan två tvingade skrivningar till disk, 0 för att bara göra det vid stängning.
+     * @param compactBytes Antal bytes levererade poster som måste finnas innan journalen komprimeras.
+     * @param maxMessages Högsta antal väntande meddelanden per mottagare.
+     * @param maxBytes Högsta antal bytes väntande meddelanden per mottagare.
+     * @param overflow Vad som händer när en brevlåda är full.
+     * @throws IOException Om journalen inte kunde öppnas.
+     */
+    public MailboxJournal(File directory, long syncMillis, long compactBytes, int maxMessages, long maxBytes, String overflow) throws IOException {
+        this(directory, syncMillis, compactBytes, maxMessages, maxBytes, overflow, null, null);
+    }
+
+    /**
+     * Öppnar journalen och räknar bilder och gruppmeddelanden som meddelandena refererar till in
+     * i mottagarnas gränser.
+     *
+     * @param directory Katalogen som journalen ligger i.
+     * @param syncMillis Tid mellan två tvingade skrivningar till disk, 0 för att bara göra det vid stängning.
+     * @param compactBytes Antal bytes levererade poster som måste finnas innan journalen komprimeras.
+     * @param maxMessages Högsta antal väntande meddelanden per mottagare.
+     * @param maxBytes Högsta antal bytes väntande meddelanden, bilder och gruppmeddelanden per mottagare.
+     * @param overflow Vad som händer när en brevlåda är full.
+     * @param blobs Lagringen av bilder som meddelandena refererar till, eller null.
+     * @param bodies Lagringen av gruppmeddelanden som meddelandena refererar till, eller null.
+     * @throws IOException Om journalen inte kunde öppnas.
+     */
+    public MailboxJournal(File directory, long syncMillis, long compactBytes, int maxMessages, long maxBytes, String overflow,
+                          BlobStore blobs, GroupBodyStore bodies) throws IOException {
+        this.blobs = blobs;
+        this.bodies = bodies;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create mailbox directory " + directory);
+        }
+        this.path = new File(directory, "journal.dat").toPath();
+        this.compactBytes = Math.max(0, compactBytes);
+        this.maxMessages = Math.max(1, maxMessages);
+        this.maxBytes = Math.max(1, maxBytes);
+        this.overflow = overflow;
+        open();
+        recover();
+
+        if (syncMillis > 0) {
+            syncer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "mailbox-sync");
+                thread.setDaemon(true);
+                return thread;
+            });
+            syncer.scheduleWithFixedDelay(this::sync, syncMillis, syncMillis, TimeUnit.MILLISECONDS);
+        } else {
+            syncer = null;
+        }
+    }
+
+    /**
+     * Lägger till ett meddelande i mottagarens brevlåda. Om brevlådan är full tillämpas
+     * den inställda policyn.
+     *
+     * @param recipient Namnet på mottagaren.
+     * @param message Meddelandet.
+     * @throws MailboxFullException Om brevlådan är full och meddelandet inte lagrades.
+     * @throws IOException Om meddelandet inte kunde kodas eller journalen är full.
+     */
+    public void append(String recipient, Message message) throws IOException {
+        byte[] payload = codec.encode(message);
+        byte[] name = recipient.getBytes(StandardCharsets.UTF_8);
+        int payloadOffset = 1 + Long.BYTES + Integer.BYTES + name.length;
+        long referenced = referencedBytesOf(message);
+
+        lock.lock();
+        try {
+            Mailbox mailbox = pending.computeIfAbsent(recipient, k -> new Mailbox());
+            if (!fits(mailbox, RECORD_HEADER_SIZE + payloadOffset + payload.length + referenced)) {
+                byte[] stored = makeRoom(recipient, mailbox, message, payload, RECORD_HEADER_SIZE + payloadOffset, referenced);
+                if (stored != payload) {
+                    referenced = bodyBytesOf(message);
+                }
+                payload = stored;
+            }
+            int length = payloadOffset + payload.length;
+            long seq = nextSeq++;
+            ByteBuffer body = ByteBuffer.allocate(length);
+            body.put(TYPE_PUT).putLong(seq).putInt(name.length).put(name).put(payload);
+            int position = writeRecord(body.array());
+            mailbox.add(new Entry(seq, position, length, payloadOffset, referenced, message.getBodyHash()));
+            if (bodies != null && message.getBodyHash() != null) {
+                bodies.retain(message.getBodyHash());
+            }
+            liveBytes += RECORD_HEADER_SIZE + length;
+            pendingCount++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean fits(Mailbox mailbox, long size) {
+        return mailbox.entries.size() < maxMessages && mailbox.usage() + size <= maxBytes;
+    }
+
+    /**
+     * @return Storleken på den lagrade bilden och det lagrade gruppmeddelandet som meddelandet
+     * refererar till.
+     */
+    private long referencedBytesOf(Message message) {
+        long referenced = bodyBytesOf(message);
+        if (blobs != null && message.getImageHash() != null) {
+            referenced += blobs.length(message.getImageHash());
+        }
+        return referenced;
+    }
+
+    private long bodyBytesOf(Message message) {
+        if (bodies != null && message.getBodyHash() != null) {
+            return bodies.length(message.getBodyHash());
+        }
+        return 0;
+    }
+
+    /**
+     * Lämnar tillbaka referensen till gruppmeddelandet för en post som har tagits bort.
+     * Anropas med låset taget.
+     */
+    private void released(Entry entry) {
+        if (bodies != null && entry.bodyHash != null) {
+            bodies.release(entry.bodyHash);
+        }
+    }
+
+    /**
+     * Tillämpar policyn för en full brevlåda. Anropas med låset taget.
+     *
+     * @return Innehållet som ska lagras: samma array om meddelandet lagras som det är, en ny
+     * array utan bilden om bilden togs bort.
+     */
+    private byte[] makeRoom(String recipient, Mailbox mailbox, Message message, byte[] payload, int overhead, long referenced)
+            throws IOException {
+        if (OVERFLOW_DROP_OLDEST.equalsIgnoreCase(overflow) && overhead + payload.length + referenced <= maxBytes) {
+            Entry last = null;
+            while (!mailbox.entries.isEmpty() && !fits(mailbox, overhead + payload.length + referenced)) {
+                last = mailbox.removeFirst();
+                released(last);
+                liveBytes -= last.recordSize();
+                pendingCount--;
+                dropped++;
+            }
+            if (last != null) {
+                writeAck(recipient, last.seq);
+            }
+            return payload;
+        }
+        boolean hasImage = message.getImageHash() != null || message.getImage() != null;
+        if (OVERFLOW_DROP_IMAGES.equalsIgnoreCase(overflow) && hasImage && message.getMessage() != null) {
+            Message text = new Message(message.getSender(), message.getReceiver(), message.getMessage());
+            text.setGroup(message.getGroup());
+            text.setBodyHash(message.getBodyHash());
+            byte[] textOnly = codec.encode(text);
+            if (fits(mailbox, overhead + textOnly.length + referencedBytesOf(text))) {
+                imagesDropped++;
+                return textOnly;
+            }
+        }
+        rejected++;
+        if (mailbox.entries.isEmpty()) {
+            pending.remove(recipient);
+        }
+        throw new MailboxFullException("Mailbox for " + recipient + " is full");
+    }
+
+    /**
+     * Läser de äldsta meddelandena som väntar på mottagaren utan att markera dem som levererade.
+     *
+     * @param recipient Namnet på mottagaren.
+     * @param max Högsta antal meddelanden som läses.
+     * @return Meddelandena, äldst först, en tom lista om det inte finns några.
+     */
+    public ArrayList<Message> peek(String recipient, int max) {
+        List<byte[]> payloads = new ArrayList<>();
+        lock.lock();
+        try {
+            Mailbox mailbox = pending.get(recipient);
+            if (mailbox == null) {
+                return new ArrayList<>(0);
+            }
+            for (Entry entry : mailbox.entries) {
+                if (payloads.size() >= max) {
+                    break;
+                }
+                payloads.add(payloadOf(entry));
+            }
+        } finally {
+            lock.unlock();
+        }
+        return decode(payloads);
+    }
+
+    private byte[] payloadOf(Entry entry) {
+        byte[] payload = new byte[entry.length - entry.payloadOffset];
+        map.get(entry.position + RECORD_HEADER_SIZE + entry.payloadOffset, payload);
+        return payload;
+    }
+
+    private ArrayList<Message> decode(List<byte[]> payloads) {
+        ArrayList<Message> messages = new ArrayList<>(payloads.size());
+        for (byte[] payload : payloads) {
+            try {
+                messages.add((Message) codec.decode(payload, 0, payload.length));
+            } catch (IOException | ClassNotFoundException | ClassCastException e) {
+                e.printStackTrace();
+            }
+        }
+        return messages;
+    }
+
+    /**
+     * Läser och markerar alla väntande meddelanden till mottagaren som levererade i ett enda steg,
+     * så att inget meddelande som läggs till under tiden kan försvinna. Referenser till
+     * gruppmeddelanden ersätts med de lagrade meddelandena innan referenserna lämnas tillbaka.
+     *
+     * @param recipient Namnet på mottagaren.
+     * @return Meddelandena, äldst först, en tom lista om det inte fanns några.
+     */
+    public List<Message> drain(String recipient) {
+        List<byte[]> payloads = new ArrayList<>();
+        Mailbox mailbox = null;
+        lock.lock();
+        try {
+            mailbox = pending.remove(recipient);
+            if (mailbox == null) {
+                return Collections.emptyList();
+            }
+            for (Entry entry : mailbox.entries) {
+                payloads.add(payloadOf(entry));
+            }
+            writeAck(recipient, mailbox.entries.getLast().seq);
+            liveBytes -= mailbox.bytes;
+            pendingCount -= mailbox.entries.size();
+            maybeCompact();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            lock.unlock();
+        }
+        ArrayList<Message> messages = decode(payloads);
+        if (bodies != null) {
+            messages.replaceAll(bodies::resolve);
+            lock.lock();
+            try {
+                mailbox.entries.forEach(this::released);
+            } finally {
+                lock.unlock();
+            }
+        }
+        return messages;
+    }
+
+    /**
+     * Markerar de äldsta väntande meddelandena till mottagaren som levererade.
+     *
+     * @param recipient Namnet på mottagaren.
+     * @param count Antal meddelanden, räknat från det äldsta.
+     */
+    public void acknowledge(String recipient, int count) {
+        lock.lock();
+        try {
+            Mailbox mailbox = pending.get(recipient);
+            if (mailbox == null || count <= 0) {
+                return;
+            }
+            Entry last = null;
+            for (int i = 0; i < count && !mailbox.entries.isEmpty(); i++) {
+                last = mailbox.removeFirst();
+                released(last);
+                liveBytes -= last.recordSize();
+                pendingCount--;
+            }
+            if (mailbox.entries.isEmpty()) {
+                pending.remove(recipient);
+            }
+            writeAck(recipient, last.seq);
+            maybeCompact();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param recipient Namnet på mottagaren.
+     * @return Antal meddelanden som väntar på mottagaren.
+     */
+    public int count(String recipient) {
+        lock.lock();
+        try {
+            Mailbox mailbox = pending.get(recipient);
+            return mailbox == null ? 0 : mailbox.entries.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Tvingar ut alla ändringar i journalen till disk.
+     */
+    public void sync() {
+        lock.lock();
+        try {
+            map.force();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Skriver ut journalen till disk och stänger den.
+     */
+    public void close() {
+        if (syncer != null) {
+            syncer.shutdownNow();
+        }
+        lock.lock();
+        try {
+            map.force();
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return Antal meddelanden som väntar på leverans.
+     */
+    public long getPendingCount() {
+        lock.lock();
+        try {
+            return pendingCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return Antal använda bytes i journalen.
+     */
+    public long getSize() {
+        lock.lock();
+        try {
+            return writePosition;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return Antal gånger journalen har komprimerats.
+     */
+    public long getCompactions() {
+        lock.lock();
+        try {
+            return compactions;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return Antal meddelanden som har kastats för att ge plats åt nyare.
+     */
+    public long getDropped() {
+        lock.lock();
+        try {
+            return dropped;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return Antal meddelanden som har avvisats för att mottagarens brevlåda var full.
+     */
+    public long getRejected() {
+        lock.lock();
+        try {
+            return rejected;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return Antal meddelanden som har lagrats utan sin bild för att brevlådan var full.
+     */
+    public long getImagesDropped() {
+        lock.lock();
+        try {
+            return imagesDropped;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return Antal mottagare som har väntande meddelanden.
+     */
+    public int getMailboxCount() {
+        lock.lock();
+        try {
+            return pending.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return Mottagarna som har väntande meddelanden.
+     */
+    public List<String> recipients() {
+        lock.lock();
+        try {
+            return new ArrayList<>(pending.keySet());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return Mottagaren vars brevlåda är fullast i förhållande till sin gräns, eller null.
+     */
+    public String fullestRecipient() {
+        lock.lock();
+        try {
+            String fullest = null;
+            double most = 0;
+            for (String recipient : pending.keySet()) {
+                double used = usageLocked(recipient);
+                if (fullest == null || used > most) {
+                    fullest = recipient;
+                    most = used;
+                }
+            }
+            return fullest;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param recipient Namnet på mottagaren.
+     * @return Hur stor andel av gränsen för antal meddelanden eller bytes som mottagaren använder, 0 till 1.
+     */
+    public double usage(String recipient) {
+        lock.lock();
+        try {
+            return usageLocked(recipient);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private double usageLocked(String recipient) {
+        Mailbox mailbox = pending.get(recipient);
+        if (mailbox == null) {
+            return 0;
+        }
+        return Math.max((double) mailbox.entries.size() / maxMessages, (double) mailbox.usage() / maxBytes);
+    }
+
+    private void writeAck(String recipient, long upTo) throws IOException {
+        byte[] name = recipient.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer body = ByteBuffer.allocate(1 + Long.BYTES + Integer.BYTES + name.length + Long.BYTES);
+        body.put(TYPE_ACK).putLong(nextSeq++).putInt(name.length).put(name).putLong(upTo);
+        writeRecord(body.array());
+    }
+
+    private void open() throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        boolean fresh = channel.size() < FILE_HEADER_SIZE;
+        map = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(channel.size(), INITIAL_SIZE));
+        if (fresh) {
+            map.putInt(0, MAGIC);
+            map.putInt(4, VERSION);
+        } else if (map.getInt(0) != MAGIC) {
+            throw new IOException("Not a mailbox journal: " + path);
+        } else if (map.getInt(4) != VERSION) {
+            throw new IOException("Unsupported mailbox journal version: " + map.getInt(4));
+        }
+        writePosition = FILE_HEADER_SIZE;
+    }
+
+    private void recover() {
+        int position = FILE_HEADER_SIZE;
+        int capacity = map.capacity();
+        while (position + RECORD_HEADER_SIZE <= capacity) {
+            int length = map.getInt(position);
+            if (length == 0) {
+                break;
+            }
+            if (length < 0 || length > capacity - position - RECORD_HEADER_SIZE
+                    || map.getInt(position + 4) != crc(map, position + RECORD_HEADER_SIZE, length)
+                    || !replay(position, length)) {
+                System.out.println("Mailbox journal: discarding damaged tail at offset " + position);
+                for (int i = position; i < capacity; i++) {
+                    map.put(i, (byte) 0);
+                }
+                map.force();
+                break;
+            }
+            position += RECORD_HEADER_SIZE + length;
+        }
+        writePosition = position;
+        if (bodies != null) {
+            for (Mailbox mailbox : pending.values()) {
+                mailbox.entries.forEach(entry -> {
+                    if (entry.bodyHash != null) {
+                        bodies.retain(entry.bodyHash);
+                    }
+                });
+            }
+        }
+        if (pendingCount > 0) {
+            System.out.println("Mailbox journal: recovered " + pendingCount + " pending messages");
+        }
+    }
+
+    private boolean replay(int position, int length) {
+        ByteBuffer body = map.duplicate();
+        body.position(position + RECORD_HEADER_SIZE).limit(position + RECORD_HEADER_SIZE + length);
+        byte type = body.get();
+        long seq = body.getLong();
+        int nameLength = body.getInt();
+        if (nameLength < 0 || nameLength > body.remaining()) {
+            return false;
+        }
+        byte[] name = new byte[nameLength];
+        body.get(name);
+        String recipient = new String(name, StandardCharsets.UTF_8);
+        nextSeq = Math.max(nextSeq, seq + 1);
+
+        if (type == TYPE_PUT) {
+            int payloadOffset = 1 + Long.BYTES + Integer.BYTES + nameLength;
+            Message message = messageAt(new Entry(seq, position, length, payloadOffset, 0, null));
+            long referenced = message == null ? 0 : referencedBytesOf(message);
+            String bodyHash = message == null ? null : message.getBodyHash();
+            pending.computeIfAbsent(recipient, k -> new Mailbox()).add(
+                    new Entry(seq, position, length, payloadOffset, referenced, bodyHash));
+            liveBytes += RECORD_HEADER_SIZE + length;
+            pendingCount++;
+            return true;
+        }
+        if (type == TYPE_ACK && body.remaining() >= Long.BYTES) {
+            long upTo = body.getLong();
+            Mailbox mailbox = pending.get(recipient);
+            while (mailbox != null && !mailbox.entries.isEmpty() && mailbox.entries.peekFirst().seq <= upTo) {
+                liveBytes -= mailbox.removeFirst().recordSize();
+                pendingCount--;
+            }
+            if (mailbox != null && mailbox.entries.isEmpty()) {
+                pending.remove(recipient);
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Avkodar en återläst post för att se vad den refererar till. En post som inte går att
+     * avkoda ger null och räknas utan referenser; den hoppas över först när den levereras.
+     */
+    private Message messageAt(Entry entry) {
+        byte[] payload = payloadOf(entry);
+        try {
+            return (Message) codec.decode(payload, 0, payload.length);
+        } catch (IOException | ClassNotFoundException | ClassCastException e) {
+            return null;
+        }
+    }
+
+    private int writeRecord(byte[] body) throws IOException {
+        ensureCapacity(RECORD_HEADER_SIZE + body.length);
+        int position = writePosition;
+        map.put(position + RECORD_HEADER_SIZE, body);
+        map.putInt(position + 4, crc(ByteBuffer.wrap(body), 0, body.length));
+        map.putInt(position, body.length);
+        writePosition += RECORD_HEADER_SIZE + body.length;
+        return position;
+    }
+
+    private void ensureCapacity(int needed) throws IOException {
+        long required = (long) writePosition + needed + RECORD_HEADER_SIZE;
+        if (required <= map.capacity()) {
+            return;
+        }
+        long size = Math.max(required, (long) map.capacity() * 2);
+        if (size > Integer.MAX_VALUE) {
+            size = Integer.MAX_VALUE;
+            if (required > size) {
+                throw new IOException("Mailbox journal is full");
+            }
+        }
+        map.force();
+        map = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+
+    /**
+     * Skriver de väntande posterna till en ny fil och byter ut journalen mot den. Den nya filen
+     * öppnas innan den flyttas på plats, och posternas nya positioner används först när flytten
+     * har lyckats. Misslyckas något fortsätter journalen i den gamla filen som om inget hänt.
+     */
+    private void maybeCompact() throws IOException {
+        long deadBytes = writePosition - FILE_HEADER_SIZE - liveBytes;
+        if (deadBytes < compactBytes || deadBytes < liveBytes) {
+            return;
+        }
+        List<Entry> live = new ArrayList<>((int) pendingCount);
+        for (Mailbox mailbox : pending.values()) {
+            live.addAll(mailbox.entries);
+        }
+        live.sort(Comparator.comparingInt(entry -> entry.position));
+
+        Path compacted = path.resolveSibling("journal.compact");
+        int size = (int) Math.max(INITIAL_SIZE, FILE_HEADER_SIZE + liveBytes + RECORD_HEADER_SIZE);
+        int[] positions = new int[live.size()];
+        int position = FILE_HEADER_SIZE;
+        FileChannel out = FileChannel.open(compacted, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        MappedByteBuffer target;
+        try {
+            target = out.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            target.putInt(0, MAGIC);
+            target.putInt(4, VERSION);
+            for (int i = 0; i < positions.length; i++) {
+                Entry entry = live.get(i);
+                target.put(position, map, entry.position, entry.recordSize());
+                positions[i] = position;
+                position += entry.recordSize();
+            }
+            target.force();
+            map.force();
+            Files.move(compacted, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | RuntimeException e) {
+            try {
+                out.close();
+                Files.deleteIfExists(compacted);
+            } catch (IOException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+            throw e;
+        }
+
+        for (int i = 0; i < positions.length; i++) {
+            live.get(i).position = positions[i];
+        }
+        writePosition = position;
+        FileChannel old = channel;
+        channel = out;
+        map = target;
+        compactions++;
+        try {
+            old.close();
+        } catch (IOException e) {
+            System.out.println("Mailbox journal: could not close the old file after compaction: " + e.getMessage());
+        }
+    }
+
+    private static int crc(ByteBuffer buffer, int offset, int length) {
+        ByteBuffer slice = buffer.duplicate();
+        slice.position(offset).limit(offset + length);
+        CRC32 crc = new CRC32();
+        crc.update(slice);
+        return (int) crc.getValue();
+    }
+}
@@ -0,0 +1,487 @@
+package serverMap;
+
+import Common.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * En icke-blockerande anslutning som ägs av en händelseloop i {@link NioServerEngine}.
+ * Läser ramar inkrementellt från kanalen och köar utgående ramar tills kanalen är skrivbar.
+ * Den utgående kön är begränsad per mottagare så att en långsam klient inte kan fylla minnet.
+ * <p>
+ * Ramar skrivs inte direkt när de köas. Loopen skriver alla köade ramar med en samlad skrivning
+ * när den har hanterat de anslutningar som var redo, eller när latensbudgeten i
+ * {@link OutboundFlushPolicy} har gått ut, så att en skur av meddelanden blir få systemanrop.
+ * <p>
+ * Avkodade objekt hanteras i tur och ordning av loopens arbetstrådar, eftersom routningen kan
+ * vänta på disk. Har för många objekt inte hunnit hanteras slutar loopen läsa från kanalen tills
+ * arbetstrådarna har kommit ikapp.
+ *
+ */
+class NioConnection implements ClientConnection {
+
+    private static final int INITIAL_BUFFER_SIZE = 8 * 1024;
+    private static final int MAX_GATHER = 64;
+    private static final int MAX_INBOX = 64;
+
+    private final Server server;
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    private final NioServerEngine.EventLoop loop;
+    private volatile PayloadCodec codec;
+    private final Queue<ByteBuffer> writeQueue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queuedFrames = new AtomicInteger();
+    private final AtomicLong queuedBytes = new AtomicLong();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final OutboundFlushPolicy flushPolicy;
+    private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+    private volatile long oldestQueuedAt;
+    private final int outboundCapacity;
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private final ReentrantLock sendLock = new ReentrantLock();
+    private final long acceptedAt;
+    private final ScheduledFuture<?> handshakeDeadline;
+    private final ExecutorService workers;
+    private final Queue<Object> inbox = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger inboxSize = new AtomicInteger();
+    private volatile boolean readPaused;
+    private boolean loginReceived;
+    private final AtomicReference<Runnable> drained = new AtomicReference<>();
+
+    private ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+    private boolean preambleRead;
+    private volatile User user;
+
+    /**
+     * Skapar en ny anslutning för en registrerad kanal.
+     *
+     * @param server Servern som tar emot inloggningar och meddelanden.
+     * @param channel Kanalen till klienten.
+     * @param key Kanalens nyckel i loopens selector.
+     * @param loop Loopen som äger kanalen.
+     * @param acceptedAt Tidpunkten då kanalen accepterades enligt {@link System#nanoTime()}.
+     */
+    NioConnection(Server server, SocketChannel channel, SelectionKey key, NioServerEngine.EventLoop loop, long acceptedAt) {
+        this.acceptedAt = acceptedAt;
+        this.outboundCapacity = server.getConfig().getOutboundCapacity();
+        this.flushPolicy = server.getFlushPolicy();
+        this.server = server;
+        this.channel = channel;
+        this.key = key;
+        this.loop = loop;
+        this.workers = loop.getWorkers();
+        this.handshakeDeadline = server.getHandshakeStage().scheduleDeadline(() -> loop.execute(guarded(this::closeIfNotLoggedIn)));
+    }
+
+    private void closeIfNotLoggedIn() {
+        if (!loginReceived) {
+            close();
+        }
+    }
+
+    /**
+     * Ger ett arbete för loopen som stänger anslutningen om det kastar ett oväntat fel.
+     */
+    private Runnable guarded(Runnable task) {
+        return () -> {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                close();
+                throw e;
+            }
+        };
+    }
+
+    /**
+     * Läser tillgängliga bytes och hanterar alla kompletta ramar. Anropas på loopens tråd.
+     */
+    void onReadable() {
+        try {
+            int read = channel.read(readBuffer);
+            if (read == -1) {
+                close();
+                return;
+            }
+            readBuffer.flip();
+            try {
+                readFrames();
+            } finally {
+                readBuffer.compact();
+                shrinkReadBuffer();
+            }
+        } catch (IOException | ClassNotFoundException e) {
+            close();
+        }
+    }
+
+    private void readFrames() throws IOException, ClassNotFoundException {
+        if (!preambleRead) {
+            if (readBuffer.remaining() < 2) {
+                return;
+            }
+            if ((readBuffer.getShort(readBuffer.position()) & 0xFFFF) == Protocol.LEGACY_STREAM_MAGIC) {
+                throw new IOException("Object stream clients are not supported by the NIO engine");
+            }
+            if (readBuffer.remaining() < Protocol.PREAMBLE_SIZE) {
+                return;
+            }
+            if (readBuffer.getInt() != Protocol.MAGIC) {
+                throw new IOException("Unknown protocol preamble");
+            }
+            Protocol.checkVersion(readBuffer.get() & 0xFF);
+            ServerConfig config = server.getConfig();
+            byte codecId = Protocol.negotiateCodec(readBuffer.get() & 0xFF, config.isCompressionEnabled());
+            codec = Protocol.codecFor(codecId, config.getCompressionLevel());
+            preambleRead = true;
+            enqueue(ByteBuffer.wrap(new byte[]{codecId}));
+        }
+
+        while (readBuffer.remaining() >= Integer.BYTES && !closed.get()) {
+            int length = readBuffer.getInt(readBuffer.position());
+            Protocol.checkFrameLength(length);
+            if (readBuffer.remaining() < Integer.BYTES + length) {
+                ensureCapacity(Integer.BYTES + length);
+                return;
+            }
+            readBuffer.getInt();
+            Object obj = codec.decode(readBuffer.array(), readBuffer.arrayOffset() + readBuffer.position(), length);
+            readBuffer.position(readBuffer.position() + length);
+            dispatch(obj);
+        }
+    }
+
+    /**
+     * Ser till att en hel ram får plats i läsbufferten. Bufferten är i läsläge när metoden anropas.
+     */
+    private void ensureCapacity(int needed) {
+        if (readBuffer.capacity() >= needed) {
+            return;
+        }
+        ByteBuffer bigger = ByteBuffer.allocate(Math.max(needed, readBuffer.capacity() * 2));
+        bigger.put(readBuffer);
+        bigger.flip();
+        readBuffer = bigger;
+    }
+
+    /**
+     * Går tillbaka till en liten läsbuffert när en stor ram har lästs klart, så att en anslutning
+     * inte håller kvar upp till {@link Protocol#MAX_FRAME_SIZE} efter en enda stor bild. Bufferten
+     * är i skrivläge när metoden anropas och behålls om den har början av en ram som inte får plats.
+     */
+    private void shrinkReadBuffer() {
+        int pending = readBuffer.position();
+        if (readBuffer.capacity() == INITIAL_BUFFER_SIZE || pending > INITIAL_BUFFER_SIZE) {
+            return;
+        }
+        if (preambleRead && pending >= Integer.BYTES && Integer.BYTES + readBuffer.getInt(0) > INITIAL_BUFFER_SIZE) {
+            return;
+        }
+        ByteBuffer smaller = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+        readBuffer.flip();
+        smaller.put(readBuffer);
+        readBuffer = smaller;
+    }
+
+    /**
+     * Kontrollerar inloggningen på loopens tråd och lämnar objektet till arbetstrådarna.
+     */
+    private void dispatch(Object obj) throws IOException {
+        if (!loginReceived) {
+            if (!(obj instanceof User)) {
+                throw new IOException("Expected a User as the first object");
+            }
+            loginReceived = true;
+            handshakeDeadline.cancel(false);
+        }
+        inbox.add(obj);
+        if (inboxSize.incrementAndGet() == 1) {
+            workers.execute(this::drainInbox);
+        }
+        if (inboxSize.get() >= MAX_INBOX && !readPaused) {
+            readPaused = true;
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        }
+    }
+
+    /**
+     * Hanterar de mottagna objekten i den ordning de lästes. Körs av en arbetstråd i taget per
+     * anslutning: en ny körning startas bara när inkorgen går från tom till ett objekt.
+     */
+    private void drainInbox() {
+        int remaining;
+        do {
+            Object obj = inbox.poll();
+            if (!closed.get()) {
+                try {
+                    handle(obj);
+                } catch (RuntimeException e) {
+                    System.out.println("Closing connection after unexpected error: " + e);
+                    e.printStackTrace();
+                    close();
+                }
+            }
+            remaining = inboxSize.decrementAndGet();
+            if (readPaused && remaining < MAX_INBOX / 2) {
+                resumeReading();
+            }
+        } while (remaining > 0);
+    }
+
+    /**
+     * Ber loopen att börja läsa igen när inkorgen har krympt.
+     */
+    private void resumeReading() {
+        loop.execute(guarded(() -> {
+            if (readPaused && key.isValid() && inboxSize.get() < MAX_INBOX) {
+                readPaused = false;
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            }
+        }));
+    }
+
+    private void handle(Object obj) {
+        if (user == null) {
+            User candidate = (User) obj;
+            if (!server.registerConnection(candidate, this)) {
+                close();
+                return;
+            }
+            user = candidate;
+            if (closed.get()) {
+                server.disconnectUser(candidate, this);
+                return;
+            }
+            server.userConnected(user, acceptedAt);
+        } else {
+            server.handleObject(user, this, obj);
+        }
+    }
+
+    /**
+     * Skriver så många köade ramar som kanalen tar emot. Anropas på loopens tråd.
+     */
+    void onWritable() {
+        writeQueued();
+    }
+
+    /**
+     * Skriver de köade ramarna, eller väntar på fler om latensbudgeten tillåter det.
+     * Anropas på loopens tråd.
+     */
+    private void flushWrites() {
+        flushScheduled.set(false);
+        if (!key.isValid() || (key.interestOps() & SelectionKey.OP_WRITE) != 0) {
+            return;
+        }
+        long budget = flushPolicy.getLatencyBudgetNanos();
+        if (budget > 0 && queuedBytes.get() < flushPolicy.getFlushBytes()) {
+            long wait = oldestQueuedAt + budget - System.nanoTime();
+            if (wait > 0) {
+                if (flushScheduled.compareAndSet(false, true)) {
+                    loop.schedule(guarded(this::flushWrites), wait);
+                }
+                return;
+            }
+        }
+        writeQueued();
+    }
+
+    private void writeQueued() {
+        if (!key.isValid()) {
+            return;
+        }
+        int frames = 0;
+        try {
+            while (!writeQueue.isEmpty()) {
+                int count = 0;
+                for (ByteBuffer frame : writeQueue) {
+                    gather[count++] = frame;
+                    if (count == MAX_GATHER) {
+                        break;
+                    }
+                }
+                queuedBytes.addAndGet(-channel.write(gather, 0, count));
+                int done = 0;
+                while (done < count && !gather[done].hasRemaining()) {
+                    writeQueue.poll();
+                    done++;
+                }
+                Arrays.fill(gather, 0, count, null);
+                queuedFrames.addAndGet(-done);
+                frames += done;
+                if (done < count) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        } catch (IOException e) {
+            close();
+        } finally {
+            if (frames > 0) {
+                flushPolicy.recordFlush(frames);
+                if (hasRoom() && drained.get() != null) {
+                    workers.execute(this::runDrained);
+                }
+            }
+        }
+    }
+
+    /**
+     * Kodar objektet och köar ramen. Själva skrivningen sker alltid på loopens tråd. En delad
+     * ram kodas inte igen, anslutningen köar en egen vy över samma bytes.
+     * <p>
+     * Platsen i kön reserveras innan objektet kodas. En komprimerad anslutning kodar och köar
+     * dessutom under ett lås, eftersom deflate-strömmen kräver att ramarna skrivs i samma
+     * ordning som de kodades och att ingen kodad ram kastas.
+     *
+     * @param obj Objektet som ska skickas, eller en {@link EncodedFrame} som delas med andra mottagare.
+     * @throws IOException Om anslutningen är stängd eller objektet inte kan kodas.
+     * @throws OutboundQueueFullException Om mottagarens kö är full.
+     */
+    @Override
+    public void send(Object obj) throws IOException {
+        if (closed.get()) {
+            throw new IOException("Connection closed");
+        }
+        if (queuedFrames.incrementAndGet() > outboundCapacity) {
+            queuedFrames.decrementAndGet();
+            throw new OutboundQueueFullException("Outbound queue full");
+        }
+        boolean queued = false;
+        boolean ordered = codec instanceof DeflateCodec;
+        if (ordered) {
+            sendLock.lock();
+        }
+        try {
+            queue(encode(obj));
+            queued = true;
+        } finally {
+            if (ordered) {
+                sendLock.unlock();
+            }
+            if (!queued) {
+                queuedFrames.decrementAndGet();
+            }
+        }
+    }
+
+    private ByteBuffer encode(Object obj) throws IOException {
+        if (obj instanceof EncodedFrame) {
+            return ByteBuffer.wrap(((EncodedFrame) obj).frameFor(codec));
+        }
+        byte[] payload = codec.encode(obj);
+        Protocol.checkFrameLength(payload.length);
+        ByteBuffer frame = ByteBuffer.allocate(Integer.BYTES + payload.length);
+        frame.putInt(payload.length).put(payload).flip();
+        return frame;
+    }
+
+    private void enqueue(ByteBuffer buffer) {
+        queuedFrames.incrementAndGet();
+        queue(buffer);
+    }
+
+    private void queue(ByteBuffer buffer) {
+        long before = queuedBytes.getAndAdd(buffer.remaining());
+        writeQueue.add(buffer);
+        if (before == 0) {
+            oldestQueuedAt = System.nanoTime();
+        }
+        if (before + buffer.remaining() >= flushPolicy.getFlushBytes()) {
+            loop.executeLater(guarded(this::writeQueued));
+        } else if (flushScheduled.compareAndSet(false, true)) {
+            loop.executeLater(guarded(this::flushWrites));
+        }
+    }
+
+    /**
+     * Arbetet körs av en arbetstråd när loopen har tömt kön, eftersom det kan vänta på disk.
+     */
+    @Override
+    public void whenDrained(Runnable task) {
+        drained.set(task);
+        if (hasRoom()) {
+            runDrained();
+        }
+    }
+
+    private boolean hasRoom() {
+        return queuedFrames.get() <= outboundCapacity / 2;
+    }
+
+    private void runDrained() {
+        Runnable task = drained.getAndSet(null);
+        if (task == null || closed.get()) {
+            return;
+        }
+        try {
+            task.run();
+        } catch (RuntimeException e) {
+            System.out.println("Drain callback failed: " + e);
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public boolean isLegacy() {
+        return false;
+    }
+
+    @Override
+    public long getQueuedBytes() {
+        return queuedBytes.get();
+    }
+
+    /**
+     * @return Tiden sedan kön senast var tom, eller 0 om den är tom. En anslutning som aldrig
+     * hinner tömma sin kö räknas alltså som allt längre efter.
+     */
+    @Override
+    public long getLagNanos() {
+        return queuedBytes.get() > 0 ? System.nanoTime() - oldestQueuedAt : 0;
+    }
+
+    @Override
+    public DeflateCodec getCompression() {
+        return codec instanceof DeflateCodec ? (DeflateCodec) codec : null;
+    }
+
+    /**
+     * Stänger kanalen och kopplar från användaren om inloggningen hann bli klar.
+     */
+    @Override
+    public void close() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        key.cancel();
+        handshakeDeadline.cancel(false);
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        writeQueue.clear();
+        if (codec != null) {
+            codec.close();
+        }
+        if (user != null) {
+            server.disconnectUser(user, this);
+        }
+    }
+}
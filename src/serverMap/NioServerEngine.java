@@ -0,0 +1,242 @@
+package serverMap;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.*;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Anslutningsmotor som bygger på {@link Selector} och {@link SocketChannel}.
+ * Alla anslutningar fördelas över ett fast antal händelseloopar i stället för
+ * att varje klient får en egen tråd. Routningen av meddelanden sker via samma
+ * metoder i {@link Server} som motorn med en tråd per klient använder.
+ * <p>
+ * Looparna läser och avkodar bara ramar. Objekten hanteras av en pool med arbetstrådar, eftersom
+ * routningen kan vänta på disk, och en loop som väntar på disk stoppar alla dess anslutningar.
+ * Ett fel i en anslutning stänger bara den anslutningen, loopen fortsätter med de andra.
+ *
+ */
+public class NioServerEngine {
+
+    private final Server server;
+    private final int port;
+    private final EventLoop[] loops;
+    private final ExecutorService workers;
+    private int nextLoop;
+
+    /**
+     * Skapar en ny NIO-motor.
+     *
+     * @param server Servern som hanterar inloggningar och routning.
+     * @param port Porten som motorn lyssnar på.
+     * @param loopCount Antal händelseloopar.
+     * @param workerCount Antal arbetstrådar som hanterar inkommande objekt.
+     * @throws IOException Om en selector inte kan öppnas.
+     */
+    public NioServerEngine(Server server, int port, int loopCount, int workerCount) throws IOException {
+        this.server = server;
+        this.port = port;
+        AtomicInteger workerIndex = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(workerCount, runnable -> {
+            Thread thread = new Thread(runnable, "nio-worker-" + workerIndex.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.loops = new EventLoop[loopCount];
+        for (int i = 0; i < loopCount; i++) {
+            loops[i] = new EventLoop(i);
+        }
+    }
+
+    /**
+     * Startar händelseslooparna och accepterar nya anslutningar på den anropande tråden.
+     * Varje accepterad kanal lämnas över till nästa loop i tur och ordning.
+     *
+     * @throws IOException Om serverkanalen inte kan öppnas.
+     */
+    public void run() throws IOException {
+        for (EventLoop loop : loops) {
+            Thread thread = new Thread(loop, "nio-loop-" + loop.index);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(port));
+            System.out.println("NIO engine listening on port " + port + " with " + loops.length + " event loops");
+
+            while (serverChannel.isOpen()) {
+                SocketChannel channel = serverChannel.accept();
+                long acceptedAt = System.nanoTime();
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                EventLoop loop = loops[nextLoop];
+                nextLoop = (nextLoop + 1) % loops.length;
+                loop.register(channel, acceptedAt);
+            }
+        }
+    }
+
+    /**
+     * Ett arbete som en loop ska köra vid en viss tidpunkt.
+     */
+    private static final class Timer implements Comparable<Timer> {
+        private final long deadline;
+        private final Runnable task;
+
+        Timer(long deadline, Runnable task) {
+            this.deadline = deadline;
+            this.task = task;
+        }
+
+        @Override
+        public int compareTo(Timer other) {
+            return Long.compare(deadline, other.deadline);
+        }
+    }
+
+    /**
+     * En händelseloop som äger en selector och alla anslutningar som registrerats på den.
+     * Andra trådar lämnar över arbete via en kö och väcker selectorn.
+     */
+    class EventLoop implements Runnable {
+        private final int index;
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final PriorityQueue<Timer> timers = new PriorityQueue<>();
+        private volatile Thread thread;
+
+        EventLoop(int index) throws IOException {
+            this.index = index;
+            this.selector = Selector.open();
+        }
+
+        /**
+         * Körs ett arbete direkt om anroparen redan är loopens tråd, annars köas det.
+         *
+         * @param task Arbetet som ska köras på loopens tråd.
+         */
+        void execute(Runnable task) {
+            if (Thread.currentThread() == thread) {
+                task.run();
+            } else {
+                tasks.add(task);
+                selector.wakeup();
+            }
+        }
+
+        /**
+         * Köar ett arbete som körs på loopens tråd efter att de anslutningar som är redo just nu
+         * har hanterats, även om anroparen är loopens tråd. Används för att samla ihop skrivningar.
+         *
+         * @param task Arbetet som ska köras på loopens tråd.
+         */
+        void executeLater(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        /**
+         * Kör ett arbete på loopens tråd när en fördröjning har gått.
+         *
+         * @param task Arbetet som ska köras.
+         * @param delayNanos Fördröjningen i nanosekunder.
+         */
+        void schedule(Runnable task, long delayNanos) {
+            long deadline = System.nanoTime() + delayNanos;
+            execute(() -> timers.add(new Timer(deadline, task)));
+        }
+
+        /**
+         * @return Arbetstrådarna som hanterar anslutningarnas inkommande objekt.
+         */
+        ExecutorService getWorkers() {
+            return workers;
+        }
+
+        private void register(SocketChannel channel, long acceptedAt) {
+            execute(() -> {
+                try {
+                    SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                    key.attach(new NioConnection(server, channel, key, this, acceptedAt));
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    try {
+                        channel.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void run() {
+            thread = Thread.currentThread();
+            while (selector.isOpen()) {
+                try {
+                    Timer next = timers.peek();
+                    if (next == null) {
+                        selector.select();
+                    } else {
+                        long millis = (next.deadline - System.nanoTime() + 999_999) / 1_000_000;
+                        if (millis > 0) {
+                            selector.select(millis);
+                        } else {
+                            selector.selectNow();
+                        }
+                    }
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        runSafely(task);
+                    }
+                    long now = System.nanoTime();
+                    while ((next = timers.peek()) != null && next.deadline - now <= 0) {
+                        runSafely(timers.poll().task);
+                    }
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        NioConnection connection = (NioConnection) key.attachment();
+                        if (!key.isValid() || connection == null) {
+                            continue;
+                        }
+                        try {
+                            if (key.isReadable()) {
+                                connection.onReadable();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                connection.onWritable();
+                            }
+                        } catch (RuntimeException | OutOfMemoryError e) {
+                            System.out.println("Closing connection after unexpected error: " + e);
+                            connection.close();
+                        }
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        /**
+         * Kör ett köat arbete eller en timer. Ett fel loggas så att loopen fortsätter med övriga
+         * anslutningar.
+         */
+        private void runSafely(Runnable task) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                System.out.println("Event loop task failed: " + e);
+                e.printStackTrace();
+            }
+        }
+    }
+}
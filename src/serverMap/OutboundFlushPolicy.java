@@ -0,0 +1,76 @@
+package serverMap;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bestämmer när utgående ramar skrivs ut till klienterna. Ramar som köas medan en skrivning
+ * pågår skrivs tillsammans och strömmen töms först när kön är tom, när ett visst antal bytes
+ * väntar eller när den äldsta ramen har väntat i latensbudgeten. Med budgeten 0 töms strömmen
+ * så fort kön är tom, så en ensam ram får aldrig vänta.
+ * <p>
+ * Samma policy delas av alla anslutningar och räknar hur många ramar varje tömning bär.
+ *
+ */
+public class OutboundFlushPolicy {
+
+    private final long latencyBudgetNanos;
+    private final int flushBytes;
+    private final AtomicLong frames = new AtomicLong();
+    private final AtomicLong flushes = new AtomicLong();
+
+    /**
+     * @param latencyBudgetMicros Hur länge en ram högst får vänta på fler ramar, i mikrosekunder.
+     * @param flushBytes Antal väntande bytes som alltid skrivs ut direkt.
+     */
+    public OutboundFlushPolicy(long latencyBudgetMicros, int flushBytes) {
+        this.latencyBudgetNanos = TimeUnit.MICROSECONDS.toNanos(Math.max(0, latencyBudgetMicros));
+        this.flushBytes = Math.max(1, flushBytes);
+    }
+
+    /**
+     * @return Hur länge en ram högst får vänta på fler ramar, i nanosekunder.
+     */
+    public long getLatencyBudgetNanos() {
+        return latencyBudgetNanos;
+    }
+
+    /**
+     * @return Antal väntande bytes som alltid skrivs ut direkt.
+     */
+    public int getFlushBytes() {
+        return flushBytes;
+    }
+
+    /**
+     * Räknar en tömning av en anslutnings utgående ström.
+     *
+     * @param frameCount Antal ramar som skrevs ut i tömningen.
+     */
+    public void recordFlush(int frameCount) {
+        frames.addAndGet(frameCount);
+        flushes.incrementAndGet();
+    }
+
+    /**
+     * @return Antal ramar som har skrivits ut.
+     */
+    public long getFrames() {
+        return frames.get();
+    }
+
+    /**
+     * @return Antal tömningar av utgående strömmar.
+     */
+    public long getFlushes() {
+        return flushes.get();
+    }
+
+    /**
+     * @return Genomsnittligt antal ramar per tömning, avrundat till en decimal.
+     */
+    public String getFramesPerFlush() {
+        long count = flushes.get();
+        return count == 0 ? "0" : String.format("%.1f", (double) frames.get() / count);
+    }
+}
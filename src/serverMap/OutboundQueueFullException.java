@@ -0,0 +1,22 @@
+package serverMap;
+
+import java.io.IOException;
+
+/**
+ * Kastas när en mottagares utgående kö är full och ett objekt därför inte kunde köas.
+ * Anslutningen är fortfarande öppen; det är upp till anroparen vad som händer med objektet.
+ *
+ */
+public class OutboundQueueFullException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Skapar ett nytt undantag.
+     *
+     * @param message Beskrivning av felet.
+     */
+    public OutboundQueueFullException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,275 @@
+package serverMap;
+
+import Common.Message;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Meddelanden som väntar på att avsändaren ska ladda upp bilden de refererar till, per bild
+ * och avsändare.
+ * <p>
+ * Stämmer en uppladdad bild inte med sin hash får avsändaren börja om från början ett begränsat
+ * antal gånger innan meddelandena släpps. Kopplar avsändaren ner ligger meddelandena kvar, och
+ * när avsändaren loggar in igen ombeds den fortsätta uppladdningen där den slutade. Kommer
+ * avsändaren inte tillbaka inom en viss tid släpps meddelandena. Gamla poster rensas när
+ * strukturen ändras, så ingen egen tråd behövs.
+ *
+ */
+public class PendingUploads {
+
+    /** Antal gånger en avsändare får ladda upp en bild som inte stämmer med sin hash. */
+    public static final int MAX_ATTEMPTS = 3;
+
+    private final long retainNanos;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Map<String, Map<String, Upload>> byHash = new HashMap<>();
+    private long waiting;
+    private long dropped;
+
+    /**
+     * En avsändares meddelanden som väntar på en bild.
+     */
+    private static final class Upload {
+        final List<Message> messages = new ArrayList<>();
+        int attempts;
+        long leftAt;
+    }
+
+    /**
+     * @param retainMillis Hur länge meddelanden från en avsändare som har kopplat ner ligger kvar.
+     */
+    public PendingUploads(long retainMillis) {
+        this.retainNanos = TimeUnit.MILLISECONDS.toNanos(retainMillis);
+    }
+
+    /**
+     * Lägger ett meddelande bland de som väntar på bilden.
+     *
+     * @param hash Bildens hash.
+     * @param message Meddelandet.
+     * @return true om avsändaren inte redan laddar upp bilden och därför ska ombes göra det.
+     */
+    public boolean await(String hash, Message message) {
+        lock.lock();
+        try {
+            expire(System.nanoTime());
+            Upload upload = byHash.computeIfAbsent(hash, h -> new HashMap<>()).get(message.getSender().getName());
+            boolean ask = upload == null;
+            if (ask) {
+                upload = new Upload();
+                byHash.get(hash).put(message.getSender().getName(), upload);
+            }
+            upload.messages.add(message);
+            waiting++;
+            return ask;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param sender Avsändarens namn.
+     * @param hash Bildens hash.
+     * @return true om meddelanden från avsändaren väntar på bilden, dvs. om avsändaren har ombetts ladda upp den.
+     */
+    public boolean isAwaiting(String sender, String hash) {
+        lock.lock();
+        try {
+            Map<String, Upload> uploads = byHash.get(hash);
+            return uploads != null && uploads.containsKey(sender);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Tar bort alla meddelanden som väntade på bilden, från alla avsändare, när den har lagrats.
+     *
+     * @param hash Bildens hash.
+     * @return Meddelandena, en tom lista om inga väntade.
+     */
+    public List<Message> complete(String hash) {
+        lock.lock();
+        try {
+            Map<String, Upload> uploads = byHash.remove(hash);
+            List<Message> messages = new ArrayList<>();
+            if (uploads != null) {
+                for (Upload upload : uploads.values()) {
+                    messages.addAll(upload.messages);
+                }
+                waiting -= messages.size();
+            }
+            return messages;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Räknar en uppladdning som inte stämde med sin hash.
+     *
+     * @param sender Avsändarens namn.
+     * @param hash Bildens hash.
+     * @return Antal meddelanden som släpptes för att avsändaren har försökt för många gånger,
+     * 0 om avsändaren ska ombes börja om, eller -1 om inga meddelanden från avsändaren väntade.
+     */
+    public int failed(String sender, String hash) {
+        lock.lock();
+        try {
+            Map<String, Upload> uploads = byHash.get(hash);
+            Upload upload = uploads == null ? null : uploads.get(sender);
+            if (upload == null) {
+                return -1;
+            }
+            if (++upload.attempts < MAX_ATTEMPTS) {
+                return 0;
+            }
+            remove(hash, sender);
+            return upload.messages.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Släpper en avsändares meddelanden för en bild som inte kommer att tas emot, t.ex. för att
+     * den är för stor.
+     *
+     * @param sender Avsändarens namn.
+     * @param hash Bildens hash.
+     * @return Antal meddelanden som släpptes.
+     */
+    public int drop(String sender, String hash) {
+        lock.lock();
+        try {
+            Map<String, Upload> uploads = byHash.get(hash);
+            Upload upload = uploads == null ? null : uploads.get(sender);
+            if (upload == null) {
+                return 0;
+            }
+            remove(hash, sender);
+            return upload.messages.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Låter avsändarens meddelanden ligga kvar efter att avsändaren har kopplat ner, tills
+     * avsändaren loggar in igen eller tiden går ut.
+     *
+     * @param sender Avsändarens namn.
+     * @return Antal meddelanden från avsändaren som väntar.
+     */
+    public int senderLeft(String sender) {
+        lock.lock();
+        try {
+            long now = System.nanoTime();
+            expire(now);
+            int count = 0;
+            for (Map<String, Upload> uploads : byHash.values()) {
+                Upload upload = uploads.get(sender);
+                if (upload != null) {
+                    upload.leftAt = now;
+                    count += upload.messages.size();
+                }
+            }
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Återupptar en avsändares uppladdningar när avsändaren har loggat in igen.
+     *
+     * @param sender Avsändarens namn.
+     * @return Hasharna för bilderna som avsändaren ska ombes ladda upp.
+     */
+    public List<String> resume(String sender) {
+        lock.lock();
+        try {
+            expire(System.nanoTime());
+            List<String> hashes = new ArrayList<>();
+            for (Map.Entry<String, Map<String, Upload>> entry : byHash.entrySet()) {
+                Upload upload = entry.getValue().get(sender);
+                if (upload != null) {
+                    upload.leftAt = 0;
+                    upload.attempts = 0;
+                    hashes.add(entry.getKey());
+                }
+            }
+            return hashes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return Antal meddelanden som väntar på en bild.
+     */
+    public long getWaiting() {
+        lock.lock();
+        try {
+            return waiting;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return Antal meddelanden som har släppts för att bilden aldrig kom.
+     */
+    public long getDropped() {
+        lock.lock();
+        try {
+            return dropped;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Släpper meddelanden från avsändare som har varit borta för länge. Anropas med låset taget.
+     */
+    private void expire(long now) {
+        Iterator<Map.Entry<String, Map<String, Upload>>> hashes = byHash.entrySet().iterator();
+        while (hashes.hasNext()) {
+            Map.Entry<String, Map<String, Upload>> entry = hashes.next();
+            Iterator<Map.Entry<String, Upload>> senders = entry.getValue().entrySet().iterator();
+            while (senders.hasNext()) {
+                Map.Entry<String, Upload> sender = senders.next();
+                Upload upload = sender.getValue();
+                if (upload.leftAt != 0 && now - upload.leftAt >= retainNanos) {
+                    senders.remove();
+                    waiting -= upload.messages.size();
+                    dropped += upload.messages.size();
+                    System.out.println("Dropped " + upload.messages.size() + " messages from " + sender.getKey()
+                            + " waiting for image " + entry.getKey() + ", the sender did not come back");
+                }
+            }
+            if (entry.getValue().isEmpty()) {
+                hashes.remove();
+            }
+        }
+    }
+
+    /**
+     * Tar bort en avsändares meddelanden för en bild. Anropas med låset taget.
+     */
+    private void remove(String hash, String sender) {
+        Map<String, Upload> uploads = byHash.get(hash);
+        Upload upload = uploads.remove(sender);
+        if (uploads.isEmpty()) {
+            byHash.remove(hash);
+        }
+        waiting -= upload.messages.size();
+        dropped += upload.messages.size();
+    }
+}
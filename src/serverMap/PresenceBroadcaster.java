@@ -0,0 +1,272 @@
+package serverMap;
+
+import Common.PresenceUpdate;
+import Common.User;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Skickar närvarouppdateringar till alla inloggade klienter. I stället för hela användarlistan
+ * skickas bara vem som har anslutit eller lämnat, tillsammans med ett versionsnummer som ökar
+ * med ett för varje uppdatering. En ny klient får en fullständig ögonblicksbild, liksom en klient
+ * som rapporterar ett glapp i versionerna. Äldre klienter som inte förstår uppdateringarna får
+ * hela listan som förut.
+ * <p>
+ * Förändringar samlas under ett kort fönster och slås ihop till en enda uppdatering per klient,
+ * så att en våg av inloggningar efter en omstart inte ger en sändning per inloggning.
+ * <p>
+ * Varje uppdatering kodas bara en gång per kodning, som en {@link EncodedFrame} som alla
+ * mottagare skriver. Ögonblicksbilden för den aktuella versionen sparas på samma sätt och
+ * återanvänds för alla som loggar in eller ber om en ny ögonblicksbild, tills närvaron ändras.
+ * <p>
+ * En session får uppdateringar först när den har fått en ögonblicksbild. En session som är
+ * inloggad men ännu inte har fått någon, t.ex. för att dess kö var full, får en ny
+ * ögonblicksbild vid nästa uppdatering i stället, så att den aldrig missar en användare.
+ *
+ */
+public class PresenceBroadcaster {
+
+    private final SessionRegistry sessions;
+    private final long windowMillis;
+    private final ScheduledExecutorService scheduler;
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Map<String, User> published = new LinkedHashMap<>();
+    private final Map<String, User> pending = new LinkedHashMap<>();
+    private int pendingChanges;
+    private boolean flushScheduled;
+    private long version;
+    private EncodedFrame snapshot;
+    private List<User> legacySnapshot;
+
+    private final AtomicLong changes = new AtomicLong();
+    private final AtomicLong flushes = new AtomicLong();
+    private final AtomicLong savedSends = new AtomicLong();
+    private final AtomicLong encodings = new AtomicLong();
+    private final AtomicLong snapshotsReused = new AtomicLong();
+
+    /**
+     * Skapar en ny broadcaster.
+     *
+     * @param sessions Registret över inloggade sessioner.
+     * @param windowMillis Hur länge förändringar samlas innan de skickas. 0 skickar direkt.
+     */
+    public PresenceBroadcaster(SessionRegistry sessions, long windowMillis) {
+        this.sessions = sessions;
+        this.windowMillis = Math.max(0, windowMillis);
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "presence-broadcaster");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Meddelar att en användare har anslutit. Den nya sessionen får direkt en ögonblicksbild av
+     * det som redan är publicerat, och alla andra får användaren i nästa sammanslagna uppdatering.
+     *
+     * @param joined Sessionen som har loggat in.
+     */
+    public void userJoined(Session joined) {
+        lock.lock();
+        try {
+            sendSnapshot(joined);
+            recordChange(joined.getUser().getName(), joined.getUser());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Meddelar att en användare har lämnat. Skickas till alla kvarvarande sessioner i nästa
+     * sammanslagna uppdatering.
+     *
+     * @param user Användaren som har loggat ut.
+     */
+    public void userLeft(User user) {
+        lock.lock();
+        try {
+            recordChange(user.getName(), null);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Skickar en ny ögonblicksbild till en klient som har tappat bort en eller flera versioner.
+     *
+     * @param session Sessionen som bad om en ny ögonblicksbild.
+     */
+    public void resync(Session session) {
+        lock.lock();
+        try {
+            sendSnapshot(session);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Ger ögonblicksbilden för den aktuella versionen. Den skapas första gången den behövs
+     * efter en ändring och delas sedan av alla som får den. Anropas med låset taget.
+     */
+    private EncodedFrame snapshot() {
+        if (snapshot == null) {
+            snapshot = new EncodedFrame(new PresenceUpdate(version, true, users(), Collections.emptyList()), encodings);
+        } else {
+            snapshotsReused.incrementAndGet();
+        }
+        return snapshot;
+    }
+
+    /**
+     * Ger hela användarlistan för äldre klienter. Listan ändras aldrig och delas tills närvaron ändras.
+     * Anropas med låset taget.
+     */
+    private List<User> legacySnapshot() {
+        if (legacySnapshot == null) {
+            legacySnapshot = users();
+        }
+        return legacySnapshot;
+    }
+
+    private List<User> users() {
+        return Collections.unmodifiableList(new ArrayList<>(published.values()));
+    }
+
+    /**
+     * Registrerar en förändring för ett namn. Bara det senaste tillståndet per namn sparas;
+     * null betyder att användaren har lämnat.
+     */
+    private void recordChange(String name, User user) {
+        pending.put(name, user);
+        pendingChanges++;
+        changes.incrementAndGet();
+        if (windowMillis == 0) {
+            flushLocked();
+        } else if (!flushScheduled) {
+            flushScheduled = true;
+            scheduler.schedule(this::flush, windowMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void flush() {
+        lock.lock();
+        try {
+            flushScheduled = false;
+            flushLocked();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Slår ihop alla förändringar sedan förra sändningen till en uppdatering och skickar den
+     * till alla inloggade sessioner.
+     */
+    private void flushLocked() {
+        if (pending.isEmpty()) {
+            return;
+        }
+        List<User> joined = new ArrayList<>();
+        List<User> left = new ArrayList<>();
+        for (Map.Entry<String, User> change : pending.entrySet()) {
+            User before = published.get(change.getKey());
+            User after = change.getValue();
+            if (before != null && (after == null || after != before)) {
+                left.add(before);
+                published.remove(change.getKey());
+            }
+            if (after != null && after != before) {
+                joined.add(after);
+                published.put(change.getKey(), after);
+            }
+        }
+        int merged = pendingChanges;
+        pending.clear();
+        pendingChanges = 0;
+        if (joined.isEmpty() && left.isEmpty()) {
+            return;
+        }
+
+        snapshot = null;
+        legacySnapshot = null;
+        EncodedFrame delta = new EncodedFrame(new PresenceUpdate(++version, false, joined, left), encodings);
+        List<Session> recipients = sessions.snapshot();
+        for (Session session : recipients) {
+            if (session.isPresenceSynced()) {
+                send(session, delta);
+            } else {
+                sendSnapshot(session);
+            }
+        }
+        flushes.incrementAndGet();
+        savedSends.addAndGet((long) (merged - 1) * recipients.size());
+    }
+
+    /**
+     * @return Antal närvaroförändringar som har registrerats.
+     */
+    public long getChanges() {
+        return changes.get();
+    }
+
+    /**
+     * @return Antal sammanslagna uppdateringar som har skickats.
+     */
+    public long getFlushes() {
+        return flushes.get();
+    }
+
+    /**
+     * @return Antal sändningar till enskilda klienter som sammanslagningen har sparat in.
+     */
+    public long getSavedSends() {
+        return savedSends.get();
+    }
+
+    /**
+     * @return Antal gånger en närvarouppdatering eller ögonblicksbild har kodats.
+     */
+    public long getEncodings() {
+        return encodings.get();
+    }
+
+    /**
+     * @return Antal gånger en redan kodad ögonblicksbild har skickats till ytterligare en klient.
+     */
+    public long getSnapshotsReused() {
+        return snapshotsReused.get();
+    }
+
+    /**
+     * Skickar ögonblicksbilden för den aktuella versionen, eller hela listan till en äldre klient,
+     * och noterar om sessionen därefter kan ta emot uppdateringar. Äldre klienter får alltid hela
+     * listan och räknas därför aldrig som synkade. Anropas med låset taget.
+     */
+    private void sendSnapshot(Session session) {
+        if (session.getConnection().isLegacy()) {
+            send(session, legacySnapshot());
+        } else {
+            session.setPresenceSynced(send(session, snapshot()));
+        }
+    }
+
+    private static boolean send(Session session, Object update) {
+        try {
+            session.getConnection().send(update);
+            return true;
+        } catch (OutboundQueueFullException e) {
+            System.out.println("Outbound queue full, skipped presence update for " + session.getUser().getName());
+        } catch (IOException e) {
+            session.getConnection().close();
+        }
+        return false;
+    }
+}
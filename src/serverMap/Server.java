@@ -1,6 +1,13 @@
 package serverMap;
 
+import Common.BacklogCredit;
+import Common.BlobData;
+import Common.BlobRequest;
+import Common.DeflateCodec;
+import Common.GroupUpdate;
+import Common.Heartbeat;
 import Common.Message;
+import Common.PresenceResync;
 import Common.User;
 import View.ServerGUI;
 
@@ -11,8 +18,12 @@ import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Hanterar serverlogiken för chattapplikationen.
@@ -23,10 +34,28 @@ import java.util.Map;
 public class Server {
     private ServerSocket serverSocket;
     private ServerGUI serverGUI;
-    private Map<String, ObjectOutputStream> clientStream = new HashMap<>();
-    private ClientCommunicationHandler clientCommunicationHandler;
-    private List<User> connectedClients = new ArrayList<>();
-    private UnsentMessageHandler unsentMessageHandler = new UnsentMessageHandler();
+    private ServerConfig config;
+    private int port;
+    private ExecutorService handlerExecutor;
+    private HandshakeStage handshakeStage;
+    private ServerMetrics metrics = new ServerMetrics();
+    private SessionRegistry sessions = new SessionRegistry();
+    private PresenceBroadcaster presence;
+    private TrafficLog trafficLog;
+    private StripedMailbox mailbox;
+    private UnsentMessageHandler unsentMessageHandler;
+    private BacklogDelivery backlog;
+    private BlobStore blobs;
+    private GroupBodyStore bodies;
+    private ThumbnailPipeline thumbnails;
+    private AvatarRegistry avatars;
+    private OutboundFlushPolicy flushPolicy;
+    private GroupRegistry groups;
+    private GroupFanout groupFanout;
+    private SlowConsumerMonitor slowConsumers;
+    private IdleReaper idleReaper;
+    private AtomicLong heartbeats = new AtomicLong();
+    private PendingUploads pendingUploads;
     private Map<User, List<Message>> unsentMessages = new HashMap<>();
 
     /**
@@ -35,67 +64,515 @@ public class Server {
      * @param port Porten servern ska lyssna på.
      */
     public Server(int port){
-        serverGUI = new ServerGUI(this);
+        this(port, ServerConfig.fromSystemProperties());
+    }
+
+    /**
+     * Skapar en ny serverinstans med givna inställningar. Serversocketen skapas bara
+     * här för motorn med en tråd per klient, NIO-motorn öppnar sin egen kanal.
+     *
+     * @param port Porten servern ska lyssna på.
+     * @param config Serverns inställningar.
+     */
+    public Server(int port, ServerConfig config){
+        this.port = port;
+        this.config = config;
+        trafficLog = new TrafficLog(new LogSegments(new File(config.getLogDirectory()),
+                config.getLogSegmentBytes(), config.getLogIndexBytes()), config.getLogCapacity(),
+                config.getLogFlushIntervalMillis(), config.getLogFlushBytes(), config.getLogOverflow());
+        Runtime.getRuntime().addShutdownHook(new Thread(trafficLog::close, "traffic-log-close"));
+        metrics.register("Log entries written", trafficLog::getWritten);
+        metrics.register("Log entries dropped", trafficLog::getDropped);
+        metrics.register("Log flushes", trafficLog::getFlushes);
         try {
-            serverSocket = new ServerSocket(port);
-            clientCommunicationHandler = new ClientCommunicationHandler(clientStream);
-        } catch (IOException e){
-            e.printStackTrace();
+            blobs = new BlobStore(new File(config.getBlobDirectory()), config.getBlobChunkBytes(), config.getBlobMaxBytes());
+            bodies = new GroupBodyStore(new File(config.getGroupBodyDirectory()));
+            mailbox = new StripedMailbox(new File(config.getMailboxDirectory()), config.getMailboxStripes(),
+                    config.getMailboxSyncMillis(), config.getMailboxCompactBytes(),
+                    config.getMailboxMaxMessages(), config.getMailboxMaxBytes(), config.getMailboxOverflow(),
+                    blobs, bodies);
+            bodies.sweep();
+            groups = new GroupRegistry(new File(config.getGroupFile()), config.getGroupMaxMembers());
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not open the offline mailbox, blob store or groups", e);
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(mailbox::close, "mailbox-close"));
+        unsentMessageHandler = new UnsentMessageHandler(mailbox);
+        metrics.register("Mailbox pending messages", mailbox::getPendingCount);
+        metrics.register("Mailbox journal bytes", mailbox::getSize);
+        metrics.register("Mailbox compactions", mailbox::getCompactions);
+        metrics.register("Mailbox occupancy", mailbox::getOccupancy);
+        metrics.register("Mailbox messages dropped (oldest)", mailbox::getDropped);
+        metrics.register("Mailbox messages rejected", mailbox::getRejected);
+        metrics.register("Mailbox images dropped", mailbox::getImagesDropped);
+        metrics.register("Blobs stored", blobs::getStored);
+        metrics.register("Blob uploads skipped", blobs::getDuplicates);
+        metrics.register("Blob bytes saved", blobs::getBytesSaved);
+        pendingUploads = new PendingUploads(config.getBlobUploadRetainMillis());
+        metrics.register("Messages waiting for images", pendingUploads::getWaiting);
+        metrics.register("Messages dropped waiting for images", pendingUploads::getDropped);
+        thumbnails = new ThumbnailPipeline(blobs, config.getThumbnailThreads(), config.getThumbnailQueue(),
+                config.getThumbnailSize(), config.getThumbnailMinBytes());
+        metrics.register("Thumbnails created", thumbnails::getCreated);
+        metrics.register("Thumbnails skipped (queue full)", thumbnails::getSkipped);
+        metrics.register("Thumbnails failed", thumbnails::getFailed);
+        metrics.register("Thumbnails pending", thumbnails::getPending);
+        metrics.register("Legacy stream retained bytes", this::describeLegacyStreams);
+        metrics.register("Compression", this::describeCompression);
+        flushPolicy = new OutboundFlushPolicy(config.getOutboundLatencyMicros(), config.getOutboundFlushBytes());
+        metrics.register("Outbound frames", flushPolicy::getFrames);
+        metrics.register("Outbound flushes", flushPolicy::getFlushes);
+        metrics.register("Outbound frames per flush", flushPolicy::getFramesPerFlush);
+        avatars = new AvatarRegistry(blobs);
+        metrics.register("Avatars registered", avatars::getCount);
+        metrics.register("Avatar changes", avatars::getChanges);
+        serverGUI = new ServerGUI(this);
+        backlog = new BacklogDelivery(unsentMessageHandler, blobs, bodies, serverGUI,
+                config.getBacklogPageSize(), config.getBacklogWindow());
+        groupFanout = new GroupFanout(sessions, groups, backlog, unsentMessageHandler, blobs, bodies);
+        metrics.register("Groups", groups::getCount);
+        metrics.register("Group messages", groupFanout::getMessages);
+        metrics.register("Group recipients", groupFanout::getRecipients);
+        metrics.register("Group frames encoded", groupFanout::getEncodings);
+        metrics.register("Group mailbox references", groupFanout::getReferences);
+        metrics.register("Group bodies stored", bodies::getCount);
+        metrics.register("Group bodies deleted", bodies::getDeleted);
+        slowConsumers = new SlowConsumerMonitor(sessions, backlog, serverGUI, config.getSlowCheckMillis(),
+                config.getSlowLagMillis(), config.getSlowLagBytes(), config.getWriteDeadlineMillis());
+        metrics.register("Slow consumers", slowConsumers::getSummary);
+        metrics.register("Slow consumer diversions", slowConsumers::getDiversions);
+        metrics.register("Slow consumer recoveries", slowConsumers::getRecoveries);
+        metrics.register("Slow consumer evictions", slowConsumers::getEvictions);
+        idleReaper = new IdleReaper(sessions, serverGUI, config.getIdleTimeoutMillis(), config.getIdleTickMillis());
+        metrics.register("Heartbeats received", heartbeats::get);
+        metrics.register("Idle sessions reaped", idleReaper::getReaped);
+        metrics.register("Idle wheel sessions", idleReaper::getSize);
+        metrics.register("Idle wheel reschedules", idleReaper::getRescheduled);
+        presence = new PresenceBroadcaster(sessions, config.getPresenceWindowMillis());
+        metrics.register("Presence changes", presence::getChanges);
+        metrics.register("Presence broadcasts sent", presence::getFlushes);
+        metrics.register("Presence sends saved by coalescing", presence::getSavedSends);
+        metrics.register("Presence frames encoded", presence::getEncodings);
+        metrics.register("Presence snapshots reused", presence::getSnapshotsReused);
+        handshakeStage = new HandshakeStage(this, config.getHandshakeThreads(), config.getHandshakeTimeoutMillis());
+        if (!config.isNioEngine()) {
+            handlerExecutor = config.newHandlerExecutor();
+            try {
+                serverSocket = new ServerSocket(port);
+            } catch (IOException e){
+                e.printStackTrace();
+            }
         }
     }
 
     /**
-     * Startar servern och lyssnar efter nya klientanslutningar.
-     * För varje ny anslutning startas en ny tråd för att hantera klientens kommunikation.
+     * Startar servern och lyssnar efter nya klientanslutningar med den motor som valts i inställningarna.
+     * För motorn med en tråd per klient lämnas varje accepterad socket direkt över till
+     * handskakningssteget, så att accept-loopen aldrig väntar på en klients inloggning.
      */
     public void openServer(){
+        if (config.isNioEngine()) {
+            try {
+                new NioServerEngine(this, port, config.getNioLoops(), config.getNioWorkers()).run();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            return;
+        }
+
         try {
             while (true){
                 Socket clientSocket = serverSocket.accept();
+                handshakeStage.submit(clientSocket, System.nanoTime());
+            }
+        } catch (IOException e){
+            e.printStackTrace();
+        }
+    }
 
+    /**
+     * Anropas av handskakningssteget när en klient har skickat sin användare. Registrerar anslutningen
+     * och startar en ClientHandler på den konfigurerade exekveraren, antingen på en plattformstråd
+     * eller en virtuell tråd.
+     *
+     * @param user Användaren som loggar in.
+     * @param connection Anslutningen till klienten.
+     * @param acceptedAt Tidpunkten då socketen accepterades enligt {@link System#nanoTime()}.
+     */
+    public void handshakeCompleted(User user, StreamConnection connection, long acceptedAt) {
+        connection.startWriter(handlerExecutor);
+        if (registerConnection(user, connection)) {
+            handlerExecutor.execute(new ClientHandler(connection, serverGUI, user, acceptedAt));
+        } else {
+            connection.close();
+        }
+    }
 
-                ObjectOutputStream oos = new ObjectOutputStream(clientSocket.getOutputStream());
-                ObjectInputStream ois = new ObjectInputStream(clientSocket.getInputStream());
-
-                User user = (User) ois.readObject();
+    /**
+     * Registrerar anslutningen för en användare som har skickat sin inloggning.
+     * Misslyckas om en användare med samma namn redan är ansluten. Kontrollen och
+     * registreringen sker atomärt i sessionsregistret. Profilbilden lagras först och ersätts
+     * med sin hash, så att användaren aldrig skickas vidare med hela bilden.
+     *
+     * @param user Användaren som loggar in.
+     * @param connection Anslutningen till användarens klient.
+     * @return true om anslutningen registrerades, annars false.
+     */
+    public boolean registerConnection(User user, ClientConnection connection) {
+        avatars.register(user);
+        Session session = sessions.login(user, connection);
+        if (session == null) {
+            return false;
+        }
+        if (!connection.isLegacy()) {
+            idleReaper.register(session);
+        }
+        return true;
+    }
 
-                if (!connectedClients.contains(user)) {
-                    new Thread(new ClientHandler(clientSocket, serverGUI, clientCommunicationHandler, user, ois)).start();
+    /**
+     * Markerar en registrerad användare som online, skickar närvarouppdateringar till alla
+     * klienter och levererar eventuella osända meddelanden.
+     *
+     * @param user Användaren som har loggat in.
+     * @param acceptedAt Tidpunkten då anslutningen accepterades enligt {@link System#nanoTime()}.
+     */
+    public void userConnected(User user, long acceptedAt) {
+        serverGUI.addUser(user.getName());
+        Session session = sessions.get(user.getName());
+        if (session != null) {
+            presence.userJoined(session);
+        }
+        userLoggedIn(user);
+        metrics.recordAcceptToOnline(System.nanoTime() - acceptedAt);
+    }
 
-                    clientCommunicationHandler.addUserStream(user,oos);
-                    clientStream.put(user.getName(),oos);
-                } else {
-                    ois.close();
-                    oos.close();
-                    clientSocket.close();
+    /**
+     * Beskriver hur mycket äldre klienters ObjectOutputStreams håller kvar sedan de senast nollställdes.
+     *
+     * @return Summan för alla äldre klienter och den klient som håller mest.
+     */
+    private String describeLegacyStreams() {
+        long total = 0;
+        long largest = 0;
+        long resets = 0;
+        String largestName = null;
+        for (Session session : sessions.snapshot()) {
+            if (session.getConnection() instanceof StreamConnection) {
+                StreamConnection connection = (StreamConnection) session.getConnection();
+                long retained = connection.getRetainedBytes();
+                total += retained;
+                resets += connection.getStreamResets();
+                if (retained > largest) {
+                    largest = retained;
+                    largestName = session.getUser().getName();
                 }
             }
-        } catch (IOException | ClassNotFoundException e){
-            e.printStackTrace();
         }
+        if (largestName == null) {
+            return total + " (" + resets + " resets)";
+        }
+        return total + ", largest " + largest + " (" + largestName + "), " + resets + " resets";
+    }
+
+    /**
+     * Beskriver komprimeringen för de anslutningar som komprimerar sina ramar: hur mycket
+     * innehållet krymper, hur mycket med bilder som skickades utan komprimering och hur lång
+     * tid komprimeringen har tagit, sammanlagt och för den anslutning som har tagit längst tid.
+     *
+     * @return En kort beskrivning, t.ex. {@code "3 connections, 120000 -> 30000 bytes (25%), ..."}.
+     */
+    private String describeCompression() {
+        int connections = 0;
+        long raw = 0;
+        long compressed = 0;
+        long bypassed = 0;
+        long nanos = 0;
+        long slowest = 0;
+        String slowestName = null;
+        for (Session session : sessions.snapshot()) {
+            DeflateCodec codec = session.getConnection().getCompression();
+            if (codec == null) {
+                continue;
+            }
+            connections++;
+            raw += codec.getRawBytes();
+            compressed += codec.getCompressedBytes();
+            bypassed += codec.getBypassedBytes();
+            nanos += codec.getCpuNanos();
+            if (slowestName == null || codec.getCpuNanos() > slowest) {
+                slowest = codec.getCpuNanos();
+                slowestName = session.getUser().getName() + " " + codec.getRawBytes() + " -> " + codec.getCompressedBytes()
+                        + " bytes, " + slowest / 1_000_000 + " ms";
+            }
+        }
+        if (connections == 0) {
+            return "0 connections";
+        }
+        long percent = raw == 0 ? 100 : Math.round(compressed * 100.0 / raw);
+        return connections + " connections, " + raw + " -> " + compressed + " bytes (" + percent + "%), "
+                + bypassed + " image bytes not compressed, " + nanos / 1_000_000 + " ms, slowest " + slowestName;
     }
 
     /**
-     * Skickar en lista över alla anslutna klienter till alla anslutna klienter.
-     * Används för att uppdatera klienternas användarlistor.
+     * Hämtar serverns inställningar.
      *
-     * @param connectedClients Lista över anslutna klienter.
+     * @return Inställningarna.
      */
-    public void broadcastList(List<User> connectedClients) {
-        List<User> connectedClientsCopy = new ArrayList<>(connectedClients);
-        Map<String, ObjectOutputStream> failedStreams = new HashMap<>();
+    public ServerConfig getConfig() {
+        return config;
+    }
 
-        for (Map.Entry<String, ObjectOutputStream> entry : clientStream.entrySet()) {
+    /**
+     * Hämtar policyn för när utgående ramar skrivs ut.
+     *
+     * @return Policyn, som delas av alla anslutningar.
+     */
+    public OutboundFlushPolicy getFlushPolicy() {
+        return flushPolicy;
+    }
+
+    /**
+     * Hämtar serverns mätvärden.
+     *
+     * @return Mätvärdena.
+     */
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Hämtar steget som hanterar inloggningshandskakningar och deras tidsgränser.
+     *
+     * @return Handskakningssteget.
+     */
+    public HandshakeStage getHandshakeStage() {
+        return handshakeStage;
+    }
+
+    /**
+     * Vidarebefordrar ett meddelande till mottagaren om den är online,
+     * annars lagras det tills mottagaren loggar in. Ett meddelande som inte får plats i
+     * mottagarens utgående kö lagras på samma sätt, liksom meddelanden till en mottagare
+     * som fortfarande håller på att få sina väntande meddelanden. Meddelanden till en
+     * gruppkonversation skickas till gruppens medlemmar av {@link GroupFanout}.
+     *
+     * @param userMessage Meddelandet som ska routas.
+     */
+    public void routeMessage(Message userMessage) {
+        if (userMessage.getGroup() != null) {
+            int reached = groupFanout.publish(userMessage);
+            if (reached >= 0) {
+                serverGUI.updateServerGUI(LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss")) + " " + userMessage.getSender().getName() + " sent a message to group: " + userMessage.getGroup() + " (" + reached + " members) Messagetext: " + userMessage.getMessage() + " Image sent: " + userMessage.getImageHash() + "\n");
+            }
+            return;
+        }
+        Session receiverSession = sessions.get(userMessage.getReceiver().getName());
+        if (receiverSession != null) {
+            LocalDateTime currentTime = LocalDateTime.now();
+            String serverGUImessageOnline = currentTime.format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss")) + " " +userMessage.getSender().getName() + " sent a message to online user: " + userMessage.getReceiver().getName() + " Messagetext: " + userMessage.getMessage() + " Image sent: " + userMessage.getImageHash() + "\n";
+            serverGUI.updateServerGUI(serverGUImessageOnline);
+            backlog.deliver(receiverSession, userMessage);
+        } else {
+            LocalDateTime currentTime = LocalDateTime.now();
+            String serverGUImessageOffline = currentTime.format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss")) + " " +userMessage.getSender().getName() + " message to offline user: " + userMessage.getReceiver().getName() + " Messagetext: " + userMessage.getMessage() + " Image sent: " + userMessage.getImageHash() + "\n";
+            serverGUI.updateServerGUI(serverGUImessageOffline);
+            unsentMessageHandler.put(userMessage.getReceiver(),userMessage);
+        }
+    }
+
+    /**
+     * Hanterar ett objekt som en inloggad klient har skickat.
+     *
+     * @param user Användaren som skickade objektet.
+     * @param connection Anslutningen som objektet kom från.
+     * @param obj Objektet.
+     */
+    public void handleObject(User user, ClientConnection connection, Object obj) {
+        Session current = sessions.get(user.getName());
+        if (current != null && current.getConnection() == connection) {
+            current.touch();
+        }
+        if (obj instanceof Heartbeat) {
+            heartbeats.incrementAndGet();
             try {
-                entry.getValue().writeObject(connectedClientsCopy);
-                entry.getValue().flush();
+                connection.send(new Heartbeat());
             } catch (IOException e) {
-                failedStreams.put(entry.getKey(), entry.getValue());
+                System.out.println("Could not answer heartbeat from " + user.getName() + ": " + e.getMessage());
+            }
+        } else if (obj instanceof Message) {
+            receiveMessage(user, connection, (Message) obj);
+        } else if (obj instanceof BlobData) {
+            blobReceived(user, connection, (BlobData) obj);
+        } else if (obj instanceof BlobRequest) {
+            sendBlob(connection, (BlobRequest) obj);
+        } else if (obj instanceof GroupUpdate) {
+            updateGroup(user, (GroupUpdate) obj);
+        } else if (obj instanceof PresenceResync) {
+            if (current != null && current.getConnection() == connection) {
+                presence.resync(current);
+            }
+        } else if (obj instanceof BacklogCredit) {
+            if (current != null && current.getConnection() == connection) {
+                backlog.credit(current, ((BacklogCredit) obj).getMessages());
+            }
+        }
+    }
+
+    /**
+     * Skapar eller ändrar en gruppkonversation och skickar den nya medlemslistan till alla
+     * medlemmar som är online, även de som har tagits bort ur gruppen så att de vet det.
+     *
+     * @param user Användaren som skickade ändringen.
+     * @param update Gruppens namn och de önskade medlemmarna.
+     */
+    private void updateGroup(User user, GroupUpdate update) {
+        List<String> before = groups.members(update.getName());
+        GroupUpdate saved = groups.update(user.getName(), update);
+        if (saved == null) {
+            System.out.println("Rejected change of group " + update.getName() + " from " + user.getName());
+            return;
+        }
+        Set<String> notify = new LinkedHashSet<>(saved.getMembers());
+        if (before != null) {
+            notify.addAll(before);
+        }
+        for (String member : notify) {
+            Session session = sessions.get(member);
+            if (session != null && !session.getConnection().isLegacy()) {
+                try {
+                    session.getConnection().send(saved);
+                } catch (IOException e) {
+                    System.out.println("Could not send group " + saved.getName() + " to " + member + ": " + e.getMessage());
+                }
             }
         }
+        serverGUI.updateServerGUI(LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss")) + " "
+                + user.getName() + " updated group " + saved.getName() + " with " + saved.getMembers().size() + " members\n");
+    }
 
-        for (String key : failedStreams.keySet()) {
-            clientStream.remove(key);
+    /**
+     * Tar emot ett meddelande från en klient. En bild som skickats i själva meddelandet lagras
+     * och ersätts med sin hash. Refererar meddelandet till en bild som servern inte har väntar
+     * meddelandet i {@link PendingUploads} tills avsändaren har laddat upp bilden; avsändaren
+     * ombeds bara en gång per bild, från så långt en tidigare avbruten uppladdning av samma bild
+     * hann. Meddelanden med en bild routas när bildens miniatyr är klar. Ett meddelande vars
+     * avsändare inte är den inloggade användaren på anslutningen kastas.
+     *
+     * @param user Avsändaren.
+     * @param connection Avsändarens anslutning.
+     * @param message Meddelandet.
+     */
+    private void receiveMessage(User user, ClientConnection connection, Message message) {
+        if (message.getSender() == null || !user.getName().equals(message.getSender().getName())) {
+            System.out.println("Dropping message from " + user.getName() + " claiming to be from "
+                    + (message.getSender() == null ? null : message.getSender().getName()));
+            return;
+        }
+        boolean inline = message.getImage() != null;
+        message.setThumbnail(null);
+        message.setBodyHash(null);
+        try {
+            blobs.internalize(message);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        String hash = message.getImageHash();
+        if (hash != null && !inline) {
+            if (!blobs.contains(hash)) {
+                if (pendingUploads.await(hash, message)) {
+                    try {
+                        connection.send(new BlobRequest(hash, blobs.partialLength(hash)));
+                    } catch (IOException e) {
+                        System.out.println("Could not request image upload from " + user.getName() + ": " + e.getMessage());
+                    }
+                }
+                return;
+            }
+            blobs.recordReuse(hash);
+        }
+        if (hash != null) {
+            thumbnails.prepare(hash).thenRun(() -> routeMessage(message));
+        } else {
+            routeMessage(message);
+        }
+    }
+
+    /**
+     * Lagrar en uppladdad del av en bild och ber om nästa del. När hela bilden har kommit
+     * och fått sin miniatyr routas de meddelanden som väntade på den. Stämmer bilden inte med
+     * sin hash ombeds avsändaren börja om från början, tills avsändaren har försökt
+     * {@link PendingUploads#MAX_ATTEMPTS} gånger och meddelandena släpps. Är bilden större än
+     * {@link BlobStore#getMaxBytes()} släpps meddelandena direkt. Delar av en bild som servern
+     * inte har bett användaren om kastas.
+     *
+     * @param user Användaren som laddade upp delen.
+     * @param connection Användarens anslutning.
+     * @param data Delen och bildens hash.
+     */
+    private void blobReceived(User user, ClientConnection connection, BlobData data) {
+        if (!pendingUploads.isAwaiting(user.getName(), data.getHash())) {
+            System.out.println("Discarding unrequested image " + data.getHash() + " from " + user.getName());
+            return;
+        }
+        if (data.getTotal() > blobs.getMaxBytes()) {
+            int dropped = pendingUploads.drop(user.getName(), data.getHash());
+            System.out.println("Dropped " + dropped + " messages from " + user.getName() + ", image " + data.getHash()
+                    + " is " + data.getTotal() + " bytes, more than " + blobs.getMaxBytes());
+            return;
+        }
+        try {
+            long length = blobs.putChunk(data);
+            if (length < 0) {
+                int dropped = pendingUploads.failed(user.getName(), data.getHash());
+                if (dropped == 0) {
+                    System.out.println("Image " + data.getHash() + " from " + user.getName()
+                            + " does not match its hash, asking for it again");
+                    connection.send(new BlobRequest(data.getHash(), 0));
+                } else if (dropped > 0) {
+                    System.out.println("Dropped " + dropped + " messages from " + user.getName() + ", image "
+                            + data.getHash() + " did not match its hash after " + PendingUploads.MAX_ATTEMPTS + " attempts");
+                } else {
+                    System.out.println("Discarding image from " + user.getName() + " that does not match its hash");
+                }
+                return;
+            }
+            if (length < data.getTotal()) {
+                connection.send(new BlobRequest(data.getHash(), length));
+                return;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        List<Message> waiting = pendingUploads.complete(data.getHash());
+        if (!waiting.isEmpty()) {
+            thumbnails.prepare(data.getHash()).thenRun(() -> {
+                for (Message message : waiting) {
+                    routeMessage(message);
+                }
+            });
+        }
+    }
+
+    /**
+     * Skickar nästa del av en lagrad bild till en klient som bett om den. Klienten ber om en
+     * del i taget, så andra meddelanden till klienten kan skickas mellan delarna.
+     *
+     * @param connection Klientens anslutning.
+     * @param request Bildens hash och var delen ska börja.
+     */
+    private void sendBlob(ClientConnection connection, BlobRequest request) {
+        String hash = request.getHash();
+        try {
+            BlobData chunk = blobs.readChunk(hash, request.getOffset());
+            if (chunk == null) {
+                System.out.println("Requested image " + hash + " is not stored");
+                return;
+            }
+            connection.send(chunk);
+        } catch (IOException e) {
+            System.out.println("Could not send image " + hash + ": " + e.getMessage());
         }
     }
 
@@ -107,23 +584,31 @@ public class Server {
      */
 
     public boolean isUserOnline(User user) {
-        return connectedClients.contains(user);
+        return sessions.isOnline(user);
     }
 
     /**
-     * Kopplar från en användare och uppdaterar alla anslutna klienters användarlistor.
+     * Kopplar från en användare och meddelar alla anslutna klienter att användaren har lämnat.
+     * Gör ingenting om användaren redan har loggat in igen via en annan anslutning.
      *
      * @param user Användaren som ska kopplas från.
+     * @param connection Anslutningen som har stängts.
      */
-    public void disconnectUser(User user) {
+    public void disconnectUser(User user, ClientConnection connection) {
+        if (!sessions.logout(user, connection)) {
+            return;
+        }
         serverGUI.removeUser(user.getName());
 
-        connectedClients.remove(user);
-        clientStream.remove(user);
+        presence.userLeft(user);
 
-        broadcastList(connectedClients);
+        int kept = pendingUploads.senderLeft(user.getName());
+        if (kept > 0) {
+            System.out.println("Keeping " + kept + " messages from " + user.getName()
+                    + " waiting for images until they reconnect");
+        }
 
-        if (connectedClients.isEmpty()) {
+        if (sessions.size() == 0) {
             System.out.println("No users connected");
 
         } else {
@@ -133,50 +618,55 @@ public class Server {
     }
 
     /**
-     * Lagrar ett meddelande i serverns loggfil.
+     * Lagrar ett meddelande i serverns loggfil. Raden skrivs av trafikloggens egen tråd,
+     * så anropet gör ingen fil-I/O.
      *
      * @param message Meddelandet som ska lagras.
      */
     public void storeInLog(String message) {
-        try {
-            String logFilePath = "server_log.txt";
-
-            File logFile = new File(logFilePath);
-            if (!logFile.exists()) {
-                logFile.createNewFile();
-            }
-
-            FileWriter fileWriter = new FileWriter(logFile, true);
-
-            BufferedWriter bufferedWriter = new BufferedWriter(fileWriter);
-
-            bufferedWriter.write(message);
-            bufferedWriter.newLine();
+        trafficLog.append(message);
+    }
 
-            bufferedWriter.close();
-            fileWriter.close();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+    /**
+     * Hämtar loggrader inom ett tidsintervall från serverns loggfil.
+     *
+     * @param from Intervallets början.
+     * @param to Intervallets slut.
+     * @return Raderna i den ordning de loggades.
+     * @throws IOException Om loggen inte kunde läsas.
+     */
+    public List<String> readLog(LocalDateTime from, LocalDateTime to) throws IOException {
+        return trafficLog.read(from, to);
     }
 
 
     /**
-     * Hanterar inloggningen för en användare och skickar eventuella osända meddelanden till den användaren.
+     * Hanterar inloggningen för en användare. Skickar användarens gruppkonversationer och börjar
+     * sedan leverera eventuella osända meddelanden till användaren, i sidor och i den takt
+     * klienten ger kredit för.
      *
      * @param user Användaren som loggar in.
      */
     public void userLoggedIn(User user) {
-
-        List<Message> unsentMessages = unsentMessageHandler.get(user);
-        if (unsentMessages != null && !unsentMessages.isEmpty()) {
-
-            for (Message message : unsentMessages) {
-                LocalDateTime currentTime = LocalDateTime.now();
-                serverGUI.updateServerGUI(currentTime.format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss")) + " "+message.getReceiver().getName() + " received message from: " + message.getSender().getName() + " Message text: " + message.getMessage() + " Image: " + message.getImage() + "\n");
-                clientCommunicationHandler.sendMessage(message);
+        Session session = sessions.get(user.getName());
+        if (session != null) {
+            if (!session.getConnection().isLegacy()) {
+                for (GroupUpdate group : groups.groupsOf(user.getName())) {
+                    try {
+                        session.getConnection().send(group);
+                    } catch (IOException e) {
+                        System.out.println("Could not send group " + group.getName() + " to " + user.getName() + ": " + e.getMessage());
+                    }
+                }
+                for (String hash : pendingUploads.resume(user.getName())) {
+                    try {
+                        session.getConnection().send(new BlobRequest(hash, blobs.partialLength(hash)));
+                    } catch (IOException e) {
+                        System.out.println("Could not request image upload from " + user.getName() + ": " + e.getMessage());
+                    }
+                }
             }
-            unsentMessageHandler.clear(user);
+            backlog.start(session);
         }
     }
 
@@ -191,28 +681,24 @@ public class Server {
      * och vidarebefordrar de till mottagaren eller lagrar de om mottagaren inte är online.
      */
     private class ClientHandler implements Runnable {
-        private Socket clientSocket;
-        private ClientCommunicationHandler clientCommunicationHandler;
+        private StreamConnection connection;
         private ServerGUI serverGUI;
         private User user;
-        private ObjectInputStream ois;
+        private long acceptedAt;
 
         /**
          * Skapar en ny ClientHandler för att hantera kommunikation med en specifik klient.
          *
-         * @param clientSocket Klientens socket.
+         * @param connection Anslutningen till klienten.
          * @param serverGUI Serverns GUI.
-         * @param clientCommunicationHandler Kommunikationshanterare.
          * @param user Användaren associerad med denna klient.
-         * @param ois Ois för att läsa meddelanden från klienten.
+         * @param acceptedAt Tidpunkten då socketen accepterades.
          */
-        public ClientHandler(Socket clientSocket, ServerGUI serverGUI, ClientCommunicationHandler clientCommunicationHandler, User user, ObjectInputStream ois) throws IOException {
-            this.clientSocket = clientSocket;
+        public ClientHandler(StreamConnection connection, ServerGUI serverGUI, User user, long acceptedAt) {
+            this.acceptedAt = acceptedAt;
+            this.connection = connection;
             this.serverGUI = serverGUI;
             this.user = user;
-            this.ois = ois;
-            this.clientCommunicationHandler = clientCommunicationHandler;
-
         }
 
         /**
@@ -221,29 +707,12 @@ public class Server {
         @Override
         public void run() {
             try {
+                userConnected(user, acceptedAt);
 
-                String username = user.getName();
-                serverGUI.addUser(username);
-                connectedClients.add(user);
-                broadcastList(connectedClients);
-                userLoggedIn(user);
-
-                while (!clientSocket.isClosed()) {
+                while (!connection.getSocket().isClosed()) {
                     try {
-                        Object obj = ois.readObject();
-                         if (obj instanceof Message) {
-                            Message userMessage = (Message) obj;
-                            if (isUserOnline(userMessage.getReceiver())) {
-                                LocalDateTime currentTime = LocalDateTime.now();
-                                String serverGUImessageOnline = currentTime.format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss")) + " " +userMessage.getSender().getName() + " sent a message to online user: " + userMessage.getReceiver().getName() + " Messagetext: " + userMessage.getMessage() + " Image sent: " + userMessage.getImage() + "\n";
-                                serverGUI.updateServerGUI(serverGUImessageOnline);
-                                clientCommunicationHandler.sendMessage(userMessage);
-                            } else {
-                                LocalDateTime currentTime = LocalDateTime.now();
-                                String serverGUImessageOffline = currentTime.format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss")) + " " +userMessage.getSender().getName() + " message to offline user: " + userMessage.getReceiver().getName() + " Messagetext: " + userMessage.getMessage() + " Image sent: " + userMessage.getImage() + "\n";
-                                serverGUI.updateServerGUI(serverGUImessageOffline);
-                                unsentMessageHandler.put(userMessage.getReceiver(),userMessage);
-                            }                        }
+                        Object obj = connection.getInput().readObject();
+                        handleObject(user, connection, obj);
                     }
                     catch (IOException e) {
                         break;
@@ -254,16 +723,10 @@ public class Server {
             } catch (Exception e) {
                 e.printStackTrace();
             } finally {
-                try {
-                    if (ois != null) ois.close();
-                    if (clientSocket != null && !clientSocket.isClosed()) clientSocket.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-                disconnectUser(user);
+                connection.close();
+                disconnectUser(user, connection);
             }
         }
 
     }
 }
-
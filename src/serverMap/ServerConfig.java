@@ -0,0 +1,523 @@
+package serverMap;
+
+import Common.Protocol;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.Deflater;
+
+/**
+ * Inställningar för servern som läses från systemegenskaper vid start,
+ * t.ex. {@code -Dchatt.engine=nio}.
+ *
+ */
+public class ServerConfig {
+
+    /** Motorn med en tråd per ansluten klient. */
+    public static final String ENGINE_THREAD = "thread";
+
+    /** Motorn som multiplexar alla anslutningar över ett fåtal selector-trådar. */
+    public static final String ENGINE_NIO = "nio";
+
+    /**
+     * Varje ClientHandler körs på en egen plattformstråd. Varje anslutning har också en egen
+     * skrivartråd, så en klient kostar två plattformstrådar. Se {@link #newHandlerExecutor()}.
+     */
+    public static final String EXECUTOR_PLATFORM = "platform";
+
+    /** Varje ClientHandler körs på en virtuell tråd (kräver JDK 21 eller senare). */
+    public static final String EXECUTOR_VIRTUAL = "virtual";
+
+    private String engine = ENGINE_THREAD;
+    private int nioLoops = Runtime.getRuntime().availableProcessors();
+    private int nioWorkers = Math.max(4, 2 * Runtime.getRuntime().availableProcessors());
+    private String executor = EXECUTOR_PLATFORM;
+    private int handshakeThreads = 4;
+    private long handshakeTimeoutMillis = 5000;
+    private int outboundCapacity = 1024;
+    private long outboundLatencyMicros = 0;
+    private int outboundFlushBytes = 64 * 1024;
+    private int legacyResetObjects = 1000;
+    private long legacyResetBytes = 1024 * 1024;
+    private long presenceWindowMillis = 250;
+    private String logDirectory = "server_log";
+    private long logSegmentBytes = 16L * 1024 * 1024;
+    private int logIndexBytes = 4096;
+    private int logCapacity = 8192;
+    private long logFlushIntervalMillis = 200;
+    private long logFlushBytes = 64 * 1024;
+    private String logOverflow = TrafficLog.OVERFLOW_DROP_NEWEST;
+    private String mailboxDirectory = "mailbox";
+    private int mailboxStripes = 16;
+    private long mailboxSyncMillis = 1000;
+    private long mailboxCompactBytes = 8L * 1024 * 1024;
+    private int mailboxMaxMessages = 1000;
+    private long mailboxMaxBytes = 64L * 1024 * 1024;
+    private String mailboxOverflow = MailboxJournal.OVERFLOW_DROP_OLDEST;
+    private int backlogPageSize = 20;
+    private String blobDirectory = "blobs";
+    private int blobChunkBytes = 64 * 1024;
+    private long blobUploadRetainMillis = 10 * 60 * 1000;
+    private long blobMaxBytes = 20L * 1024 * 1024;
+    private int thumbnailThreads = 2;
+    private int thumbnailQueue = 64;
+    private int thumbnailSize = 160;
+    private long thumbnailMinBytes = 32 * 1024;
+    private String groupFile = "groups.txt";
+    private int groupMaxMembers = 500;
+    private String groupBodyDirectory = "group_bodies";
+    private boolean compressionEnabled = true;
+    private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+    private long slowCheckMillis = 500;
+    private long slowLagMillis = 2000;
+    private long slowLagBytes = 1024 * 1024;
+    private long writeDeadlineMillis = 30_000;
+    private long idleTimeoutMillis = 45_000;
+    private long idleTickMillis = 1000;
+    private int backlogWindow = 100;
+
+    private ServerConfig() {
+    }
+
+    /**
+     * Skapar inställningar med standardvärden.
+     *
+     * @return Inställningarna.
+     */
+    public static ServerConfig defaults() {
+        return new ServerConfig();
+    }
+
+    /**
+     * Läser inställningar från systemegenskaperna och använder standardvärden för de som saknas.
+     *
+     * @return Inställningarna.
+     */
+    public static ServerConfig fromSystemProperties() {
+        ServerConfig config = new ServerConfig();
+        config.engine = System.getProperty("chatt.engine", config.engine);
+        config.nioLoops = Math.max(1, Integer.getInteger("chatt.nio.loops", config.nioLoops));
+        config.nioWorkers = Math.max(1, Integer.getInteger("chatt.nio.workers", config.nioWorkers));
+        config.executor = System.getProperty("chatt.executor", config.executor);
+        config.handshakeThreads = Math.max(1, Integer.getInteger("chatt.handshake.threads", config.handshakeThreads));
+        config.handshakeTimeoutMillis = Long.getLong("chatt.handshake.timeoutMs", config.handshakeTimeoutMillis);
+        config.outboundCapacity = Math.max(1, Integer.getInteger("chatt.outbound.capacity", config.outboundCapacity));
+        config.outboundLatencyMicros = Math.max(0, Long.getLong("chatt.outbound.latencyMicros", config.outboundLatencyMicros));
+        config.outboundFlushBytes = Math.max(1024, Integer.getInteger("chatt.outbound.flushBytes", config.outboundFlushBytes));
+        config.legacyResetObjects = Math.max(1, Integer.getInteger("chatt.legacy.resetObjects", config.legacyResetObjects));
+        config.legacyResetBytes = Math.max(1, Long.getLong("chatt.legacy.resetBytes", config.legacyResetBytes));
+        config.presenceWindowMillis = Math.max(0, Long.getLong("chatt.presence.windowMs", config.presenceWindowMillis));
+        config.logDirectory = System.getProperty("chatt.log.dir", config.logDirectory);
+        config.logSegmentBytes = Math.max(1, Long.getLong("chatt.log.segmentBytes", config.logSegmentBytes));
+        config.logIndexBytes = Math.max(1, Integer.getInteger("chatt.log.indexBytes", config.logIndexBytes));
+        config.logCapacity = Math.max(1, Integer.getInteger("chatt.log.capacity", config.logCapacity));
+        config.logFlushIntervalMillis = Math.max(1, Long.getLong("chatt.log.flushMs", config.logFlushIntervalMillis));
+        config.logFlushBytes = Math.max(1, Long.getLong("chatt.log.flushBytes", config.logFlushBytes));
+        config.logOverflow = System.getProperty("chatt.log.overflow", config.logOverflow);
+        config.mailboxDirectory = System.getProperty("chatt.mailbox.dir", config.mailboxDirectory);
+        config.mailboxStripes = Math.max(1, Integer.getInteger("chatt.mailbox.stripes", config.mailboxStripes));
+        config.mailboxSyncMillis = Math.max(0, Long.getLong("chatt.mailbox.syncMs", config.mailboxSyncMillis));
+        config.mailboxCompactBytes = Math.max(0, Long.getLong("chatt.mailbox.compactBytes", config.mailboxCompactBytes));
+        config.mailboxMaxMessages = Math.max(1, Integer.getInteger("chatt.mailbox.maxMessages", config.mailboxMaxMessages));
+        config.mailboxMaxBytes = Math.max(1, Long.getLong("chatt.mailbox.maxBytes", config.mailboxMaxBytes));
+        config.mailboxOverflow = System.getProperty("chatt.mailbox.overflow", config.mailboxOverflow);
+        config.backlogPageSize = Math.max(1, Integer.getInteger("chatt.backlog.pageSize", config.backlogPageSize));
+        config.backlogWindow = Math.max(1, Integer.getInteger("chatt.backlog.window", config.backlogWindow));
+        config.blobDirectory = System.getProperty("chatt.blob.dir", config.blobDirectory);
+        config.blobChunkBytes = Math.min(Protocol.MAX_FRAME_SIZE / 2,
+                Math.max(1024, Integer.getInteger("chatt.blob.chunkBytes", config.blobChunkBytes)));
+        config.blobUploadRetainMillis = Math.max(0, Long.getLong("chatt.blob.uploadRetainMs", config.blobUploadRetainMillis));
+        config.blobMaxBytes = Math.max(1, Long.getLong("chatt.blob.maxBytes", config.blobMaxBytes));
+        config.thumbnailThreads = Math.max(1, Integer.getInteger("chatt.thumbnail.threads", config.thumbnailThreads));
+        config.thumbnailQueue = Math.max(1, Integer.getInteger("chatt.thumbnail.queue", config.thumbnailQueue));
+        config.thumbnailSize = Math.max(16, Integer.getInteger("chatt.thumbnail.size", config.thumbnailSize));
+        config.thumbnailMinBytes = Math.max(0, Long.getLong("chatt.thumbnail.minBytes", config.thumbnailMinBytes));
+        config.groupFile = System.getProperty("chatt.group.file", config.groupFile);
+        config.groupMaxMembers = Math.max(2, Integer.getInteger("chatt.group.maxMembers", config.groupMaxMembers));
+        config.groupBodyDirectory = System.getProperty("chatt.group.bodyDir", config.groupBodyDirectory);
+        config.compressionEnabled = Boolean.parseBoolean(System.getProperty("chatt.compression.enabled",
+                String.valueOf(config.compressionEnabled)));
+        config.compressionLevel = Math.max(Deflater.DEFAULT_COMPRESSION,
+                Math.min(Deflater.BEST_COMPRESSION, Integer.getInteger("chatt.compression.level", config.compressionLevel)));
+        config.slowCheckMillis = Math.max(10, Long.getLong("chatt.slow.checkMs", config.slowCheckMillis));
+        config.slowLagMillis = Math.max(1, Long.getLong("chatt.slow.lagMs", config.slowLagMillis));
+        config.slowLagBytes = Math.max(1, Long.getLong("chatt.slow.lagBytes", config.slowLagBytes));
+        config.writeDeadlineMillis = Math.max(config.slowLagMillis,
+                Long.getLong("chatt.slow.writeDeadlineMs", config.writeDeadlineMillis));
+        config.idleTimeoutMillis = Math.max(1000, Long.getLong("chatt.idle.timeoutMs", config.idleTimeoutMillis));
+        config.idleTickMillis = Math.max(10, Math.min(config.idleTimeoutMillis,
+                Long.getLong("chatt.idle.tickMs", config.idleTickMillis)));
+        return config;
+    }
+
+    /**
+     * @return Namnet på anslutningsmotorn.
+     */
+    public String getEngine() {
+        return engine;
+    }
+
+    /**
+     * @return true om NIO-motorn ska användas.
+     */
+    public boolean isNioEngine() {
+        return ENGINE_NIO.equalsIgnoreCase(engine);
+    }
+
+    /**
+     * @return Antal händelseloopar för NIO-motorn.
+     */
+    public int getNioLoops() {
+        return nioLoops;
+    }
+
+    /**
+     * @return Antal arbetstrådar som hanterar NIO-motorns inkommande objekt. Hanteringen kan
+     * vänta på disk (brevlådor, bilder, trafikloggen) och körs därför inte på looparna.
+     */
+    public int getNioWorkers() {
+        return nioWorkers;
+    }
+
+    /**
+     * @return Namnet på exekveringsläget för ClientHandler.
+     */
+    public String getExecutor() {
+        return executor;
+    }
+
+    /**
+     * @return Antal trådar som utför inloggningshandskakningar.
+     */
+    public int getHandshakeThreads() {
+        return handshakeThreads;
+    }
+
+    /**
+     * @return Tidsgränsen för en handskakning i millisekunder.
+     */
+    public long getHandshakeTimeoutMillis() {
+        return handshakeTimeoutMillis;
+    }
+
+    /**
+     * @return Hur många objekt som får ligga i varje mottagares utgående kö.
+     */
+    public int getOutboundCapacity() {
+        return outboundCapacity;
+    }
+
+    /**
+     * @return Hur länge en utgående ram högst får vänta på fler ramar innan den skrivs ut, i mikrosekunder.
+     */
+    public long getOutboundLatencyMicros() {
+        return outboundLatencyMicros;
+    }
+
+    /**
+     * @return Antal väntande utgående bytes per anslutning som alltid skrivs ut direkt.
+     */
+    public int getOutboundFlushBytes() {
+        return outboundFlushBytes;
+    }
+
+    /**
+     * @return Antal objekt som skrivs till en äldre klient mellan två nollställningar av strömmen.
+     */
+    public int getLegacyResetObjects() {
+        return legacyResetObjects;
+    }
+
+    /**
+     * @return Antal bytes som skrivs till en äldre klient innan strömmen nollställs.
+     */
+    public long getLegacyResetBytes() {
+        return legacyResetBytes;
+    }
+
+    /**
+     * @return Hur länge närvaroförändringar samlas innan de skickas, i millisekunder.
+     */
+    public long getPresenceWindowMillis() {
+        return presenceWindowMillis;
+    }
+
+    /**
+     * @return Katalogen som trafikloggens segment skrivs till.
+     */
+    public String getLogDirectory() {
+        return logDirectory;
+    }
+
+    /**
+     * @return Storleken i bytes då trafikloggen påbörjar ett nytt segment.
+     */
+    public long getLogSegmentBytes() {
+        return logSegmentBytes;
+    }
+
+    /**
+     * @return Storleken i bytes på de block som trafikloggens index pekar ut.
+     */
+    public int getLogIndexBytes() {
+        return logIndexBytes;
+    }
+
+    /**
+     * @return Hur många rader som ryms i trafikloggens buffert.
+     */
+    public int getLogCapacity() {
+        return logCapacity;
+    }
+
+    /**
+     * @return Längsta tid mellan två flush av trafikloggen, i millisekunder.
+     */
+    public long getLogFlushIntervalMillis() {
+        return logFlushIntervalMillis;
+    }
+
+    /**
+     * @return Antal bytes som får skrivas till trafikloggen innan den flushas.
+     */
+    public long getLogFlushBytes() {
+        return logFlushBytes;
+    }
+
+    /**
+     * @return Vad trafikloggen gör när bufferten är full.
+     */
+    public String getLogOverflow() {
+        return logOverflow;
+    }
+
+    /**
+     * @return Katalogen som brevlådejournalen lagras i.
+     */
+    public String getMailboxDirectory() {
+        return mailboxDirectory;
+    }
+
+    /**
+     * @return Antal journaler som brevlådorna delas upp på när katalogen skapas.
+     */
+    public int getMailboxStripes() {
+        return mailboxStripes;
+    }
+
+    /**
+     * @return Tid mellan två tvingade skrivningar av brevlådejournalen till disk, i millisekunder.
+     */
+    public long getMailboxSyncMillis() {
+        return mailboxSyncMillis;
+    }
+
+    /**
+     * @return Antal bytes levererade poster i brevlådejournalen innan den komprimeras.
+     */
+    public long getMailboxCompactBytes() {
+        return mailboxCompactBytes;
+    }
+
+    /**
+     * @return Högsta antal väntande meddelanden per mottagare.
+     */
+    public int getMailboxMaxMessages() {
+        return mailboxMaxMessages;
+    }
+
+    /**
+     * @return Högsta antal bytes väntande meddelanden per mottagare.
+     */
+    public long getMailboxMaxBytes() {
+        return mailboxMaxBytes;
+    }
+
+    /**
+     * @return Vad som händer när en mottagares brevlåda är full.
+     */
+    public String getMailboxOverflow() {
+        return mailboxOverflow;
+    }
+
+    /**
+     * @return Högsta antal väntande meddelanden per sida vid inloggning.
+     */
+    public int getBacklogPageSize() {
+        return backlogPageSize;
+    }
+
+    /**
+     * @return Antal väntande meddelanden som skickas vid inloggning innan klienten har gett kredit.
+     */
+    public int getBacklogWindow() {
+        return backlogWindow;
+    }
+
+    /**
+     * @return Katalogen som bilder lagras i, adresserade med sin hash.
+     */
+    public String getBlobDirectory() {
+        return blobDirectory;
+    }
+
+    /**
+     * @return Största storlek i bytes för en del när en bild skickas till en klient.
+     */
+    public int getBlobChunkBytes() {
+        return blobChunkBytes;
+    }
+
+    /**
+     * @return Hur länge meddelanden som väntar på en bild ligger kvar efter att avsändaren har
+     * kopplat ner, så att uppladdningen kan fortsätta när avsändaren loggar in igen.
+     */
+    public long getBlobUploadRetainMillis() {
+        return blobUploadRetainMillis;
+    }
+
+    /**
+     * @return Största storlek i bytes för en bild som laddas upp i delar.
+     */
+    public long getBlobMaxBytes() {
+        return blobMaxBytes;
+    }
+
+    /**
+     * @return Antal trådar som skapar miniatyrer av bilder.
+     */
+    public int getThumbnailThreads() {
+        return thumbnailThreads;
+    }
+
+    /**
+     * @return Antal bilder som kan vänta på en miniatyr innan bilder routas utan miniatyr.
+     */
+    public int getThumbnailQueue() {
+        return thumbnailQueue;
+    }
+
+    /**
+     * @return Största bredd eller höjd i pixlar för en miniatyr.
+     */
+    public int getThumbnailSize() {
+        return thumbnailSize;
+    }
+
+    /**
+     * @return Storlek i bytes som en bild måste överstiga för att få en miniatyr.
+     */
+    public long getThumbnailMinBytes() {
+        return thumbnailMinBytes;
+    }
+
+    /**
+     * @return Filen som gruppkonversationerna och deras medlemmar sparas i.
+     */
+    public String getGroupFile() {
+        return groupFile;
+    }
+
+    /**
+     * @return Högsta antal medlemmar i en gruppkonversation.
+     */
+    public int getGroupMaxMembers() {
+        return groupMaxMembers;
+    }
+
+    /**
+     * @return Katalogen som gruppmeddelanden som väntar på medlemmar som är offline lagras i.
+     */
+    public String getGroupBodyDirectory() {
+        return groupBodyDirectory;
+    }
+
+    /**
+     * @return true om klienter som ber om det får komprimerade ramar. Varje komprimerad
+     * anslutning håller en deflate-ström med några hundra kB eget minne.
+     */
+    public boolean isCompressionEnabled() {
+        return compressionEnabled;
+    }
+
+    /**
+     * @return Nivån för komprimering, från 1 (snabbast) till 9 (minst), eller -1 för standardnivån.
+     */
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    /**
+     * @return Hur ofta anslutningarna kontrolleras efter klienter som ligger efter, i millisekunder.
+     */
+    public long getSlowCheckMillis() {
+        return slowCheckMillis;
+    }
+
+    /**
+     * @return Hur länge, i millisekunder, det äldsta som inte har skrivits till en klient får
+     * vänta innan nya meddelanden leds om till klientens brevlåda.
+     */
+    public long getSlowLagMillis() {
+        return slowLagMillis;
+    }
+
+    /**
+     * @return Hur många bytes som får vänta på en klient innan nya meddelanden leds om till
+     * klientens brevlåda.
+     */
+    public long getSlowLagBytes() {
+        return slowLagBytes;
+    }
+
+    /**
+     * @return Skrivfristen i millisekunder. En anslutning där det äldsta inte har skrivits inom
+     * fristen stängs.
+     */
+    public long getWriteDeadlineMillis() {
+        return writeDeadlineMillis;
+    }
+
+    /**
+     * @return Hur länge, i millisekunder, en klient får vara tyst innan sessionen stängs. Klienterna
+     * skickar hjärtslag betydligt oftare, se {@code chatt.heartbeat.intervalMs} hos klienten.
+     */
+    public long getIdleTimeoutMillis() {
+        return idleTimeoutMillis;
+    }
+
+    /**
+     * @return Hur ofta, i millisekunder, tysta sessioner letas upp.
+     */
+    public long getIdleTickMillis() {
+        return idleTickMillis;
+    }
+
+    /**
+     * Skapar exekveraren som kör en ClientHandler per ansluten klient. I läget för virtuella
+     * trådar hämtas {@code Executors.newVirtualThreadPerTaskExecutor} via reflektion så att
+     * servern fortfarande går att köra på äldre JDK, där den faller tillbaka till plattformstrådar.
+     * <p>
+     * Samma exekverare kör också varje anslutnings skrivare, så med plattformstrådar har varje
+     * klient två trådar: en som läser och en som tömmer den utgående kön. Skrivaren får ändå en
+     * egen tråd, eftersom en skrivning blockerar så länge klientens TCP-buffert är full; i en
+     * delad pool skulle några långsamma klienter kunna hålla alla trådar tills skrivfristen
+     * löper ut och stoppa leveransen till alla andra. Priset är en trådstack till per klient,
+     * så för många samtidiga klienter bör virtuella trådar eller {@link #ENGINE_NIO} användas,
+     * där en blockerad skrivning inte binder en plattformstråd.
+     *
+     * @return En exekverare som startar en ny tråd för varje uppgift.
+     */
+    public ExecutorService newHandlerExecutor() {
+        if (EXECUTOR_VIRTUAL.equalsIgnoreCase(executor)) {
+            try {
+                Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                return (ExecutorService) factory.invoke(null);
+            } catch (ReflectiveOperationException e) {
+                System.out.println("Virtual threads are not available on this JDK, using platform threads");
+            }
+        }
+        return Executors.newCachedThreadPool();
+    }
+}
@@ -0,0 +1,56 @@
+package serverMap;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Supplier;
+
+/**
+ * Samlar mätvärden för servern så att de kan visas i serverns GUI. Utöver latenshistogrammen
+ * kan andra delar av servern registrera egna mätare som läses av när sammanställningen görs.
+ *
+ */
+public class ServerMetrics {
+
+    private final LatencyHistogram acceptToOnline = new LatencyHistogram();
+    private final Map<String, Supplier<Object>> gauges = new ConcurrentSkipListMap<>();
+
+    /**
+     * Registrerar tiden från att en socket accepterades tills användaren var online.
+     *
+     * @param nanos Tiden i nanosekunder.
+     */
+    public void recordAcceptToOnline(long nanos) {
+        acceptToOnline.record(nanos);
+    }
+
+    /**
+     * @return Histogrammet för tiden från accept till online.
+     */
+    public LatencyHistogram getAcceptToOnline() {
+        return acceptToOnline;
+    }
+
+    /**
+     * Registrerar en mätare som läses av varje gång mätvärdena sammanställs.
+     *
+     * @param name Mätarens namn.
+     * @param value Funktionen som ger mätarens aktuella värde.
+     */
+    public void register(String name, Supplier<Object> value) {
+        gauges.put(name, value);
+    }
+
+    /**
+     * Sammanställer alla mätvärden som text, en rad per mätvärde.
+     *
+     * @return Mätvärdena som text.
+     */
+    public String summary() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("Accept to online: ").append(acceptToOnline.summary()).append('\n');
+        for (Map.Entry<String, Supplier<Object>> gauge : gauges.entrySet()) {
+            builder.append(gauge.getKey()).append(": ").append(gauge.getValue().get()).append('\n');
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,74 @@
+package serverMap;
+
+import Common.User;
+
+/**
+ * En inloggad användare och anslutningen som användaren är inloggad via.
+ *
+ */
+public class Session {
+
+    private final User user;
+    private final ClientConnection connection;
+    private final BacklogDelivery.State backlog = new BacklogDelivery.State();
+    private volatile long lastActivity = System.nanoTime();
+    private boolean presenceSynced;
+
+    /**
+     * Skapar en ny session.
+     *
+     * @param user Den inloggade användaren.
+     * @param connection Anslutningen till användarens klient.
+     */
+    public Session(User user, ClientConnection connection) {
+        this.user = user;
+        this.connection = connection;
+    }
+
+    /**
+     * @return Den inloggade användaren.
+     */
+    public User getUser() {
+        return user;
+    }
+
+    /**
+     * @return Anslutningen till användarens klient.
+     */
+    public ClientConnection getConnection() {
+        return connection;
+    }
+
+    /**
+     * Noterar att klienten har skickat något, t.ex. ett hjärtslag.
+     */
+    public void touch() {
+        lastActivity = System.nanoTime();
+    }
+
+    /**
+     * @return När klienten senast skickade något, enligt {@link System#nanoTime()}.
+     */
+    public long getLastActivity() {
+        return lastActivity;
+    }
+
+    /**
+     * @return true om sessionen har fått en ögonblicksbild av närvaron och kan ta emot
+     * uppdateringar. Läses och ändras bara med {@link PresenceBroadcaster}s lås taget.
+     */
+    boolean isPresenceSynced() {
+        return presenceSynced;
+    }
+
+    void setPresenceSynced(boolean presenceSynced) {
+        this.presenceSynced = presenceSynced;
+    }
+
+    /**
+     * @return Tillståndet för leveransen av väntande meddelanden till sessionen.
+     */
+    BacklogDelivery.State getBacklog() {
+        return backlog;
+    }
+}
@@ -0,0 +1,125 @@
+package serverMap;
+
+import Common.User;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Trådsäkert register över alla inloggade sessioner, med användarnamnet som nyckel.
+ * Uppslag och onlinekontroller sker i konstant tid. Inloggning och utloggning är atomära,
+ * och sändningar till alla itererar över en oföränderlig ögonblicksbild av medlemmarna.
+ *
+ */
+public class SessionRegistry {
+
+    private final ConcurrentHashMap<String, Session> sessions = new ConcurrentHashMap<>();
+    private final ReentrantLock snapshotLock = new ReentrantLock();
+    private final AtomicLong membershipVersion = new AtomicLong();
+    private volatile Snapshot snapshot = new Snapshot(0, Collections.emptyList());
+
+    /**
+     * Registrerar en session om ingen användare med samma namn redan är inloggad.
+     *
+     * @param user Användaren som loggar in.
+     * @param connection Anslutningen till användarens klient.
+     * @return Den nya sessionen, eller null om namnet redan används.
+     */
+    public Session login(User user, ClientConnection connection) {
+        Session session = new Session(user, connection);
+        if (sessions.putIfAbsent(user.getName(), session) != null) {
+            return null;
+        }
+        membershipVersion.incrementAndGet();
+        return session;
+    }
+
+    /**
+     * Tar bort användarens session, men bara om den fortfarande hör till den angivna anslutningen.
+     * En gammal anslutning som stängs kan därmed inte logga ut en nyare inloggning.
+     *
+     * @param user Användaren som loggar ut.
+     * @param connection Anslutningen som stängs.
+     * @return true om sessionen togs bort.
+     */
+    public boolean logout(User user, ClientConnection connection) {
+        Session session = sessions.get(user.getName());
+        if (session == null || session.getConnection() != connection || !sessions.remove(user.getName(), session)) {
+            return false;
+        }
+        membershipVersion.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * @param user Användaren som ska kontrolleras.
+     * @return true om användaren är inloggad.
+     */
+    public boolean isOnline(User user) {
+        return user != null && sessions.containsKey(user.getName());
+    }
+
+    /**
+     * @param name Användarnamnet.
+     * @return Användarens session, eller null om användaren inte är inloggad.
+     */
+    public Session get(String name) {
+        return sessions.get(name);
+    }
+
+    /**
+     * @return Antal inloggade användare.
+     */
+    public int size() {
+        return sessions.size();
+    }
+
+    /**
+     * Hämtar en oföränderlig ögonblicksbild av alla sessioner. Bilden byggs bara om när
+     * medlemskapet har ändrats sedan förra anropet.
+     *
+     * @return Sessionerna vid anropstillfället.
+     */
+    public List<Session> snapshot() {
+        Snapshot current = snapshot;
+        if (current.version == membershipVersion.get()) {
+            return current.sessions;
+        }
+        snapshotLock.lock();
+        try {
+            long version = membershipVersion.get();
+            if (snapshot.version != version) {
+                snapshot = new Snapshot(version, Collections.unmodifiableList(new ArrayList<>(sessions.values())));
+            }
+            return snapshot.sessions;
+        } finally {
+            snapshotLock.unlock();
+        }
+    }
+
+    /**
+     * @return En ögonblicksbild av alla inloggade användare.
+     */
+    public List<User> users() {
+        List<Session> current = snapshot();
+        List<User> users = new ArrayList<>(current.size());
+        for (Session session : current) {
+            users.add(session.getUser());
+        }
+        return users;
+    }
+
+    private static class Snapshot {
+        private final long version;
+        private final List<Session> sessions;
+
+        private Snapshot(long version, List<Session> sessions) {
+            this.version = version;
+            this.sessions = sessions;
+        }
+    }
+}
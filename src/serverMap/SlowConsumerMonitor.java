@@ -0,0 +1,143 @@
+package serverMap;
+
+import View.ServerGUI;
+
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hittar klienter som inte hinner ta emot det servern skickar, t.ex. över en överbelastad VPN.
+ * Med jämna mellanrum läses varje anslutnings kö: hur många bytes som väntar och hur länge det
+ * äldsta som inte har skrivits har väntat.
+ * <p>
+ * En session som ligger efter pausas i {@link BacklogDelivery}, så att nya meddelanden hamnar i
+ * brevlådan i stället för att fylla kön. När kön har krympt under halva gränserna återupptas
+ * leveransen och brevlådan töms i klientens takt. Har det äldsta inte skrivits inom skrivfristen
+ * stängs anslutningen. Det som låg i kön går då förlorat, men eftersom trafiken leds om långt
+ * innan fristen löper ut är det lite.
+ *
+ */
+public class SlowConsumerMonitor {
+
+    private final SessionRegistry sessions;
+    private final BacklogDelivery backlog;
+    private final ServerGUI serverGUI;
+    private final long lagNanos;
+    private final long lagBytes;
+    private final long deadlineNanos;
+    private final ScheduledExecutorService scheduler;
+
+    private final AtomicLong diversions = new AtomicLong();
+    private final AtomicLong recoveries = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private volatile String summary = "0 lagging";
+
+    /**
+     * Skapar en ny monitor och börjar kontrollera anslutningarna.
+     *
+     * @param sessions Registret över inloggade sessioner.
+     * @param backlog Leveransen som pausas för sessioner som ligger efter.
+     * @param serverGUI Serverns GUI där händelserna visas.
+     * @param checkMillis Hur ofta anslutningarna kontrolleras.
+     * @param lagMillis Hur länge det äldsta får vänta innan trafiken leds om till brevlådan.
+     * @param lagBytes Hur många bytes som får vänta innan trafiken leds om till brevlådan.
+     * @param deadlineMillis Hur länge det äldsta får vänta innan anslutningen stängs.
+     */
+    public SlowConsumerMonitor(SessionRegistry sessions, BacklogDelivery backlog, ServerGUI serverGUI, long checkMillis,
+                               long lagMillis, long lagBytes, long deadlineMillis) {
+        this.sessions = sessions;
+        this.backlog = backlog;
+        this.serverGUI = serverGUI;
+        this.lagNanos = TimeUnit.MILLISECONDS.toNanos(lagMillis);
+        this.lagBytes = lagBytes;
+        this.deadlineNanos = TimeUnit.MILLISECONDS.toNanos(deadlineMillis);
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "slow-consumer-monitor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::check, checkMillis, checkMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void check() {
+        int lagging = 0;
+        long slowestLag = 0;
+        String slowest = null;
+        try {
+            for (Session session : sessions.snapshot()) {
+                ClientConnection connection = session.getConnection();
+                long lag = connection.getLagNanos();
+                long bytes = connection.getQueuedBytes();
+                String name = session.getUser().getName();
+                if (lag >= deadlineNanos) {
+                    evictions.incrementAndGet();
+                    log(name + " evicted, oldest frame unsent for " + TimeUnit.NANOSECONDS.toSeconds(lag) + " s with "
+                            + bytes + " bytes queued");
+                    connection.close();
+                    continue;
+                }
+                boolean paused = backlog.isPaused(session);
+                if (!paused && (lag >= lagNanos || bytes >= lagBytes)) {
+                    backlog.pause(session);
+                    diversions.incrementAndGet();
+                    paused = true;
+                    log(name + " is lagging (" + TimeUnit.NANOSECONDS.toMillis(lag) + " ms, " + bytes
+                            + " bytes queued), new messages go to the mailbox");
+                } else if (paused && lag < lagNanos / 2 && bytes < lagBytes / 2) {
+                    backlog.resume(session);
+                    recoveries.incrementAndGet();
+                    paused = false;
+                    log(name + " caught up, delivering from the mailbox");
+                }
+                if (paused) {
+                    lagging++;
+                }
+                if (lag > slowestLag) {
+                    slowestLag = lag;
+                    slowest = name + " " + TimeUnit.NANOSECONDS.toMillis(lag) + " ms, " + bytes + " bytes";
+                }
+            }
+        } catch (RuntimeException e) {
+            System.out.println("Slow consumer check failed: " + e.getMessage());
+        }
+        summary = lagging + " lagging" + (slowest == null ? "" : ", slowest " + slowest);
+    }
+
+    private void log(String event) {
+        System.out.println(event);
+        serverGUI.updateServerGUI(LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss")) + " "
+                + event + "\n");
+    }
+
+    /**
+     * @return Antal sessioner som ligger efter och den som har väntat längst, från den senaste kontrollen.
+     */
+    public String getSummary() {
+        return summary;
+    }
+
+    /**
+     * @return Antal gånger en sessions trafik har letts om till brevlådan.
+     */
+    public long getDiversions() {
+        return diversions.get();
+    }
+
+    /**
+     * @return Antal gånger en session har kommit ikapp och fått sin brevlåda.
+     */
+    public long getRecoveries() {
+        return recoveries.get();
+    }
+
+    /**
+     * @return Antal anslutningar som har stängts för att det äldsta inte skrevs inom skrivfristen.
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+}
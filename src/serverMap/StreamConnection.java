@@ -0,0 +1,355 @@
+package serverMap;
+
+import Common.*;
+
+import java.io.*;
+import java.net.Socket;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * En blockerande anslutning över en socket, som används av motorn med en tråd per klient.
+ * Känner av om klienten talar det ramade protokollet eller äldre Java-serialisering
+ * och väljer strömmar därefter.
+ * <p>
+ * Utgående objekt läggs i en begränsad kö och skrivs av en egen skrivare som ensam äger strömmen.
+ * Avsändare väntar därför aldrig på en långsam mottagare, flera avsändare kan inte blanda ihop
+ * strömmen och ordningen bevaras för varje mottagare. Skrivaren skriver alla objekt som väntar
+ * i kön innan strömmen töms, enligt {@link OutboundFlushPolicy}.
+ *
+ */
+public class StreamConnection implements ClientConnection {
+
+    private final Socket socket;
+    private final WireInput input;
+    private final WireOutput output;
+    private final BlockingQueue<Queued> outbound;
+    private final CountingOutputStream submitted;
+    private final CountingOutputStream sent;
+    private volatile long writingSince;
+    private final int outboundCapacity;
+    private final AtomicReference<Runnable> drained = new AtomicReference<>();
+    private final boolean legacy;
+    private final OutboundFlushPolicy flushPolicy;
+    private volatile boolean closed;
+    private final ReentrantLock writerLock = new ReentrantLock();
+    private Thread writer;
+    private boolean writerInterrupted;
+
+    /**
+     * Ett objekt i den utgående kön och när det köades.
+     */
+    private static final class Queued {
+        private final Object obj;
+        private final long queuedAt;
+
+        Queued(Object obj) {
+            this.obj = obj;
+            this.queuedAt = System.nanoTime();
+        }
+    }
+
+    private StreamConnection(Socket socket, WireInput input, WireOutput output, int outboundCapacity, boolean legacy,
+                             OutboundFlushPolicy flushPolicy, CountingOutputStream submitted, CountingOutputStream sent) {
+        this.submitted = submitted;
+        this.sent = sent;
+        this.legacy = legacy;
+        this.flushPolicy = flushPolicy;
+        this.socket = socket;
+        this.input = input;
+        this.output = output;
+        this.outbound = new ArrayBlockingQueue<>(outboundCapacity);
+        this.outboundCapacity = outboundCapacity;
+    }
+
+    /**
+     * Öppnar strömmarna för en nyss accepterad socket. Läser de två första bytes för att
+     * avgöra om klienten använder ObjectOutputStream eller det ramade protokollet. För det
+     * ramade protokollet besvaras inledningen med den kodning som servern valt, och om ramarna
+     * komprimeras.
+     *
+     * @param socket Den accepterade socketen.
+     * @param config Serverns inställningar för den utgående kön och för äldre klienters strömmar.
+     * @param flushPolicy När utgående objekt skrivs ut. Utströmmens buffert är lika stor som policyns bytegräns.
+     * @return En ny anslutning.
+     * @throws IOException Om inledningen inte kan läsas eller är okänd.
+     */
+    public static StreamConnection open(Socket socket, ServerConfig config, OutboundFlushPolicy flushPolicy) throws IOException {
+        int outboundCapacity = config.getOutboundCapacity();
+        BufferedInputStream in = new BufferedInputStream(socket.getInputStream());
+        CountingOutputStream sent = new CountingOutputStream(socket.getOutputStream());
+        CountingOutputStream out = new CountingOutputStream(new BufferedOutputStream(sent, flushPolicy.getFlushBytes()));
+
+        in.mark(2);
+        int first = in.read();
+        int second = in.read();
+        in.reset();
+        if (first == -1 || second == -1) {
+            throw new EOFException("Connection closed before handshake");
+        }
+
+        if (((first << 8) | second) == Protocol.LEGACY_STREAM_MAGIC) {
+            ObjectStreamOutput oos = new ObjectStreamOutput(out, config.getLegacyResetObjects(), config.getLegacyResetBytes());
+            oos.flush();
+            ObjectInputStream ois = new ObjectInputStream(in);
+            return new StreamConnection(socket, new ObjectStreamInput(ois), oos, outboundCapacity, true, flushPolicy, out, sent);
+        }
+
+        DataInputStream dis = new DataInputStream(in);
+        byte codecId = Protocol.negotiateCodec(Protocol.readPreamble(dis), config.isCompressionEnabled());
+        out.write(codecId);
+        out.flush();
+        PayloadCodec codec = Protocol.codecFor(codecId, config.getCompressionLevel());
+        return new StreamConnection(socket, new FramedInput(dis, codec), new FramedOutput(out, codec), outboundCapacity, false,
+                flushPolicy, out, sent);
+    }
+
+    /**
+     * Hämtar inströmmen som klientens objekt läses från.
+     *
+     * @return Inströmmen.
+     */
+    public WireInput getInput() {
+        return input;
+    }
+
+    /**
+     * Hämtar socketen för anslutningen.
+     *
+     * @return Socketen.
+     */
+    public Socket getSocket() {
+        return socket;
+    }
+
+    /**
+     * Uppskattar hur mycket en äldre klients ObjectOutputStream håller kvar sedan den senast nollställdes.
+     *
+     * @return Antal bytes som har skrivits sedan nollställningen, eller 0 för det ramade protokollet.
+     */
+    public long getRetainedBytes() {
+        return output instanceof ObjectStreamOutput ? ((ObjectStreamOutput) output).getRetainedBytes() : 0;
+    }
+
+    /**
+     * @return Antal gånger en äldre klients ObjectOutputStream har nollställts, 0 för det ramade protokollet.
+     */
+    public long getStreamResets() {
+        return output instanceof ObjectStreamOutput ? ((ObjectStreamOutput) output).getResets() : 0;
+    }
+
+    /**
+     * @return Antal bytes som skrivaren har kodat men som ännu inte har tagits emot av socketen.
+     * Objekt som väntar i kön är inte kodade och räknas inte.
+     */
+    @Override
+    public long getQueuedBytes() {
+        return Math.max(0, submitted.getCount() - sent.getCount());
+    }
+
+    /**
+     * @return Hur länge det äldsta objektet som inte är utskrivet har väntat, antingen det som
+     * skrivaren håller på med eller det första i kön.
+     */
+    @Override
+    public long getLagNanos() {
+        long oldest = writingSince;
+        Queued head = outbound.peek();
+        if (oldest == 0 && head != null) {
+            oldest = head.queuedAt;
+        }
+        return oldest == 0 ? 0 : System.nanoTime() - oldest;
+    }
+
+    @Override
+    public DeflateCodec getCompression() {
+        if (output instanceof FramedOutput && ((FramedOutput) output).getCodec() instanceof DeflateCodec) {
+            return (DeflateCodec) ((FramedOutput) output).getCodec();
+        }
+        return null;
+    }
+
+    /**
+     * Startar skrivaren som tömmer den utgående kön.
+     *
+     * @param executor Exekveraren som skrivaren körs på.
+     */
+    public void startWriter(Executor executor) {
+        executor.execute(this::drainOutbound);
+    }
+
+    /**
+     * Skriver det som köas tills anslutningen stängs. Slutar skrivaren av något annat skäl än att
+     * {@link #close()} avbröt den stängs anslutningen, så att ingen kö blir liggande utan skrivare.
+     * Tråden lämnas tillbaka utan avbrottet från {@link #close()}, eftersom den kan återanvändas
+     * av exekveraren för en annan anslutning.
+     */
+    private void drainOutbound() {
+        writerLock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            writer = Thread.currentThread();
+        } finally {
+            writerLock.unlock();
+        }
+        try {
+            while (!closed) {
+                Queued queued = outbound.take();
+                writingSince = queued.queuedAt;
+                long first = System.nanoTime();
+                int written = 0;
+                while (queued != null) {
+                    write(queued.obj);
+                    written++;
+                    queued = nextQueued(first);
+                }
+                output.flush();
+                writingSince = 0;
+                flushPolicy.recordFlush(written);
+                if (hasRoom()) {
+                    runDrained();
+                }
+            }
+        } catch (InterruptedException e) {
+            if (!closed) {
+                close();
+                Thread.currentThread().interrupt();
+            }
+        } catch (IOException e) {
+            close();
+        } catch (RuntimeException | Error e) {
+            close();
+            throw e;
+        } finally {
+            writerLock.lock();
+            try {
+                writer = null;
+                if (writerInterrupted) {
+                    Thread.interrupted();
+                }
+            } finally {
+                writerLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Skriver ett objekt. En delad ram skrivs med de bytes som redan har kodats för
+     * anslutningens kodning; äldre klienter skriver objektet med sin ObjectOutputStream.
+     */
+    private void write(Object obj) throws IOException {
+        if (obj instanceof EncodedFrame) {
+            EncodedFrame frame = (EncodedFrame) obj;
+            if (output instanceof FramedOutput) {
+                FramedOutput framed = (FramedOutput) output;
+                framed.writeEncoded(frame.frameFor(framed.getCodec()));
+            } else {
+                output.writeObject(frame.getObject());
+            }
+        } else {
+            output.writeObject(obj);
+        }
+    }
+
+    /**
+     * Hämtar nästa objekt som ska skrivas före tömningen. Är kön tom väntas på fler objekt
+     * så länge latensbudgeten räknat från det första objektet räcker. Bytegränsen behöver
+     * ingen egen kontroll eftersom utströmmens buffert skrivs ut när den är full.
+     */
+    private Queued nextQueued(long first) throws InterruptedException {
+        Queued next = outbound.poll();
+        long budget = flushPolicy.getLatencyBudgetNanos();
+        if (next != null || budget == 0) {
+            return next;
+        }
+        long remaining = first + budget - System.nanoTime();
+        return remaining > 0 ? outbound.poll(remaining, TimeUnit.NANOSECONDS) : null;
+    }
+
+    /**
+     * Köar ett objekt för skrivaren och återvänder direkt.
+     *
+     * @param obj Objektet som ska skickas, eller en {@link EncodedFrame} som delas med andra mottagare.
+     * @throws IOException Om anslutningen är stängd.
+     * @throws OutboundQueueFullException Om mottagarens kö är full.
+     */
+    @Override
+    public void send(Object obj) throws IOException {
+        if (closed) {
+            throw new IOException("Connection closed");
+        }
+        if (!outbound.offer(new Queued(obj))) {
+            throw new OutboundQueueFullException("Outbound queue full");
+        }
+    }
+
+    @Override
+    public void whenDrained(Runnable task) {
+        drained.set(task);
+        if (hasRoom()) {
+            runDrained();
+        }
+    }
+
+    private boolean hasRoom() {
+        return outbound.remainingCapacity() >= (outboundCapacity + 1) / 2;
+    }
+
+    private void runDrained() {
+        Runnable task = drained.getAndSet(null);
+        if (task == null || closed) {
+            return;
+        }
+        try {
+            task.run();
+        } catch (RuntimeException e) {
+            System.out.println("Drain callback failed: " + e);
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public boolean isLegacy() {
+        return legacy;
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        writerLock.lock();
+        try {
+            if (writer != null && writer != Thread.currentThread()) {
+                writer.interrupt();
+                writerInterrupted = true;
+            }
+        } finally {
+            writerLock.unlock();
+        }
+        outbound.clear();
+        try {
+            input.close();
+        } catch (IOException ignored) {
+        }
+        try {
+            output.close();
+        } catch (IOException ignored) {
+        }
+        try {
+            socket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        if (output instanceof FramedOutput) {
+            ((FramedOutput) output).getCodec().close();
+        }
+    }
+}
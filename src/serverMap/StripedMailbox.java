@@ -0,0 +1,293 @@
+package serverMap;
+
+import Common.Message;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Brevlådorna för osända meddelanden, uppdelade på ett antal oberoende journaler efter
+ * mottagarens namn. Varje journal har ett eget lås, så trådar som lagrar meddelanden till
+ * olika mottagare stör sällan varandra. Alla meddelanden till en mottagare hamnar alltid i
+ * samma journal, så ordningen per mottagare bevaras.
+ * <p>
+ * Antalet journaler sparas i katalogen första gången, eftersom en mottagares meddelanden
+ * annars inte skulle hittas om antalet ändrades mellan två starter.
+ *
+ */
+public class StripedMailbox {
+
+    private static final String STRIPES_FILE = "stripes";
+
+    private final MailboxJournal[] stripes;
+    private final ScheduledExecutorService syncer;
+
+    /**
+     * Öppnar alla journaler och flyttar över meddelanden från en journal som skapats innan
+     * brevlådorna delades upp.
+     *
+     * @param directory Katalogen som journalerna ligger i.
+     * @param stripes Antal journaler om katalogen är ny.
+     * @param syncMillis Tid mellan två tvingade skrivningar till disk, 0 för att bara göra det vid stängning.
+     * @param compactBytes Antal bytes levererade poster i en journal innan den komprimeras.
+     * @param maxMessages Högsta antal väntande meddelanden per mottagare.
+     * @param maxBytes Högsta antal bytes väntande meddelanden, bilder och gruppmeddelanden per mottagare.
+     * @param overflow Vad som händer när en brevlåda är full.
+     * @param blobs Lagringen av bilder som meddelandena refererar till.
+     * @param bodies Lagringen av gruppmeddelanden som meddelandena refererar till.
+     * @throws IOException Om en journal inte kunde öppnas.
+     */
+    public StripedMailbox(File directory, int stripes, long syncMillis, long compactBytes,
+                          int maxMessages, long maxBytes, String overflow, BlobStore blobs,
+                          GroupBodyStore bodies)
+            throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create mailbox directory " + directory);
+        }
+        int count = readStripeCount(directory, Math.max(1, stripes));
+        this.stripes = new MailboxJournal[count];
+        for (int i = 0; i < count; i++) {
+            this.stripes[i] = new MailboxJournal(new File(directory, String.format("stripe-%02d", i)), 0,
+                    compactBytes, maxMessages, maxBytes, overflow, blobs, bodies);
+        }
+        migrate(directory, compactBytes, overflow);
+
+        if (syncMillis > 0) {
+            syncer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "mailbox-sync");
+                thread.setDaemon(true);
+                return thread;
+            });
+            syncer.scheduleWithFixedDelay(this::sync, syncMillis, syncMillis, TimeUnit.MILLISECONDS);
+        } else {
+            syncer = null;
+        }
+    }
+
+    /**
+     * Lägger till ett meddelande i mottagarens brevlåda.
+     *
+     * @param recipient Namnet på mottagaren.
+     * @param message Meddelandet.
+     * @throws MailboxFullException Om brevlådan är full och meddelandet inte lagrades.
+     * @throws IOException Om meddelandet inte kunde lagras.
+     */
+    public void append(String recipient, Message message) throws IOException {
+        stripeFor(recipient).append(recipient, message);
+    }
+
+    /**
+     * @param recipient Namnet på mottagaren.
+     * @param max Högsta antal meddelanden.
+     * @return De äldsta väntande meddelandena, äldst först.
+     */
+    public ArrayList<Message> peek(String recipient, int max) {
+        return stripeFor(recipient).peek(recipient, max);
+    }
+
+    /**
+     * @param recipient Namnet på mottagaren.
+     * @return Alla väntande meddelanden, som samtidigt markeras som levererade.
+     */
+    public List<Message> drain(String recipient) {
+        return stripeFor(recipient).drain(recipient);
+    }
+
+    /**
+     * @param recipient Namnet på mottagaren.
+     * @param count Antal meddelanden, räknat från det äldsta, som har levererats.
+     */
+    public void acknowledge(String recipient, int count) {
+        stripeFor(recipient).acknowledge(recipient, count);
+    }
+
+    /**
+     * @param recipient Namnet på mottagaren.
+     * @return Antal meddelanden som väntar på mottagaren.
+     */
+    public int count(String recipient) {
+        return stripeFor(recipient).count(recipient);
+    }
+
+    /**
+     * Tvingar ut alla journaler till disk.
+     */
+    public void sync() {
+        for (MailboxJournal stripe : stripes) {
+            stripe.sync();
+        }
+    }
+
+    /**
+     * Skriver ut och stänger alla journaler.
+     */
+    public void close() {
+        if (syncer != null) {
+            syncer.shutdownNow();
+        }
+        for (MailboxJournal stripe : stripes) {
+            stripe.close();
+        }
+    }
+
+    /**
+     * @return Antal meddelanden som väntar på leverans.
+     */
+    public long getPendingCount() {
+        long total = 0;
+        for (MailboxJournal stripe : stripes) {
+            total += stripe.getPendingCount();
+        }
+        return total;
+    }
+
+    /**
+     * @return Antal använda bytes i alla journaler.
+     */
+    public long getSize() {
+        long total = 0;
+        for (MailboxJournal stripe : stripes) {
+            total += stripe.getSize();
+        }
+        return total;
+    }
+
+    /**
+     * @return Antal gånger en journal har komprimerats.
+     */
+    public long getCompactions() {
+        long total = 0;
+        for (MailboxJournal stripe : stripes) {
+            total += stripe.getCompactions();
+        }
+        return total;
+    }
+
+    /**
+     * @return Antal meddelanden som har kastats för att ge plats åt nyare.
+     */
+    public long getDropped() {
+        long total = 0;
+        for (MailboxJournal stripe : stripes) {
+            total += stripe.getDropped();
+        }
+        return total;
+    }
+
+    /**
+     * @return Antal meddelanden som har avvisats för att mottagarens brevlåda var full.
+     */
+    public long getRejected() {
+        long total = 0;
+        for (MailboxJournal stripe : stripes) {
+            total += stripe.getRejected();
+        }
+        return total;
+    }
+
+    /**
+     * @return Antal meddelanden som har lagrats utan sin bild för att brevlådan var full.
+     */
+    public long getImagesDropped() {
+        long total = 0;
+        for (MailboxJournal stripe : stripes) {
+            total += stripe.getImagesDropped();
+        }
+        return total;
+    }
+
+    /**
+     * Beskriver hur fulla brevlådorna är: antal brevlådor med väntande meddelanden och
+     * den fullaste brevlådans andel av sin gräns för antal meddelanden eller bytes.
+     *
+     * @return En kort beskrivning, t.ex. {@code "12 mailboxes, fullest bob 85%"}.
+     */
+    public String getOccupancy() {
+        int mailboxes = 0;
+        String fullest = null;
+        double most = 0;
+        for (MailboxJournal stripe : stripes) {
+            mailboxes += stripe.getMailboxCount();
+            String recipient = stripe.fullestRecipient();
+            if (recipient != null) {
+                double used = stripe.usage(recipient);
+                if (fullest == null || used > most) {
+                    fullest = recipient;
+                    most = used;
+                }
+            }
+        }
+        if (fullest == null) {
+            return "0 mailboxes";
+        }
+        return mailboxes + " mailboxes, fullest " + fullest + " " + Math.round(most * 100) + "%";
+    }
+
+    private MailboxJournal stripeFor(String recipient) {
+        return stripes[Math.floorMod(recipient.hashCode(), stripes.length)];
+    }
+
+    private static int readStripeCount(File directory, int stripes) throws IOException {
+        File file = new File(directory, STRIPES_FILE);
+        if (file.exists()) {
+            String stored = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8).trim();
+            try {
+                int count = Integer.parseInt(stored);
+                if (count != stripes) {
+                    System.out.println("Mailbox has " + count + " stripes, ignoring the configured " + stripes);
+                }
+                return count;
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid stripe count in " + file + ": " + stored);
+            }
+        }
+        Files.write(file.toPath(), String.valueOf(stripes).getBytes(StandardCharsets.UTF_8));
+        return stripes;
+    }
+
+    /**
+     * Flyttar meddelandena från den gamla journalen en mottagare i taget. En mottagares
+     * meddelanden markeras som levererade i den gamla journalen först när de har skrivits till
+     * disk i den nya, och den gamla filen tas bort först när alla mottagare är flyttade. Går
+     * något fel ligger resten kvar i den gamla journalen och flyttas vid nästa start; bara
+     * mottagaren som flyttades just då kan då få några meddelanden två gånger. Meddelanden som
+     * inte får plats i mottagarens brevlåda hanteras enligt policyn för full brevlåda.
+     */
+    private void migrate(File directory, long compactBytes, String overflow) throws IOException {
+        File old = new File(directory, "journal.dat");
+        if (!old.exists()) {
+            return;
+        }
+        MailboxJournal journal = new MailboxJournal(directory, 0, compactBytes, Integer.MAX_VALUE, Long.MAX_VALUE, overflow);
+        int moved = 0;
+        int rejected = 0;
+        try {
+            for (String recipient : journal.recipients()) {
+                int count = journal.count(recipient);
+                MailboxJournal stripe = stripeFor(recipient);
+                for (Message message : journal.peek(recipient, count)) {
+                    try {
+                        stripe.append(recipient, message);
+                        moved++;
+                    } catch (MailboxFullException e) {
+                        rejected++;
+                    }
+                }
+                stripe.sync();
+                journal.acknowledge(recipient, count);
+            }
+            journal.sync();
+        } finally {
+            journal.close();
+        }
+        Files.delete(old.toPath());
+        System.out.println("Mailbox: moved " + moved + " messages to striped journals"
+                + (rejected > 0 ? ", " + rejected + " did not fit in their mailbox" : ""));
+    }
+}
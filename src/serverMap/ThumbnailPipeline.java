@@ -0,0 +1,146 @@
+package serverMap;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Skapar miniatyrer av uppladdade bilder på en egen trådpool med en begränsad kö. Meddelanden
+ * med en bild routas när miniatyren är klar, så att mottagaren kan visa den direkt och bara
+ * hämtar originalet om användaren vill se det.
+ * <p>
+ * Routningstrådarna väntar aldrig på poolen: är kön full skapas ingen miniatyr och
+ * meddelandet routas direkt, och mottagaren hämtar då originalet som tidigare. Små bilder
+ * får ingen miniatyr alls.
+ *
+ */
+public class ThumbnailPipeline {
+
+    private static final CompletableFuture<Void> DONE = CompletableFuture.completedFuture(null);
+
+    private final BlobStore blobs;
+    private final ThreadPoolExecutor workers;
+    private final int size;
+    private final long minBytes;
+    private final Map<String, CompletableFuture<Void>> pending = new ConcurrentHashMap<>();
+    private final AtomicLong created = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    /**
+     * Skapar en ny pipeline.
+     *
+     * @param blobs Lagringen som bilderna läses från och miniatyrerna skrivs till.
+     * @param threads Antal arbetstrådar.
+     * @param queueCapacity Antal bilder som kan vänta på en arbetstråd.
+     * @param size Största bredd eller höjd i pixlar för en miniatyr.
+     * @param minBytes Bilder som är högst så här stora i bytes får ingen miniatyr.
+     */
+    public ThumbnailPipeline(BlobStore blobs, int threads, int queueCapacity, int size, long minBytes) {
+        this.blobs = blobs;
+        this.size = Math.max(1, size);
+        this.minBytes = minBytes;
+        this.workers = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, queueCapacity)), runnable -> {
+                    Thread thread = new Thread(runnable, "thumbnail");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        this.workers.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Ser till att en bild får en miniatyr om den behöver en. Återvänder direkt.
+     *
+     * @param hash Hashen för originalbilden.
+     * @return En Future som blir klar när miniatyren finns, eller när det står klart att bilden
+     * inte får någon. Den blir aldrig klar med ett fel.
+     */
+    public CompletableFuture<Void> prepare(String hash) {
+        if (!blobs.contains(hash) || blobs.hasThumbnail(hash) || blobs.length(hash) <= minBytes) {
+            return DONE;
+        }
+        CompletableFuture<Void> future = pending.computeIfAbsent(hash, h -> {
+            CompletableFuture<Void> task = new CompletableFuture<>();
+            try {
+                workers.execute(() -> {
+                    try {
+                        create(h);
+                    } finally {
+                        pending.remove(h);
+                        task.complete(null);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                skipped.incrementAndGet();
+                task.complete(null);
+            }
+            return task;
+        });
+        if (future.isDone()) {
+            pending.remove(hash, future);
+        }
+        return future;
+    }
+
+    private void create(String hash) {
+        try {
+            BufferedImage original = ImageIO.read(new ByteArrayInputStream(blobs.get(hash)));
+            if (original == null) {
+                throw new IOException("Unsupported image data");
+            }
+            double scale = Math.min(1.0, (double) size / Math.max(original.getWidth(), original.getHeight()));
+            int width = Math.max(1, (int) Math.round(original.getWidth() * scale));
+            int height = Math.max(1, (int) Math.round(original.getHeight() * scale));
+            BufferedImage thumbnail = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            Graphics2D graphics = thumbnail.createGraphics();
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            graphics.setColor(Color.WHITE);
+            graphics.fillRect(0, 0, width, height);
+            graphics.drawImage(original, 0, 0, width, height, null);
+            graphics.dispose();
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ImageIO.write(thumbnail, "jpg", bytes);
+            blobs.putThumbnail(hash, bytes.toByteArray());
+            created.incrementAndGet();
+        } catch (IOException | RuntimeException e) {
+            failed.incrementAndGet();
+            System.out.println("Could not create thumbnail for " + hash + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return Antal miniatyrer som har skapats.
+     */
+    public long getCreated() {
+        return created.get();
+    }
+
+    /**
+     * @return Antal bilder som routades utan miniatyr för att kön var full.
+     */
+    public long getSkipped() {
+        return skipped.get();
+    }
+
+    /**
+     * @return Antal bilder som inte gick att göra miniatyrer av.
+     */
+    public long getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * @return Antal bilder som väntar på eller håller på att få en miniatyr.
+     */
+    public int getPending() {
+        return pending.size();
+    }
+}
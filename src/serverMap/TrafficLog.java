@@ -0,0 +1,176 @@
+package serverMap;
+
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Skriver serverns trafiklogg i bakgrunden. Anropande trådar lägger bara raden i en begränsad
+ * ringbuffert och återvänder direkt; en egen skrivartråd tömmer bufferten i grupper till
+ * loggens segment och gör flush när ett tidsintervall har passerat eller tillräckligt många bytes har skrivits.
+ * <p>
+ * När bufferten är full kastas antingen den nya raden eller den äldsta raden i bufferten,
+ * beroende på inställningen. Antalet kastade rader skrivs som en egen rad i loggen.
+ *
+ */
+public class TrafficLog {
+
+    /** Kastar den nya raden när bufferten är full. */
+    public static final String OVERFLOW_DROP_NEWEST = "drop-newest";
+
+    /** Kastar den äldsta raden i bufferten när den är full. */
+    public static final String OVERFLOW_DROP_OLDEST = "drop-oldest";
+
+    private static final int BATCH_SIZE = 512;
+
+    private final LogSegments segments;
+    private final ArrayBlockingQueue<String> ring;
+    private final long flushIntervalNanos;
+    private final long flushBytes;
+    private final boolean dropOldest;
+    private final Thread writerThread;
+
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong flushes = new AtomicLong();
+    private volatile boolean closed;
+
+    /**
+     * Skapar loggen och startar skrivartråden.
+     *
+     * @param segments Segmenten som loggen skrivs till.
+     * @param capacity Hur många rader som ryms i ringbufferten.
+     * @param flushIntervalMillis Längsta tid mellan två flush när det finns oskrivna rader.
+     * @param flushBytes Antal bytes som får skrivas innan en flush görs direkt.
+     * @param overflow Vad som händer när bufferten är full.
+     */
+    public TrafficLog(LogSegments segments, int capacity, long flushIntervalMillis, long flushBytes, String overflow) {
+        this.segments = segments;
+        this.ring = new ArrayBlockingQueue<>(Math.max(1, capacity));
+        this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, flushIntervalMillis));
+        this.flushBytes = Math.max(1, flushBytes);
+        this.dropOldest = OVERFLOW_DROP_OLDEST.equalsIgnoreCase(overflow);
+        this.writerThread = new Thread(this::writeLoop, "traffic-log");
+        this.writerThread.setDaemon(true);
+        this.writerThread.start();
+    }
+
+    /**
+     * Lägger till en rad i loggen utan att göra någon fil-I/O på den anropande tråden.
+     *
+     * @param line Raden som ska loggas.
+     */
+    public void append(String line) {
+        if (closed) {
+            return;
+        }
+        if (ring.offer(line)) {
+            return;
+        }
+        if (dropOldest && ring.poll() != null) {
+            dropped.incrementAndGet();
+            if (ring.offer(line)) {
+                return;
+            }
+        }
+        dropped.incrementAndGet();
+    }
+
+    /**
+     * Stänger loggen och väntar på att alla rader i bufferten har skrivits.
+     */
+    public void close() {
+        closed = true;
+        writerThread.interrupt();
+        try {
+            writerThread.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void writeLoop() {
+        List<String> batch = new ArrayList<>(BATCH_SIZE);
+        long reportedDrops = 0;
+        long unflushedBytes = 0;
+        long lastFlush = System.nanoTime();
+
+        try {
+            while (!closed || !ring.isEmpty()) {
+                String first = null;
+                try {
+                    first = ring.poll(flushIntervalNanos, TimeUnit.NANOSECONDS);
+                } catch (InterruptedException e) {
+                    // Stängs; töm det som finns kvar.
+                }
+                if (first != null) {
+                    batch.add(first);
+                    ring.drainTo(batch, BATCH_SIZE - 1);
+                }
+
+                long drops = dropped.get();
+                if (drops != reportedDrops) {
+                    String marker = LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss"))
+                            + " " + (drops - reportedDrops) + " log entries dropped (buffer full)";
+                    batch.add(marker);
+                    reportedDrops = drops;
+                }
+
+                for (String line : batch) {
+                    unflushedBytes += segments.write(line);
+                }
+                written.addAndGet(batch.size());
+                batch.clear();
+
+                long now = System.nanoTime();
+                if (unflushedBytes > 0 && (unflushedBytes >= flushBytes || now - lastFlush >= flushIntervalNanos || closed)) {
+                    segments.flush();
+                    flushes.incrementAndGet();
+                    unflushedBytes = 0;
+                    lastFlush = now;
+                }
+            }
+            segments.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Hämtar de loggrader som har skrivits till disk inom det givna tidsintervallet.
+     *
+     * @param from Intervallets början.
+     * @param to Intervallets slut.
+     * @return Raderna i den ordning de skrevs.
+     * @throws IOException Om loggen inte kunde läsas.
+     */
+    public List<String> read(LocalDateTime from, LocalDateTime to) throws IOException {
+        return segments.read(from, to);
+    }
+
+    /**
+     * @return Antal rader som har skrivits till filen.
+     */
+    public long getWritten() {
+        return written.get();
+    }
+
+    /**
+     * @return Antal rader som har kastats för att bufferten var full.
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * @return Antal gånger som filen har flushats.
+     */
+    public long getFlushes() {
+        return flushes.get();
+    }
+}
@@ -3,51 +3,87 @@ package serverMap;
 import Common.Message;
 import Common.User;
 
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.List;
 
 /**
  * Hanterar lagring och samt hämtar meddelanden som inte kunnat skickas till mottagaren.
  * Säkerställer att meddelanden som inte kan levereras direkt,
- * pga att mottagaren är offline lagras tillfälligt tills mottagaren är online.
+ * pga att mottagaren är offline lagras tills mottagaren är online.
+ * Meddelandena lagras i en {@link StripedMailbox} och finns därför kvar efter en omstart.
+ * Brevlådorna är uppdelade efter mottagare, så lagring till olika mottagare delar inget lås.
  *
  */
 public class UnsentMessageHandler {
 
-    private HashMap<User, ArrayList<Message>> unsent = new HashMap<>();
+    private final StripedMailbox journal;
+
+    /**
+     * @param journal Brevlådorna som meddelandena lagras i.
+     */
+    public UnsentMessageHandler(StripedMailbox journal) {
+        this.journal = journal;
+    }
 
     /**
      * Lägger till ett meddelande i listan av osända meddelanden för en specifik användare.
-     * Om det inte finns någon lista för användaren skapas en ny lista.
+     * Om användarens brevlåda är full gäller journalens policy för full brevlåda.
      *
      * @param user Användaren som meddelandet ska levereras till.
      * @param message Meddelandet som inte kunde levereras.
+     * @return true om meddelandet lagrades, false om brevlådan var full eller inte gick att skriva.
      */
-    public synchronized void put (User user, Message message){
-        ArrayList <Message> userMessages = unsent.computeIfAbsent(user, k -> new ArrayList<>());
-
-        userMessages.add(message);
+    public boolean put (User user, Message message){
+        try {
+            journal.append(user.getName(), message);
+            return true;
+        } catch (MailboxFullException e) {
+            System.out.println(e.getMessage() + ", message from " + message.getSender().getName() + " dropped");
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return false;
     }
 
     /**
-     * Hämtar listan av osända meddelanden för en specifik användare.
-     * Om det inte finns några osända meddelanden för användaren returneras en tom lista.
+     * Hämtar och tar bort alla osända meddelanden för en specifik användare i ett enda steg.
+     * Ett meddelande som lagras samtidigt kommer antingen med i listan eller ligger kvar
+     * till nästa gång, det kan inte försvinna mellan hämtningen och borttagningen.
      *
      * @param user Användaren vars osända meddelanden ska hämtas.
-     * @return En lista av osända meddelanden för den angivna användaren.
+     * @return Meddelandena, äldst först. En tom lista om det inte fanns några.
      */
+    public List<Message> drainAll (User user){
+        return journal.drain(user.getName());
+    }
 
-    public synchronized  ArrayList<Message> get (User user){
-        return unsent.getOrDefault(user, new ArrayList<>());
-
+    /**
+     * Hämtar de äldsta osända meddelandena för en användare utan att ta bort dem.
+     *
+     * @param user Användaren vars meddelanden ska hämtas.
+     * @param max Högsta antal meddelanden.
+     * @return Meddelandena, äldst först.
+     */
+    public ArrayList<Message> peek (User user, int max){
+        return journal.peek(user.getName(), max);
     }
 
     /**
-     * Rensar listan av osända meddelanden för en specifik användare.
+     * Tar bort de äldsta osända meddelandena för en användare efter att de har levererats.
      *
-     * @param user Användaren vars osända meddelanden ska rensas bort.
+     * @param user Användaren vars meddelanden har levererats.
+     * @param count Antal meddelanden, räknat från det äldsta.
+     */
+    public void remove (User user, int count){
+        journal.acknowledge(user.getName(), count);
+    }
+
+    /**
+     * @param user Användaren.
+     * @return Antal osända meddelanden för användaren.
      */
-    public synchronized void clear (User user){
-        unsent.remove(user);
+    public int count (User user){
+        return journal.count(user.getName());
     }
 }
@@ -0,0 +1,219 @@
+package bench;
+
+import Common.FramedInput;
+import Common.FramedOutput;
+import Common.Message;
+import Common.Protocol;
+import Common.User;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Mäter hur servern klarar många samtidiga anslutningar, t.ex. för att jämföra
+ * {@code -Dchatt.executor=platform} med {@code virtual} eller {@code -Dchatt.engine=nio}.
+ * <p>
+ * Sonden loggar in ett antal vilande användare och läser bort allt servern skickar till dem
+ * med en selector, så att de inte räknas som långsamma. Sedan skickar en användare meddelanden
+ * i jämn takt till en annan och sonden mäter tiden från att meddelandet skickades till att det
+ * kom fram. Mätningen börjar först när närvarouppdateringarna för de två användarna har hunnit
+ * ut till alla, så den visar fördröjningen i vila snarare än vid inloggningen. Med serverns
+ * process-id läses också serverns minne och antal trådar från {@code /proc} (bara Linux).
+ * <p>
+ * Sonden ligger i en egen källkatalog, {@code tools/bench}, och byggs inte med klienten.
+ * Den skickar inga hjärtslag på de vilande anslutningarna, så servern bör startas med en
+ * lång {@code -Dchatt.idle.timeoutMs}. Exempel:
+ * <pre>
+ * javac -d out $(find src tools/bench -name '*.java')
+ * java -Dchatt.executor=virtual -Dchatt.idle.timeoutMs=600000 -cp out serverMap.Server
+ * java -Dprobe.connections=10000 -Dprobe.pid=&lt;serverns pid&gt; -cp out bench.LoadProbe
+ * </pre>
+ *
+ */
+public class LoadProbe {
+
+    private static final String SENDER = "probe-sender";
+    private static final String RECEIVER = "probe-receiver";
+
+    /**
+     * Kör mätningen. Inställningarna läses från systemegenskaperna {@code probe.host},
+     * {@code probe.port}, {@code probe.connections}, {@code probe.messages},
+     * {@code probe.intervalMs} och {@code probe.pid}.
+     *
+     * @param args Används inte.
+     * @throws Exception Om en anslutning misslyckas.
+     */
+    public static void main(String[] args) throws Exception {
+        String host = System.getProperty("probe.host", "localhost");
+        int port = Integer.getInteger("probe.port", 2222);
+        int connections = Integer.getInteger("probe.connections", 10_000);
+        int messages = Integer.getInteger("probe.messages", 1000);
+        long intervalMillis = Long.getLong("probe.intervalMs", 5);
+        String pid = System.getProperty("probe.pid");
+        InetSocketAddress address = new InetSocketAddress(host, port);
+
+        Selector selector = Selector.open();
+        ByteBuffer discard = ByteBuffer.allocateDirect(64 * 1024);
+        long started = System.nanoTime();
+        for (int i = 0; i < connections; i++) {
+            SocketChannel channel = SocketChannel.open(address);
+            login(Channels.newOutputStream(channel), Channels.newInputStream(channel), "probe-" + i);
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_READ);
+            if (selector.selectNow() > 0) {
+                drain(selector, discard);
+            }
+            if ((i + 1) % 1000 == 0) {
+                System.out.println((i + 1) + " connections after " + millisSince(started) + " ms");
+            }
+        }
+        long connectMillis = millisSince(started);
+
+        Thread drainer = new Thread(() -> {
+            try {
+                while (!Thread.currentThread().isInterrupted()) {
+                    if (selector.select(100) > 0) {
+                        drain(selector, discard);
+                    }
+                }
+            } catch (IOException e) {
+                System.out.println("Idle connections failed: " + e.getMessage());
+            }
+        }, "probe-drainer");
+        drainer.setDaemon(true);
+        drainer.start();
+        Thread.sleep(2000);
+        String server = pid == null ? "pid not given" : serverUsage(pid);
+
+        Socket receiverSocket = new Socket(host, port);
+        login(receiverSocket.getOutputStream(), receiverSocket.getInputStream(), RECEIVER);
+        FramedInput receiver = new FramedInput(new BufferedInputStream(receiverSocket.getInputStream()),
+                Protocol.codecFor(Protocol.CODEC_BINARY));
+        Socket senderSocket = new Socket(host, port);
+        FramedOutput sender = login(senderSocket.getOutputStream(), senderSocket.getInputStream(), SENDER);
+        Thread senderDrainer = new Thread(() -> {
+            try {
+                InputStream in = senderSocket.getInputStream();
+                byte[] buffer = new byte[64 * 1024];
+                while (in.read(buffer) >= 0) {
+                    // Närvarouppdateringar till avsändaren läses bara bort.
+                }
+            } catch (IOException e) {
+                // Anslutningen stängdes när mätningen var klar.
+            }
+        }, "probe-sender-drainer");
+        senderDrainer.setDaemon(true);
+        senderDrainer.start();
+        Thread.sleep(2000);
+
+        long[] latencies = new long[messages];
+        int[] received = new int[1];
+        Thread reader = new Thread(() -> {
+            try {
+                receiverSocket.setSoTimeout(10_000);
+                while (received[0] < messages) {
+                    Object obj = receiver.readObject();
+                    if (obj instanceof Message && SENDER.equals(((Message) obj).getSender().getName())) {
+                        latencies[received[0]++] = System.nanoTime() - Long.parseLong(((Message) obj).getMessage());
+                    }
+                }
+            } catch (SocketTimeoutException e) {
+                System.out.println("Stopped waiting after " + received[0] + " of " + messages + " messages");
+            } catch (IOException | ClassNotFoundException e) {
+                System.out.println("Receiver failed: " + e.getMessage());
+            }
+        }, "probe-receiver");
+        reader.start();
+        for (int i = 0; i < messages; i++) {
+            sender.writeObject(new Message(new User(SENDER, null), new User(RECEIVER, null), String.valueOf(System.nanoTime())));
+            sender.flush();
+            Thread.sleep(intervalMillis);
+        }
+        reader.join();
+
+        long[] measured = Arrays.copyOf(latencies, received[0]);
+        Arrays.sort(measured);
+        System.out.println("Idle connections: " + connections + ", logged in after " + connectMillis + " ms");
+        System.out.println("Server: " + server);
+        System.out.println("Latency over " + measured.length + " messages: p50 " + micros(measured, 0.50)
+                + " us, p99 " + micros(measured, 0.99) + " us, max " + micros(measured, 1.0) + " us");
+
+        drainer.interrupt();
+        senderSocket.close();
+        receiverSocket.close();
+        selector.close();
+    }
+
+    /**
+     * Loggar in en användare med den binära kodningen utan komprimering.
+     */
+    private static FramedOutput login(OutputStream out, InputStream in, String name) throws IOException {
+        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+        Protocol.writePreamble(data, Protocol.CODEC_BINARY);
+        data.flush();
+        if (in.read() != Protocol.CODEC_BINARY) {
+            throw new IOException("Server did not accept the binary codec for " + name);
+        }
+        FramedOutput output = new FramedOutput(data, Protocol.codecFor(Protocol.CODEC_BINARY));
+        output.writeObject(new User(name, null));
+        output.flush();
+        return output;
+    }
+
+    private static void drain(Selector selector, ByteBuffer discard) throws IOException {
+        for (SelectionKey key : selector.selectedKeys()) {
+            SocketChannel channel = (SocketChannel) key.channel();
+            discard.clear();
+            if (channel.read(discard) < 0) {
+                key.cancel();
+                channel.close();
+            }
+        }
+        selector.selectedKeys().clear();
+    }
+
+    /**
+     * Läser serverns minne och antal trådar från {@code /proc/<pid>/status}.
+     */
+    private static String serverUsage(String pid) {
+        try {
+            StringBuilder usage = new StringBuilder();
+            for (String line : Files.readAllLines(Paths.get("/proc", pid, "status"))) {
+                if (line.startsWith("VmRSS:") || line.startsWith("Threads:")) {
+                    usage.append(usage.length() == 0 ? "" : ", ").append(line.replaceAll("\\s+", " "));
+                }
+            }
+            return usage.toString();
+        } catch (IOException e) {
+            return "could not read /proc/" + pid + "/status: " + e.getMessage();
+        }
+    }
+
+    private static long micros(long[] sorted, double percentile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.min(sorted.length - 1, Math.ceil(percentile * sorted.length) - 1);
+        return TimeUnit.NANOSECONDS.toMicros(sorted[Math.max(0, index)]);
+    }
+
+    private static long millisSince(long start) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+}